@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.benchmark;
+
+import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.gradle.caching.BuildCacheKey;
+import org.gradle.caching.BuildCacheService;
+
+/**
+ * Simulates many build agents sharing one bucket served by a {@link S3StandIn}.
+ *
+ * <p>Every agent runs builds of {@code opsPerBuild} operations, each with a new build cache service. An operation
+ * loads a random key, where keys with lower numbers are more popular, and stores the entry if it was missing.
+ * After the warm-up the simulation reports throughput, latency percentiles and the allocation rate of the agent
+ * threads, so that changes to the transfer path can be compared under concurrency.</p>
+ *
+ * <p>Options are passed as {@code name=value} arguments: {@code agents}, {@code seconds}, {@code warmupSeconds},
+ * {@code keys}, {@code entrySizes} (comma separated), {@code opsPerBuild}, {@code latencyMillis} and
+ * {@code bytesPerSecond} (per connection, 0 for unlimited).</p>
+ */
+public class AgentSimulation {
+
+  private static final double MIB = 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Expected name=value but got '" + arg + "'");
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    int agents = Integer.parseInt(option(options, "agents", "16"));
+    long seconds = Long.parseLong(option(options, "seconds", "30"));
+    long warmupSeconds = Long.parseLong(option(options, "warmupSeconds", "5"));
+    int keys = Integer.parseInt(option(options, "keys", "2000"));
+    int opsPerBuild = Integer.parseInt(option(options, "opsPerBuild", "200"));
+    long latencyMillis = Long.parseLong(option(options, "latencyMillis", "20"));
+    long bytesPerSecond = Long.parseLong(option(options, "bytesPerSecond", "0"));
+    String[] sizes = option(options, "entrySizes", "4096,65536,1048576,8388608").split(",");
+    int[] entrySizes = new int[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      entrySizes[i] = Integer.parseInt(sizes[i].trim());
+    }
+
+    System.out.printf(Locale.ROOT, "%d agents, %d s (+%d s warm-up), %d keys, entry sizes %s, latency %d ms, "
+            + "bandwidth %s%n", agents, seconds, warmupSeconds, keys, Arrays.toString(entrySizes), latencyMillis,
+        bytesPerSecond > 0 ? String.format(Locale.ROOT, "%.1f MiB/s", bytesPerSecond / MIB) : "unlimited");
+
+    List<Agent> results = new ArrayList<>();
+    try (S3StandIn standIn = S3StandIn.start(latencyMillis, bytesPerSecond)) {
+      long now = System.nanoTime();
+      long measureStart = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+      long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+      long gcCount = gcCount();
+      long gcMillis = gcMillis();
+      ExecutorService executor = Executors.newFixedThreadPool(agents);
+      List<Future<Agent>> futures = new ArrayList<>();
+      for (int i = 0; i < agents; i++) {
+        futures.add(executor.submit(new Agent(i, standIn, keys, entrySizes, opsPerBuild, measureStart, end)));
+      }
+      for (Future<Agent> future : futures) {
+        results.add(future.get());
+      }
+      executor.shutdown();
+      report(results, seconds, gcCount() - gcCount, gcMillis() - gcMillis);
+      System.out.printf(Locale.ROOT, "Stand-in: %d requests, %d objects%n", standIn.getRequestCount(),
+          standIn.getObjectCount());
+    }
+  }
+
+  private static void report(List<Agent> agents, long seconds, long gcCount, long gcMillis) {
+    Recorder loads = new Recorder();
+    Recorder stores = new Recorder();
+    long hits = 0;
+    long errors = 0;
+    long bytesLoaded = 0;
+    long bytesStored = 0;
+    long allocated = 0;
+    for (Agent agent : agents) {
+      loads.addAll(agent.loads);
+      stores.addAll(agent.stores);
+      hits += agent.hits;
+      errors += agent.errors;
+      bytesLoaded += agent.bytesLoaded;
+      bytesStored += agent.bytesStored;
+      allocated += agent.allocatedBytes;
+    }
+    System.out.printf(Locale.ROOT, "Loads:  %d (%d hits, %d errors), %.1f ops/s, %.1f MiB/s, latency %s%n",
+        loads.size, hits, errors, (double) loads.size / seconds, bytesLoaded / MIB / seconds, loads.percentiles());
+    System.out.printf(Locale.ROOT, "Stores: %d, %.1f ops/s, %.1f MiB/s, latency %s%n",
+        stores.size, (double) stores.size / seconds, bytesStored / MIB / seconds, stores.percentiles());
+    System.out.printf(Locale.ROOT, "Allocation: %s in agent threads, GC: %d collections, %d ms%n",
+        allocated < 0 ? "unsupported" : String.format(Locale.ROOT, "%.1f MiB/s", allocated / MIB / seconds),
+        gcCount, gcMillis);
+  }
+
+  private static String option(Map<String, String> options, String name, String defaultValue) {
+    String value = options.get(name);
+    return value != null ? value : defaultValue;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  /**
+   * Bytes allocated by the current thread so far, or -1 if the JVM cannot tell.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static final class Agent implements Callable<Agent> {
+
+    private final int id;
+    private final S3StandIn standIn;
+    private final int keys;
+    private final int[] entrySizes;
+    private final int opsPerBuild;
+    private final long measureStart;
+    private final long end;
+    private final Map<Integer, byte[]> contents = new HashMap<>();
+
+    final Recorder loads = new Recorder();
+    final Recorder stores = new Recorder();
+    long hits;
+    long errors;
+    long bytesLoaded;
+    long bytesStored;
+    long allocatedBytes = -1;
+
+    Agent(int id, S3StandIn standIn, int keys, int[] entrySizes, int opsPerBuild, long measureStart, long end) {
+      this.id = id;
+      this.standIn = standIn;
+      this.keys = keys;
+      this.entrySizes = entrySizes;
+      this.opsPerBuild = opsPerBuild;
+      this.measureStart = measureStart;
+      this.end = end;
+    }
+
+    @Override
+    public Agent call() throws Exception {
+      Random random = new Random(id);
+      AwsS3BuildCache config = BenchmarkCaches.config(standIn);
+      long allocatedAtStart = -1;
+      while (System.nanoTime() < end) {
+        BuildCacheService service = BenchmarkCaches.create(config);
+        try {
+          for (int op = 0; op < opsPerBuild && System.nanoTime() < end; op++) {
+            if (allocatedAtStart < 0 && System.nanoTime() >= measureStart) {
+              allocatedAtStart = allocatedBytes();
+            }
+            double r = random.nextDouble();
+            int keyNumber = (int) (keys * r * r);
+            run(service, keyNumber);
+          }
+        } finally {
+          service.close();
+        }
+      }
+      if (allocatedAtStart >= 0) {
+        allocatedBytes = allocatedBytes() - allocatedAtStart;
+      }
+      return this;
+    }
+
+    private void run(BuildCacheService service, int keyNumber) {
+      BuildCacheKey key = BenchmarkCaches.key("key-" + keyNumber);
+      BenchmarkCaches.CountingReader reader = new BenchmarkCaches.CountingReader();
+      long start = System.nanoTime();
+      boolean hit;
+      try {
+        hit = service.load(key, reader);
+      } catch (RuntimeException e) {
+        errors++;
+        return;
+      }
+      long loaded = System.nanoTime();
+      if (start >= measureStart) {
+        loads.add(loaded - start);
+        bytesLoaded += reader.bytes;
+        if (hit) {
+          hits++;
+        }
+      }
+      if (!hit) {
+        byte[] content = content(keyNumber);
+        try {
+          service.store(key, BenchmarkCaches.writer(content));
+        } catch (RuntimeException e) {
+          errors++;
+          return;
+        }
+        if (start >= measureStart) {
+          stores.add(System.nanoTime() - loaded);
+          bytesStored += content.length;
+        }
+      }
+    }
+
+    private byte[] content(int keyNumber) {
+      byte[] content = contents.get(keyNumber % entrySizes.length);
+      if (content == null) {
+        content = BenchmarkCaches.randomContent(entrySizes[keyNumber % entrySizes.length], keyNumber);
+        contents.put(keyNumber % entrySizes.length, content);
+      }
+      return content;
+    }
+  }
+
+  /**
+   * Collects latencies in nanoseconds.
+   */
+  private static final class Recorder {
+
+    long[] values = new long[1024];
+    int size;
+
+    void add(long nanos) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = nanos;
+    }
+
+    void addAll(Recorder other) {
+      for (int i = 0; i < other.size; i++) {
+        add(other.values[i]);
+      }
+    }
+
+    String percentiles() {
+      if (size == 0) {
+        return "n/a";
+      }
+      long[] sorted = Arrays.copyOf(values, size);
+      Arrays.sort(sorted);
+      return String.format(Locale.ROOT, "p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms",
+          millis(sorted, 0.5), millis(sorted, 0.95), millis(sorted, 0.99), millis(sorted, 0.999),
+          sorted[size - 1] / 1e6);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+      int index = (int) Math.ceil(percentile * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+}
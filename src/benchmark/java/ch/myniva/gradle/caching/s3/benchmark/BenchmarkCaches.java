@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.benchmark;
+
+import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import ch.myniva.gradle.caching.s3.internal.AwsS3BuildCacheServiceFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import org.gradle.caching.BuildCacheEntryReader;
+import org.gradle.caching.BuildCacheEntryWriter;
+import org.gradle.caching.BuildCacheKey;
+import org.gradle.caching.BuildCacheService;
+import org.gradle.caching.BuildCacheServiceFactory;
+
+/**
+ * Creates build cache services pointing at a {@link S3StandIn} and the keys, readers and writers to drive them.
+ */
+final class BenchmarkCaches {
+
+  static final String BUCKET = "benchmark";
+
+  private BenchmarkCaches() {
+  }
+
+  /**
+   * Returns a configuration for the stand-in with the plugin's defaults, except that misses are not cached so
+   * that every lookup reaches the stand-in.
+   */
+  static AwsS3BuildCache config(S3StandIn standIn) {
+    AwsS3BuildCache config = new AwsS3BuildCache();
+    config.setRegion("us-east-1");
+    config.setBucket(BUCKET);
+    config.setEndpoint(standIn.getEndpoint());
+    config.setAwsAccessKeyId("benchmark");
+    config.setAwsSecretKey("benchmark");
+    config.setMissCacheTtlSeconds(0);
+    config.setPush(true);
+    return config;
+  }
+
+  static BuildCacheService create(AwsS3BuildCache config) {
+    return new AwsS3BuildCacheServiceFactory().createBuildCacheService(config,
+        new BuildCacheServiceFactory.Describer() {
+          @Override
+          public BuildCacheServiceFactory.Describer type(String type) {
+            return this;
+          }
+
+          @Override
+          public BuildCacheServiceFactory.Describer config(String name, String value) {
+            return this;
+          }
+        });
+  }
+
+  static byte[] randomContent(int size, long seed) {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+
+  static BuildCacheKey key(final String hashCode) {
+    return new BuildCacheKey() {
+      @Override
+      public String getHashCode() {
+        return hashCode;
+      }
+
+      public String getDisplayName() {
+        return hashCode;
+      }
+
+      public byte[] toByteArray() {
+        return hashCode.getBytes(Charset.forName("UTF-8"));
+      }
+
+      @Override
+      public String toString() {
+        return hashCode;
+      }
+    };
+  }
+
+  static BuildCacheEntryWriter writer(final byte[] content) {
+    return new BuildCacheEntryWriter() {
+      @Override
+      public void writeTo(OutputStream output) throws IOException {
+        output.write(content);
+      }
+
+      public long getSize() {
+        return content.length;
+      }
+    };
+  }
+
+  /**
+   * Reads entries completely, like Gradle unpacking them, and counts the bytes.
+   */
+  static final class CountingReader implements BuildCacheEntryReader {
+
+    private final byte[] buffer = new byte[8192];
+    long bytes;
+
+    @Override
+    public void readFrom(InputStream input) throws IOException {
+      int n;
+      while ((n = input.read(buffer)) != -1) {
+        bytes += n;
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.gradle.caching.BuildCacheKey;
+import org.gradle.caching.BuildCacheService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads existing and missing entries of different sizes from a {@link S3StandIn}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LoadBenchmark {
+
+  @Param({"1024", "65536", "1048576", "16777216"})
+  int entrySize;
+
+  @Param({"5"})
+  long latencyMillis;
+
+  /**
+   * Bandwidth per connection in bytes per second, 0 for unlimited.
+   */
+  @Param({"0"})
+  long bytesPerSecond;
+
+  private S3StandIn standIn;
+  private BuildCacheService service;
+  private BuildCacheKey existing;
+  private BuildCacheKey missing;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    standIn = S3StandIn.start(latencyMillis, bytesPerSecond);
+    service = BenchmarkCaches.create(BenchmarkCaches.config(standIn));
+    existing = BenchmarkCaches.key("existing-" + entrySize);
+    missing = BenchmarkCaches.key("missing-" + entrySize);
+    standIn.putObject(BenchmarkCaches.BUCKET, existing.getHashCode(),
+        BenchmarkCaches.randomContent(entrySize, entrySize));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    service.close();
+    standIn.close();
+  }
+
+  @Benchmark
+  public long loadHit() {
+    BenchmarkCaches.CountingReader reader = new BenchmarkCaches.CountingReader();
+    if (!service.load(existing, reader)) {
+      throw new IllegalStateException("Entry " + existing + " not found");
+    }
+    return reader.bytes;
+  }
+
+  @Benchmark
+  public boolean loadMiss() {
+    return service.load(missing, new BenchmarkCaches.CountingReader());
+  }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.benchmark;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal S3 compatible HTTP server to benchmark the build cache against.
+ *
+ * <p>It implements the part of the S3 REST API the build cache uses with path-style addressing: object GET (with
+ * ranges and {@code If-Match}), HEAD, PUT (with {@code If-None-Match}) and DELETE as well as multipart uploads,
+ * plus listing objects (version 2) and deleting multiple objects.
+ * Requests are not authenticated. Every response is delayed by a fixed latency and request and response bodies are
+ * throttled to a fixed bandwidth per connection, which makes it possible to simulate a remote bucket on a single
+ * machine.</p>
+ */
+public class S3StandIn implements Closeable {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+  private static final Pattern DELETE_KEY = Pattern.compile("<Key>([^<]*)</Key>");
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final long bytesPerSecond;
+  private final ConcurrentMap<String, StoredObject> objects = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<>();
+  private final AtomicLong uploadIds = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicInteger concurrentRequests = new AtomicInteger();
+  private final AtomicLong throttledRequests = new AtomicLong();
+  private volatile int maxConcurrentRequests;
+
+  private S3StandIn(long latencyMillis, long bytesPerSecond) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.bytesPerSecond = bytesPerSecond;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+    this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "s3-stand-in");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        int concurrent = concurrentRequests.incrementAndGet();
+        try {
+          if (maxConcurrentRequests > 0 && concurrent > maxConcurrentRequests) {
+            throttle(exchange);
+          } else {
+            S3StandIn.this.handle(exchange);
+          }
+        } finally {
+          concurrentRequests.decrementAndGet();
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Starts a stand-in on a free local port.
+   *
+   * @param latencyMillis delay before every response
+   * @param bytesPerSecond bandwidth per connection and direction, or 0 for unlimited
+   */
+  public static S3StandIn start(long latencyMillis, long bytesPerSecond) throws IOException {
+    // Without TCP_NODELAY small responses wait for delayed ACKs, which adds ~40 ms to every request
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    S3StandIn standIn = new S3StandIn(latencyMillis, bytesPerSecond);
+    standIn.server.start();
+    return standIn;
+  }
+
+  /**
+   * The endpoint to configure the build cache with. It is an IP address so that the S3 client uses path-style
+   * addressing.
+   */
+  public String getEndpoint() {
+    InetSocketAddress address = server.getAddress();
+    return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+  }
+
+  public void putObject(String bucket, String key, byte[] content) {
+    objects.put(bucket + "/" + key, new StoredObject(content, md5(content), new HashMap<String, String>()));
+  }
+
+  /**
+   * Backdates an object, e.g. to make it look idle to pruning.
+   */
+  public void setLastModified(String bucket, String key, long millis) {
+    objects.get(bucket + "/" + key).lastModified = millis;
+  }
+
+  public boolean containsObject(String bucket, String key) {
+    return objects.containsKey(bucket + "/" + key);
+  }
+
+  public int getObjectCount() {
+    return objects.size();
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * Rejects requests beyond this many in flight with {@code 503 SlowDown}, like S3 does when a prefix is sent more
+   * requests than it sustains. {@code 0} accepts all requests.
+   */
+  public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+    this.maxConcurrentRequests = maxConcurrentRequests;
+  }
+
+  public long getThrottledRequestCount() {
+    return throttledRequests.get();
+  }
+
+  public void clear() {
+    objects.clear();
+    uploads.clear();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void throttle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    throttledRequests.incrementAndGet();
+    readBody(exchange);
+    delay();
+    sendError(exchange, 503, "SlowDown", "Please reduce your request rate.");
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    String method = exchange.getRequestMethod();
+    String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8").substring(1);
+    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+    int slash = path.indexOf('/');
+    if (slash == 0 || path.isEmpty()) {
+      sendError(exchange, 400, "InvalidRequest", "Only bucket and object requests are supported");
+      return;
+    }
+    byte[] body = readBody(exchange);
+    if (slash < 0 || slash == path.length() - 1) {
+      delay();
+      handleBucket(exchange, slash < 0 ? path : path.substring(0, slash), query, body);
+      return;
+    }
+    String bucket = path.substring(0, slash);
+    String objectName = path.substring(slash + 1);
+    delay();
+
+    if (query.containsKey("uploads") && method.equals("POST")) {
+      initiateUpload(exchange, bucket, objectName);
+    } else if (query.containsKey("uploadId")) {
+      Upload upload = uploads.get(query.get("uploadId"));
+      if (upload == null) {
+        sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+      } else if (method.equals("PUT")) {
+        upload.parts.put(Integer.valueOf(query.get("partNumber")), body);
+        exchange.getResponseHeaders().set("ETag", quote(md5(body)));
+        exchange.sendResponseHeaders(200, -1);
+      } else if (method.equals("POST")) {
+        completeUpload(exchange, bucket, objectName, query.get("uploadId"), upload);
+      } else if (method.equals("DELETE")) {
+        uploads.remove(query.get("uploadId"));
+        exchange.sendResponseHeaders(204, -1);
+      } else {
+        sendError(exchange, 405, "MethodNotAllowed", method);
+      }
+    } else if (method.equals("PUT") && "*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))
+        && objects.containsKey(bucket + "/" + objectName)) {
+      sendError(exchange, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+    } else if (method.equals("PUT")) {
+      StoredObject object = new StoredObject(body, md5(body), userMetadata(exchange.getRequestHeaders()));
+      objects.put(bucket + "/" + objectName, object);
+      exchange.getResponseHeaders().set("ETag", quote(object.etag));
+      exchange.sendResponseHeaders(200, -1);
+    } else if (method.equals("GET") || method.equals("HEAD")) {
+      getObject(exchange, objects.get(bucket + "/" + objectName), method.equals("HEAD"));
+    } else if (method.equals("DELETE")) {
+      objects.remove(bucket + "/" + objectName);
+      exchange.sendResponseHeaders(204, -1);
+    } else {
+      sendError(exchange, 405, "MethodNotAllowed", method);
+    }
+  }
+
+  private void handleBucket(HttpExchange exchange, String bucket, Map<String, String> query, byte[] body)
+      throws IOException {
+    String method = exchange.getRequestMethod();
+    if (method.equals("GET") && "2".equals(query.get("list-type"))) {
+      listObjects(exchange, bucket, query);
+    } else if (method.equals("POST") && query.containsKey("delete")) {
+      StringBuilder deleted = new StringBuilder();
+      Matcher matcher = DELETE_KEY.matcher(new String(body, UTF_8));
+      while (matcher.find()) {
+        String key = unescapeXml(matcher.group(1));
+        objects.remove(bucket + "/" + key);
+        deleted.append("<Deleted><Key>").append(escapeXml(key)).append("</Key></Deleted>");
+      }
+      sendXml(exchange, 200, "<DeleteResult>" + (query.containsKey("quiet") ? "" : deleted) + "</DeleteResult>");
+    } else {
+      sendError(exchange, 400, "InvalidRequest", "Only listing and deleting objects of buckets is supported");
+    }
+  }
+
+  private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+    String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+    String after = query.containsKey("continuation-token") ? query.get("continuation-token") : query.get("start-after");
+    int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+    boolean urlEncoded = "url".equals(query.get("encoding-type"));
+    TreeMap<String, StoredObject> sorted = new TreeMap<>();
+    for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+      if (entry.getKey().startsWith(bucket + "/" + prefix)) {
+        sorted.put(entry.getKey().substring(bucket.length() + 1), entry.getValue());
+      }
+    }
+    SortedMap<String, StoredObject> remaining = after != null ? sorted.tailMap(after + "\0") : sorted;
+    StringBuilder xml = new StringBuilder("<ListBucketResult><Name>").append(bucket).append("</Name><Prefix>")
+        .append(encodeKey(prefix, urlEncoded)).append("</Prefix><MaxKeys>").append(maxKeys).append("</MaxKeys>");
+    if (urlEncoded) {
+      xml.append("<EncodingType>url</EncodingType>");
+    }
+    int count = 0;
+    String last = null;
+    for (Map.Entry<String, StoredObject> entry : remaining.entrySet()) {
+      if (count == maxKeys) {
+        break;
+      }
+      last = entry.getKey();
+      xml.append("<Contents><Key>").append(encodeKey(last, urlEncoded)).append("</Key><LastModified>")
+          .append(formatTime(entry.getValue().lastModified)).append("</LastModified><ETag>")
+          .append(quote(entry.getValue().etag))
+          .append("</ETag><Size>").append(entry.getValue().content.length)
+          .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+      count++;
+    }
+    boolean truncated = count < remaining.size();
+    xml.append("<KeyCount>").append(count).append("</KeyCount><IsTruncated>").append(truncated)
+        .append("</IsTruncated>");
+    if (truncated) {
+      xml.append("<NextContinuationToken>").append(escapeXml(last)).append("</NextContinuationToken>");
+    }
+    sendXml(exchange, 200, xml.append("</ListBucketResult>").toString());
+  }
+
+  private static String formatTime(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(millis));
+  }
+
+  private static String encodeKey(String key, boolean urlEncoded) throws IOException {
+    return urlEncoded ? URLEncoder.encode(key, "UTF-8") : escapeXml(key);
+  }
+
+  private static String escapeXml(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private static String unescapeXml(String text) {
+    return text.replace("&lt;", "<").replace("&gt;", ">").replace("&amp;", "&");
+  }
+
+  private void getObject(HttpExchange exchange, StoredObject object, boolean head) throws IOException {
+    if (object == null) {
+      if (head) {
+        exchange.sendResponseHeaders(404, -1);
+      } else {
+        sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+      }
+      return;
+    }
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    if (ifMatch != null && !ifMatch.replace("\"", "").equals(object.etag)) {
+      sendError(exchange, 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold.");
+      return;
+    }
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("ETag", quote(object.etag));
+    headers.set("Content-Type", "application/octet-stream");
+    headers.set("Accept-Ranges", "bytes");
+    for (Map.Entry<String, String> entry : object.userMetadata.entrySet()) {
+      headers.set("x-amz-meta-" + entry.getKey(), entry.getValue());
+    }
+    int length = object.content.length;
+    int from = 0;
+    int to = length - 1;
+    int status = 200;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (range != null) {
+      Matcher matcher = RANGE.matcher(range);
+      if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= length) {
+        headers.set("Content-Range", "bytes */" + length);
+        sendError(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+        return;
+      }
+      from = Integer.parseInt(matcher.group(1));
+      if (!matcher.group(2).isEmpty()) {
+        to = (int) Math.min(to, Long.parseLong(matcher.group(2)));
+      }
+      headers.set("Content-Range", "bytes " + from + "-" + to + "/" + length);
+      status = 206;
+    }
+    int count = to - from + 1;
+    if (head) {
+      headers.set("Content-Length", String.valueOf(count));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+    OutputStream os = exchange.getResponseBody();
+    for (int offset = from; offset <= to; offset += CHUNK_SIZE) {
+      int n = Math.min(CHUNK_SIZE, to + 1 - offset);
+      os.write(object.content, offset, n);
+      throttle(n);
+    }
+    os.close();
+  }
+
+  private void initiateUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+    String uploadId = String.valueOf(uploadIds.incrementAndGet());
+    uploads.put(uploadId, new Upload(userMetadata(exchange.getRequestHeaders())));
+    sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + key
+        + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+  }
+
+  private void completeUpload(HttpExchange exchange, String bucket, String key, String uploadId, Upload upload)
+      throws IOException {
+    uploads.remove(uploadId);
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (byte[] part : upload.parts.values()) {
+      content.write(part);
+    }
+    String etag = md5(content.toByteArray()) + "-" + upload.parts.size();
+    objects.put(bucket + "/" + key, new StoredObject(content.toByteArray(), etag, upload.userMetadata));
+    sendXml(exchange, 200, "<CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + bucket + "/" + key
+        + "</Location><Bucket>" + bucket + "</Bucket><Key>" + key + "</Key><ETag>" + quote(etag)
+        + "</ETag></CompleteMultipartUploadResult>");
+  }
+
+  /**
+   * Reads the request body, decoding the {@code aws-chunked} encoding the S3 client uses for signed uploads.
+   */
+  private byte[] readBody(HttpExchange exchange) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[CHUNK_SIZE];
+    try (InputStream is = exchange.getRequestBody()) {
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        body.write(buffer, 0, n);
+        throttle(n);
+      }
+    }
+    String contentSha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+    if (contentSha != null && contentSha.startsWith("STREAMING-")) {
+      return decodeAwsChunked(body.toByteArray());
+    }
+    return body.toByteArray();
+  }
+
+  private static byte[] decodeAwsChunked(byte[] encoded) {
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream(encoded.length);
+    int pos = 0;
+    while (pos < encoded.length) {
+      int lineEnd = pos;
+      while (encoded[lineEnd] != '\r') {
+        lineEnd++;
+      }
+      String header = new String(encoded, pos, lineEnd - pos, UTF_8);
+      int semicolon = header.indexOf(';');
+      int size = Integer.parseInt(semicolon < 0 ? header : header.substring(0, semicolon), 16);
+      if (size == 0) {
+        break;
+      }
+      decoded.write(encoded, lineEnd + 2, size);
+      pos = lineEnd + 2 + size + 2;
+    }
+    return decoded.toByteArray();
+  }
+
+  private static Map<String, String> userMetadata(Headers headers) {
+    Map<String, String> metadata = new HashMap<>();
+    for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+      String name = entry.getKey().toLowerCase(Locale.ROOT);
+      if (name.startsWith("x-amz-meta-")) {
+        metadata.put(name.substring("x-amz-meta-".length()), entry.getValue().get(0));
+      }
+    }
+    return metadata;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery == null) {
+      return query;
+    }
+    for (String parameter : rawQuery.split("&")) {
+      int eq = parameter.indexOf('=');
+      if (eq < 0) {
+        query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+      } else {
+        query.put(URLDecoder.decode(parameter.substring(0, eq), "UTF-8"),
+            URLDecoder.decode(parameter.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return query;
+  }
+
+  private void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+    sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + message + "</Message></Error>");
+  }
+
+  private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+    byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/xml");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(body);
+    }
+  }
+
+  private void delay() {
+    if (latencyMillis > 0) {
+      sleepNanos(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+
+  private void throttle(long bytes) {
+    if (bytesPerSecond > 0) {
+      sleepNanos(bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+  }
+
+  private static void sleepNanos(long nanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static String quote(String etag) {
+    return "\"" + etag + "\"";
+  }
+
+  private static String md5(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b & 0xff));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class StoredObject {
+    final byte[] content;
+    final String etag;
+    final Map<String, String> userMetadata;
+    volatile long lastModified = System.currentTimeMillis();
+
+    StoredObject(byte[] content, String etag, Map<String, String> userMetadata) {
+      this.content = content;
+      this.etag = etag;
+      this.userMetadata = userMetadata;
+    }
+  }
+
+  private static final class Upload {
+    final Map<String, String> userMetadata;
+    final ConcurrentSkipListMap<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+
+    Upload(Map<String, String> userMetadata) {
+      this.userMetadata = userMetadata;
+    }
+  }
+}
@@ -16,8 +16,11 @@
 
 package ch.myniva.gradle.caching.s3;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.gradle.api.Action;
 import org.gradle.caching.configuration.AbstractBuildCache;
 
 public class AwsS3BuildCache extends AbstractBuildCache {
@@ -26,10 +29,56 @@ public class AwsS3BuildCache extends AbstractBuildCache {
   private String path;
   private boolean reducedRedundancy = true;
   private String endpoint;
+  private String readUrl;
   private Map<String, String> headers;
   private String awsAccessKeyId;
   private String awsSecretKey;
   private String sessionToken;
+  private KeyLayout keyLayout;
+  private int keyShards;
+  private boolean legacyKeyFallback;
+  private long missCacheTtlSeconds = 60;
+  private boolean keyIndex;
+  private int keyIndexMaxAgeHours = 24;
+  private boolean recordAccess;
+  private int pruneMaxIdleDays = 30;
+  private long pruneMaxSize;
+  private List<AwsS3Replica> replicas = new ArrayList<>();
+  private boolean replicateStores;
+  private boolean skipExistingEntries = true;
+  private long presenceCacheTtlSeconds = 60;
+  private long multipartThreshold = 16 * 1024 * 1024;
+  private long multipartPartSize = 8 * 1024 * 1024;
+  private int uploadConcurrency = 4;
+  private long downloadPartSize = 8 * 1024 * 1024;
+  private int downloadConcurrency = 4;
+  private int maxConnections;
+  private boolean adaptiveConcurrency = true;
+  private boolean hedgeLoads;
+  private int hedgePercentile = 95;
+  private int hedgeMaxPercent = 5;
+  private String localCacheDirectory;
+  private long localCacheMaxSize = 1024L * 1024 * 1024;
+  private int localCacheMaxAgeDays = 7;
+  private boolean asyncStore;
+  private int asyncStoreQueueSize = 32;
+  private long asyncStoreQueueMaxSize = 64 * 1024 * 1024;
+  private long asyncStoreTimeoutSeconds = 300;
+  private String compression = "none";
+  private int compressionLevel = -1;
+  private boolean chunkedStorage;
+  private int averageChunkSize = 1024 * 1024;
+  private boolean packedStorage;
+  private int packThreshold = 64 * 1024;
+  private long packSize = 4 * 1024 * 1024;
+  private int packMaxAgeDays = 30;
+  private long clientInitTimeoutSeconds = 10;
+  private int circuitBreakerThreshold = 50;
+  private long slowRequestMillis = 10000;
+  private long circuitBreakerProbeSeconds = 30;
+  private String prefetchManifest;
+  private boolean printMetrics;
+  private String metricsReport;
 
   public String getRegion() {
     return region;
@@ -71,6 +120,14 @@ public class AwsS3BuildCache extends AbstractBuildCache {
     this.endpoint = endpoint;
   }
 
+  public String getReadUrl() {
+    return readUrl;
+  }
+
+  public void setReadUrl(String readUrl) {
+    this.readUrl = readUrl;
+  }
+
   public Map<String, String> getHeaders() {
     return headers;
   }
@@ -102,4 +159,373 @@ public class AwsS3BuildCache extends AbstractBuildCache {
   public void setSessionToken(String sessionToken) {
     this.sessionToken = sessionToken;
   }
+
+  public long getMissCacheTtlSeconds() {
+    return missCacheTtlSeconds;
+  }
+
+  public void setMissCacheTtlSeconds(long missCacheTtlSeconds) {
+    this.missCacheTtlSeconds = missCacheTtlSeconds;
+  }
+
+  public long getMultipartThreshold() {
+    return multipartThreshold;
+  }
+
+  public void setMultipartThreshold(long multipartThreshold) {
+    this.multipartThreshold = multipartThreshold;
+  }
+
+  public long getMultipartPartSize() {
+    return multipartPartSize;
+  }
+
+  public void setMultipartPartSize(long multipartPartSize) {
+    this.multipartPartSize = multipartPartSize;
+  }
+
+  public int getUploadConcurrency() {
+    return uploadConcurrency;
+  }
+
+  public void setUploadConcurrency(int uploadConcurrency) {
+    this.uploadConcurrency = uploadConcurrency;
+  }
+
+  public long getDownloadPartSize() {
+    return downloadPartSize;
+  }
+
+  public void setDownloadPartSize(long downloadPartSize) {
+    this.downloadPartSize = downloadPartSize;
+  }
+
+  public int getDownloadConcurrency() {
+    return downloadConcurrency;
+  }
+
+  public void setDownloadConcurrency(int downloadConcurrency) {
+    this.downloadConcurrency = downloadConcurrency;
+  }
+
+  public String getLocalCacheDirectory() {
+    return localCacheDirectory;
+  }
+
+  public void setLocalCacheDirectory(String localCacheDirectory) {
+    this.localCacheDirectory = localCacheDirectory;
+  }
+
+  public long getLocalCacheMaxSize() {
+    return localCacheMaxSize;
+  }
+
+  public void setLocalCacheMaxSize(long localCacheMaxSize) {
+    this.localCacheMaxSize = localCacheMaxSize;
+  }
+
+  public int getLocalCacheMaxAgeDays() {
+    return localCacheMaxAgeDays;
+  }
+
+  public void setLocalCacheMaxAgeDays(int localCacheMaxAgeDays) {
+    this.localCacheMaxAgeDays = localCacheMaxAgeDays;
+  }
+
+  public boolean isAsyncStore() {
+    return asyncStore;
+  }
+
+  public void setAsyncStore(boolean asyncStore) {
+    this.asyncStore = asyncStore;
+  }
+
+  public int getAsyncStoreQueueSize() {
+    return asyncStoreQueueSize;
+  }
+
+  public void setAsyncStoreQueueSize(int asyncStoreQueueSize) {
+    this.asyncStoreQueueSize = asyncStoreQueueSize;
+  }
+
+  public long getAsyncStoreQueueMaxSize() {
+    return asyncStoreQueueMaxSize;
+  }
+
+  public void setAsyncStoreQueueMaxSize(long asyncStoreQueueMaxSize) {
+    this.asyncStoreQueueMaxSize = asyncStoreQueueMaxSize;
+  }
+
+  public long getAsyncStoreTimeoutSeconds() {
+    return asyncStoreTimeoutSeconds;
+  }
+
+  public void setAsyncStoreTimeoutSeconds(long asyncStoreTimeoutSeconds) {
+    this.asyncStoreTimeoutSeconds = asyncStoreTimeoutSeconds;
+  }
+
+  public String getCompression() {
+    return compression;
+  }
+
+  public void setCompression(String compression) {
+    this.compression = compression;
+  }
+
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  public long getClientInitTimeoutSeconds() {
+    return clientInitTimeoutSeconds;
+  }
+
+  public void setClientInitTimeoutSeconds(long clientInitTimeoutSeconds) {
+    this.clientInitTimeoutSeconds = clientInitTimeoutSeconds;
+  }
+
+  public String getPrefetchManifest() {
+    return prefetchManifest;
+  }
+
+  public void setPrefetchManifest(String prefetchManifest) {
+    this.prefetchManifest = prefetchManifest;
+  }
+
+  public boolean isPrintMetrics() {
+    return printMetrics;
+  }
+
+  public void setPrintMetrics(boolean printMetrics) {
+    this.printMetrics = printMetrics;
+  }
+
+  public String getMetricsReport() {
+    return metricsReport;
+  }
+
+  public void setMetricsReport(String metricsReport) {
+    this.metricsReport = metricsReport;
+  }
+
+  public boolean isSkipExistingEntries() {
+    return skipExistingEntries;
+  }
+
+  public void setSkipExistingEntries(boolean skipExistingEntries) {
+    this.skipExistingEntries = skipExistingEntries;
+  }
+
+  public long getPresenceCacheTtlSeconds() {
+    return presenceCacheTtlSeconds;
+  }
+
+  public void setPresenceCacheTtlSeconds(long presenceCacheTtlSeconds) {
+    this.presenceCacheTtlSeconds = presenceCacheTtlSeconds;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  public boolean isAdaptiveConcurrency() {
+    return adaptiveConcurrency;
+  }
+
+  public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+    this.adaptiveConcurrency = adaptiveConcurrency;
+  }
+
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+    this.circuitBreakerThreshold = circuitBreakerThreshold;
+  }
+
+  public long getSlowRequestMillis() {
+    return slowRequestMillis;
+  }
+
+  public void setSlowRequestMillis(long slowRequestMillis) {
+    this.slowRequestMillis = slowRequestMillis;
+  }
+
+  public long getCircuitBreakerProbeSeconds() {
+    return circuitBreakerProbeSeconds;
+  }
+
+  public void setCircuitBreakerProbeSeconds(long circuitBreakerProbeSeconds) {
+    this.circuitBreakerProbeSeconds = circuitBreakerProbeSeconds;
+  }
+
+  public boolean isHedgeLoads() {
+    return hedgeLoads;
+  }
+
+  public void setHedgeLoads(boolean hedgeLoads) {
+    this.hedgeLoads = hedgeLoads;
+  }
+
+  public int getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public void setHedgePercentile(int hedgePercentile) {
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  public int getHedgeMaxPercent() {
+    return hedgeMaxPercent;
+  }
+
+  public void setHedgeMaxPercent(int hedgeMaxPercent) {
+    this.hedgeMaxPercent = hedgeMaxPercent;
+  }
+
+  public KeyLayout getKeyLayout() {
+    return keyLayout;
+  }
+
+  public void setKeyLayout(KeyLayout keyLayout) {
+    this.keyLayout = keyLayout;
+  }
+
+  public int getKeyShards() {
+    return keyShards;
+  }
+
+  public void setKeyShards(int keyShards) {
+    this.keyShards = keyShards;
+  }
+
+  public boolean isLegacyKeyFallback() {
+    return legacyKeyFallback;
+  }
+
+  public void setLegacyKeyFallback(boolean legacyKeyFallback) {
+    this.legacyKeyFallback = legacyKeyFallback;
+  }
+
+  public boolean isChunkedStorage() {
+    return chunkedStorage;
+  }
+
+  public void setChunkedStorage(boolean chunkedStorage) {
+    this.chunkedStorage = chunkedStorage;
+  }
+
+  public int getAverageChunkSize() {
+    return averageChunkSize;
+  }
+
+  public void setAverageChunkSize(int averageChunkSize) {
+    this.averageChunkSize = averageChunkSize;
+  }
+
+  public boolean isPackedStorage() {
+    return packedStorage;
+  }
+
+  public void setPackedStorage(boolean packedStorage) {
+    this.packedStorage = packedStorage;
+  }
+
+  public int getPackThreshold() {
+    return packThreshold;
+  }
+
+  public void setPackThreshold(int packThreshold) {
+    this.packThreshold = packThreshold;
+  }
+
+  public long getPackSize() {
+    return packSize;
+  }
+
+  public void setPackSize(long packSize) {
+    this.packSize = packSize;
+  }
+
+  public int getPackMaxAgeDays() {
+    return packMaxAgeDays;
+  }
+
+  public void setPackMaxAgeDays(int packMaxAgeDays) {
+    this.packMaxAgeDays = packMaxAgeDays;
+  }
+
+  public boolean isKeyIndex() {
+    return keyIndex;
+  }
+
+  public void setKeyIndex(boolean keyIndex) {
+    this.keyIndex = keyIndex;
+  }
+
+  public int getKeyIndexMaxAgeHours() {
+    return keyIndexMaxAgeHours;
+  }
+
+  public void setKeyIndexMaxAgeHours(int keyIndexMaxAgeHours) {
+    this.keyIndexMaxAgeHours = keyIndexMaxAgeHours;
+  }
+
+  public boolean isRecordAccess() {
+    return recordAccess;
+  }
+
+  public void setRecordAccess(boolean recordAccess) {
+    this.recordAccess = recordAccess;
+  }
+
+  public int getPruneMaxIdleDays() {
+    return pruneMaxIdleDays;
+  }
+
+  public void setPruneMaxIdleDays(int pruneMaxIdleDays) {
+    this.pruneMaxIdleDays = pruneMaxIdleDays;
+  }
+
+  public long getPruneMaxSize() {
+    return pruneMaxSize;
+  }
+
+  public void setPruneMaxSize(long pruneMaxSize) {
+    this.pruneMaxSize = pruneMaxSize;
+  }
+
+  public List<AwsS3Replica> getReplicas() {
+    return replicas;
+  }
+
+  public void setReplicas(List<AwsS3Replica> replicas) {
+    this.replicas = replicas;
+  }
+
+  /**
+   * Adds a replica of the bucket configured by the given action.
+   */
+  public void replica(Action<? super AwsS3Replica> action) {
+    AwsS3Replica replica = new AwsS3Replica();
+    action.execute(replica);
+    replicas.add(replica);
+  }
+
+  public boolean isReplicateStores() {
+    return replicateStores;
+  }
+
+  public void setReplicateStores(boolean replicateStores) {
+    this.replicateStores = replicateStores;
+  }
 }
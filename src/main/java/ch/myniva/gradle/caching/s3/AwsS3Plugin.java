@@ -17,19 +17,41 @@
 package ch.myniva.gradle.caching.s3;
 
 import ch.myniva.gradle.caching.s3.internal.AwsS3BuildCacheServiceFactory;
+import ch.myniva.gradle.caching.s3.internal.AbstractBucketTask;
+import ch.myniva.gradle.caching.s3.internal.PruneBucketTask;
+import ch.myniva.gradle.caching.s3.internal.RebuildKeyIndexTask;
+import org.gradle.api.Action;
 import org.gradle.api.Plugin;
+import org.gradle.api.Project;
 import org.gradle.api.initialization.Settings;
 import org.gradle.caching.configuration.BuildCacheConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class AwsS3Plugin implements Plugin<Settings> {
+  static final String REBUILD_INDEX_TASK_NAME = "rebuildS3BuildCacheIndex";
+  static final String PRUNE_TASK_NAME = "pruneS3BuildCache";
+
   private static final Logger logger = LoggerFactory.getLogger(AwsS3Plugin.class);
 
   @Override
   public void apply(Settings settings) {
     logger.info("Registering S3 build cache");
-    BuildCacheConfiguration buildCacheConfiguration = settings.getBuildCache();
+    final BuildCacheConfiguration buildCacheConfiguration = settings.getBuildCache();
     buildCacheConfiguration.registerBuildCacheService(AwsS3BuildCache.class, AwsS3BuildCacheServiceFactory.class);
+    settings.getGradle().rootProject(new Action<Project>() {
+      @Override
+      public void execute(Project project) {
+        AbstractBucketTask rebuildIndex = project.getTasks().create(REBUILD_INDEX_TASK_NAME,
+            RebuildKeyIndexTask.class);
+        rebuildIndex.setDescription("Rebuilds the index of the entries in the S3 build cache bucket.");
+        AbstractBucketTask prune = project.getTasks().create(PRUNE_TASK_NAME, PruneBucketTask.class);
+        prune.setDescription("Deletes the least recently used entries of the S3 build cache bucket.");
+        for (AbstractBucketTask task : new AbstractBucketTask[] {rebuildIndex, prune}) {
+          task.setGroup("build cache");
+          task.setBuildCache(buildCacheConfiguration);
+        }
+      }
+    });
   }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3;
+
+/**
+ * Decides under which object key, relative to the configured {@code path}, a cache entry is stored.
+ *
+ * <p>Built-in layouts are available from {@link KeyLayouts}. Custom layouts can partition the bucket, e.g. by
+ * project or branch, but must map a hash code to the same key in every build that should share the entry.</p>
+ */
+public interface KeyLayout {
+
+  String getObjectKey(String hashCode);
+}
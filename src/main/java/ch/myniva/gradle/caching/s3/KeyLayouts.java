@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3;
+
+/**
+ * The built-in {@link KeyLayout}s.
+ */
+public final class KeyLayouts {
+
+  private static final KeyLayout FLAT = new KeyLayout() {
+    @Override
+    public String getObjectKey(String hashCode) {
+      return hashCode;
+    }
+
+    @Override
+    public String toString() {
+      return "flat";
+    }
+  };
+
+  private KeyLayouts() {
+  }
+
+  /**
+   * Stores every entry directly under the configured path, which is how entries were always stored.
+   */
+  public static KeyLayout flat() {
+    return FLAT;
+  }
+
+  /**
+   * Spreads entries across {@code shards} prefixes derived from their hash code, e.g. {@code 0a/<hash>} for 256
+   * shards, so that S3's request rate limits, which apply per prefix, are multiplied by the number of shards.
+   */
+  public static KeyLayout hashPrefix(int shards) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("Number of shards must be positive");
+    }
+    return new HashPrefixLayout(shards);
+  }
+
+  private static final class HashPrefixLayout implements KeyLayout {
+
+    private final int shards;
+    private final String format;
+
+    HashPrefixLayout(int shards) {
+      this.shards = shards;
+      this.format = "%0" + Math.max(1, Integer.toHexString(shards - 1).length()) + "x/%s";
+    }
+
+    @Override
+    public String getObjectKey(String hashCode) {
+      return String.format(format, shard(hashCode), hashCode);
+    }
+
+    private int shard(String hashCode) {
+      long hash;
+      try {
+        hash = Long.parseLong(hashCode.substring(0, Math.min(8, hashCode.length())), 16);
+      } catch (NumberFormatException e) {
+        // Not a hex hash code, spread by the string's hash instead
+        hash = hashCode.hashCode() & 0xffffffffL;
+      }
+      return (int) (hash % shards);
+    }
+
+    @Override
+    public String toString() {
+      return "hash prefix (" + shards + " shards)";
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.IOException;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.caching.configuration.BuildCache;
+import org.gradle.caching.configuration.BuildCacheConfiguration;
+
+/**
+ * Maintenance task which works on the bucket of the remote S3 build cache.
+ */
+public abstract class AbstractBucketTask extends DefaultTask {
+
+  private BuildCacheConfiguration buildCache;
+
+  @Internal
+  public BuildCacheConfiguration getBuildCache() {
+    return buildCache;
+  }
+
+  public void setBuildCache(BuildCacheConfiguration buildCache) {
+    this.buildCache = buildCache;
+  }
+
+  @TaskAction
+  public void run() throws IOException {
+    BuildCache remote = buildCache != null ? buildCache.getRemote() : null;
+    if (!(remote instanceof AwsS3BuildCache)) {
+      throw new GradleException("The remote build cache is not an S3 build cache");
+    }
+    AwsS3BuildCache config = (AwsS3BuildCache) remote;
+    AmazonS3 s3 = new AwsS3BuildCacheServiceFactory().createS3Client(config);
+    try {
+      run(config, s3);
+    } finally {
+      s3.shutdown();
+    }
+  }
+
+  protected abstract void run(AwsS3BuildCache config, AmazonS3 s3) throws IOException;
+}
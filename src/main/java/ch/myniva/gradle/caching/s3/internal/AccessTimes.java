@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+/**
+ * The time each key was last accessed at, with a resolution of one hour, for a large number of keys.
+ *
+ * <p>Keys are stored as their 64-bit hashes in an open addressing table of primitives, so that millions of keys
+ * take a few dozen megabytes. Two keys with equal hashes share their access time. It is filled by one thread,
+ * after which several threads may read it.</p>
+ */
+class AccessTimes {
+
+  private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+  private static final double MAX_LOAD = 0.6;
+
+  private long[] hashes = new long[1024];
+  private int[] hours = new int[1024];
+  private int size;
+
+  /**
+   * Records that the key was accessed at the given time, unless it is known to be accessed later.
+   */
+  void record(String key, long accessedAt) {
+    if (size + 1 > hashes.length * MAX_LOAD) {
+      grow();
+    }
+    put(BloomFilter.hash(key), (int) (accessedAt / HOUR_MILLIS) + 1);
+  }
+
+  /**
+   * Returns the time the key was last accessed at, rounded down to the hour, or {@code 0} if it was not accessed.
+   */
+  long getLastAccess(String key) {
+    long hash = BloomFilter.hash(key);
+    int mask = hashes.length - 1;
+    for (int i = slot(hash, mask); hours[i] != 0; i = (i + 1) & mask) {
+      if (hashes[i] == hash) {
+        return (hours[i] - 1) * HOUR_MILLIS;
+      }
+    }
+    return 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void put(long hash, int hour) {
+    int mask = hashes.length - 1;
+    int i = slot(hash, mask);
+    // Hours are stored plus one so that 0 marks a free slot
+    while (hours[i] != 0) {
+      if (hashes[i] == hash) {
+        hours[i] = Math.max(hours[i], hour);
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    hashes[i] = hash;
+    hours[i] = hour;
+    size++;
+  }
+
+  private void grow() {
+    long[] oldHashes = hashes;
+    int[] oldHours = hours;
+    hashes = new long[oldHashes.length * 2];
+    hours = new int[oldHours.length * 2];
+    size = 0;
+    for (int i = 0; i < oldHashes.length; i++) {
+      if (oldHours[i] != 0) {
+        put(oldHashes[i], oldHours[i]);
+      }
+    }
+  }
+
+  private static int slot(long hash, int mask) {
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
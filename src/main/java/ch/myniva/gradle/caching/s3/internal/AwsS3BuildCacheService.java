@@ -16,16 +16,39 @@
 
 package ch.myniva.gradle.caching.s3.internal;
 
+import ch.myniva.gradle.caching.s3.KeyLayout;
+import ch.myniva.gradle.caching.s3.KeyLayouts;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipException;
 
 import com.amazonaws.services.s3.model.StorageClass;
+import org.gradle.api.logging.Logging;
 import org.gradle.caching.BuildCacheEntryReader;
 import org.gradle.caching.BuildCacheEntryWriter;
 import org.gradle.caching.BuildCacheException;
@@ -37,73 +60,1226 @@ import org.slf4j.LoggerFactory;
 public class AwsS3BuildCacheService implements BuildCacheService {
 
   private static final String BUILD_CACHE_CONTENT_TYPE = "application/vnd.gradle.build-cache-artifact";
+  static final String CHUNKS_PREFIX = "chunks/";
+  static final String MANIFESTS_PREFIX = "manifests/";
+  static final String ACCESS_LOG_PREFIX = "access/";
+  private static final String PROBE_NAME = "index/probe";
+  private static final long PACK_INDEX_WAIT_SECONDS = 10;
   private static final Logger logger = LoggerFactory.getLogger(AwsS3BuildCacheService.class);
 
-  private final AmazonS3 s3;
+  private final LazyS3Client s3Client;
   private final String bucketName;
   private final String path;
   private final boolean reducedRedundancy;
+  private KeyLayout keyLayout = KeyLayouts.flat();
+  private boolean legacyKeyFallback;
+  private volatile boolean remoteDisabled;
+  private CircuitBreaker circuitBreaker = CircuitBreaker.disabled();
+  private ExpiringKeyCache missCache = ExpiringKeyCache.misses();
+  private long missCacheTtlMillis;
+  private ExpiringKeyCache presenceCache = ExpiringKeyCache.presences();
+  private long presenceCacheTtlMillis;
+  private boolean skipExistingEntries;
+  private final ConcurrentMap<String, Boolean> pendingStores = new ConcurrentHashMap<>();
+  private final Set<String> brokenEntries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private BufferPool bufferPool = BufferPool.shared();
+  private final LoadCoalescer loadCoalescer = new LoadCoalescer(bufferPool, LoadCoalescer.DEFAULT_SPILL_THRESHOLD);
+  private MultipartUploader multipartUploader;
+  private long multipartThreshold = Long.MAX_VALUE;
+  private ParallelDownloader parallelDownloader;
+  private HedgedRequests hedging;
+  private LocalDiskTier localTier;
+  private WriteBehindQueue writeBehindQueue;
+  private long writeBehindTimeoutMillis;
+  private EntryCodec codec = EntryCodecs.NONE;
+  private ChunkStore chunkStore;
+  private int averageChunkSize;
+  private final KeyManifest manifest = new KeyManifest();
+  private final CacheMetrics metrics = new CacheMetrics();
+  private boolean printMetrics;
+  private File metricsReport;
+  private String manifestPath;
+  private boolean writeManifest;
+  private ExecutorService prefetchExecutor;
+  private KeyIndex keyIndex;
+  private ExecutorService keyIndexExecutor;
+  private KeyManifest accessed;
+  private PackStore packStore;
+  private ExecutorService packExecutor;
+  private Future<Boolean> packIndexRefresh;
+  private long packIndexDeadline;
+  private final AtomicBoolean packIndexMissed = new AtomicBoolean();
+  private final AtomicBoolean packFlushScheduled = new AtomicBoolean();
+  private S3ClientRegistry.Lease readClient;
 
   AwsS3BuildCacheService(AmazonS3 s3, String bucketName, String path, boolean reducedRedundancy) {
-    this.s3 = s3;
+    this(LazyS3Client.of(s3), bucketName, path, reducedRedundancy);
+  }
+
+  AwsS3BuildCacheService(LazyS3Client s3Client, String bucketName, String path, boolean reducedRedundancy) {
+    this.s3Client = s3Client;
     this.bucketName = bucketName;
     this.path = path;
     this.reducedRedundancy = reducedRedundancy;
   }
 
+  void setMissCache(ExpiringKeyCache missCache, long ttlMillis) {
+    this.missCache = missCache;
+    this.missCacheTtlMillis = ttlMillis;
+  }
+
+  /**
+   * Stores entries under the keys of the given layout. With {@code legacyKeyFallback} entries which are not found
+   * there are looked up directly under the path as well, where they were stored before layouts existed.
+   */
+  void setKeyLayout(KeyLayout keyLayout, boolean legacyKeyFallback) {
+    this.keyLayout = keyLayout;
+    this.legacyKeyFallback = legacyKeyFallback;
+  }
+
+  void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  void setPresenceCache(ExpiringKeyCache presenceCache, long ttlMillis) {
+    this.presenceCache = presenceCache;
+    this.presenceCacheTtlMillis = ttlMillis;
+  }
+
+  /**
+   * Makes {@link #store} check whether an entry already exists in the bucket before it asks Gradle for the entry's
+   * content, and upload single-part entries only if they still do not exist once the upload starts.
+   */
+  void setSkipExistingEntries(boolean skipExistingEntries) {
+    this.skipExistingEntries = skipExistingEntries;
+  }
+
+  /**
+   * Entries larger than {@code threshold} bytes are spilled to disk and uploaded in parts by the given uploader.
+   */
+  void setMultipartUploader(MultipartUploader multipartUploader, long threshold) {
+    this.multipartUploader = multipartUploader;
+    this.multipartThreshold = threshold;
+  }
+
+  void setParallelDownloader(ParallelDownloader parallelDownloader) {
+    this.parallelDownloader = parallelDownloader;
+  }
+
+  /**
+   * Sends GET requests of loads a second time when they are slow to respond.
+   */
+  void setHedging(HedgedRequests hedging) {
+    this.hedging = hedging;
+  }
+
+  void setLocalTier(LocalDiskTier localTier) {
+    this.localTier = localTier;
+  }
+
+  /**
+   * Makes {@link #store} return as soon as the entry is captured, the upload happens on the given queue which is
+   * drained for at most {@code timeoutMillis} when the service is closed.
+   */
+  void setWriteBehindQueue(WriteBehindQueue writeBehindQueue, long timeoutMillis) {
+    this.writeBehindQueue = writeBehindQueue;
+    this.writeBehindTimeoutMillis = timeoutMillis;
+  }
+
+  void setCodec(EntryCodec codec) {
+    this.codec = codec;
+  }
+
+  /**
+   * Reads entries stored in chunks, fetching the chunks on the given executor. If {@code averageChunkSize} is
+   * positive new entries are split into chunks of about that size as well, and only the chunks which are not in
+   * the bucket yet are uploaded. Uses the presence cache, which must be set before.
+   */
+  void setChunking(ExecutorService executor, int concurrency, int averageChunkSize) {
+    this.chunkStore = new ChunkStore(bucketName, getBucketPath(CHUNKS_PREFIX), executor, concurrency, presenceCache,
+        presenceCacheTtlMillis);
+    this.averageChunkSize = averageChunkSize;
+  }
+
+  /**
+   * Records the keys used by this build in the manifest with the given name, and prefetches the entries listed in
+   * the manifest of the previous build into the local tier on the given executor.
+   */
+  void setPrefetch(String manifestName, ExecutorService executor, boolean writeManifest) {
+    this.manifestPath = getBucketPath(MANIFESTS_PREFIX + manifestName);
+    this.prefetchExecutor = executor;
+    this.writeManifest = writeManifest;
+  }
+
+  /**
+   * Answers lookups of entries which are not in the index of the bucket without asking S3, once the index is
+   * loaded on the given executor. Indexes built more than {@code maxAgeMillis} ago are not used.
+   */
+  void setKeyIndex(long maxAgeMillis, ExecutorService executor) {
+    this.keyIndex = new KeyIndex(bucketName, getBucketPath(KeyIndex.INDEX_NAME), getBucketPath(KeyIndex.DELTA_PREFIX),
+        maxAgeMillis);
+    this.keyIndexExecutor = executor;
+  }
+
+  /**
+   * Stores entries of at most {@code threshold} bytes in packs of about {@code packSize} bytes instead of objects
+   * of their own. Packs older than {@code maxAgeMillis} are considered expired. The indexes of the packs are read
+   * on the given executor, which must have at least two threads.
+   */
+  void setPacking(int threshold, long packSize, long maxAgeMillis, ExecutorService executor) {
+    String indexPrefix = getBucketPath(PackStore.INDEX_PREFIX);
+    this.packStore = new PackStore(bucketName, getBucketPath(PackStore.DATA_PREFIX), indexPrefix,
+        PackIndex.shared(bucketName, indexPrefix, getBucketPath(PackIndex.SNAPSHOT_NAME), maxAgeMillis), threshold,
+        packSize);
+    this.packExecutor = executor;
+  }
+
+  /**
+   * Makes loads read entries, their chunks and packs with the given client instead of the S3 client, which is then
+   * only used to store entries and for the indexes and logs kept in the bucket. The lease is closed with the service.
+   */
+  void setReadClient(S3ClientRegistry.Lease readClient) {
+    this.readClient = readClient;
+  }
+
+  /**
+   * Makes the service write the keys of the entries this build loaded into an access log when it is closed.
+   */
+  void setRecordAccess(boolean recordAccess) {
+    this.accessed = recordAccess ? new KeyManifest() : null;
+  }
+
+  /**
+   * Prints the metrics summary at the end of the build on lifecycle instead of info level if {@code print} is
+   * set, and writes a JSON report to the given file if there is one.
+   */
+  void setMetricsReporting(boolean print, File report) {
+    this.printMetrics = print;
+    this.metricsReport = report;
+  }
+
+  /**
+   * Whether requests are sent to S3, i.e. the client could be created and the circuit breaker is not open.
+   */
+  boolean isAvailable() {
+    return !remoteDisabled && !circuitBreaker.isOpen();
+  }
+
+  /**
+   * Sends a cheap request to the bucket and returns how long it took in nanoseconds, or {@code -1} if the remote
+   * cache is disabled for this build.
+   */
+  long probe() {
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return -1;
+    }
+    long start = System.nanoTime();
+    s3.doesObjectExist(bucketName, getBucketPath(PROBE_NAME));
+    return System.nanoTime() - start;
+  }
+
+  CacheMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void reportMetrics() {
+    if (metrics.isEmpty()) {
+      return;
+    }
+    if (printMetrics) {
+      Logging.getLogger(AwsS3BuildCacheService.class).lifecycle(metrics.getSummary());
+    } else {
+      logger.info(metrics.getSummary());
+    }
+    if (metricsReport != null) {
+      try {
+        metrics.writeJson(metricsReport);
+      } catch (IOException e) {
+        logger.warn("Could not write S3 build cache metrics to '{}': {}", metricsReport, e.getMessage());
+      }
+    }
+  }
+
+  void startPrefetch() {
+    if (prefetchExecutor == null || localTier == null) {
+      return;
+    }
+    prefetchExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          List<String> keys = readManifest();
+          logger.info("Prefetching {} cache entries listed in manifest '{}'", keys.size(), manifestPath);
+          for (final String hashCode : keys) {
+            prefetchExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  prefetch(hashCode);
+                } catch (IOException | RuntimeException e) {
+                  logger.debug("Could not prefetch cache entry '{}': {}", hashCode, e.getMessage());
+                }
+              }
+            });
+          }
+        } catch (IOException | RuntimeException e) {
+          logger.info("Could not read cache manifest '{}': {}", manifestPath, e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Loads the index in the background, lookups ask S3 until it is loaded.
+   */
+  void startKeyIndex() {
+    if (keyIndex == null) {
+      return;
+    }
+    keyIndexExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        AmazonS3 s3 = s3();
+        if (s3 == null) {
+          return;
+        }
+        try {
+          keyIndex.load(s3);
+        } catch (IOException | RuntimeException e) {
+          logger.info("Could not read S3 build cache index: {}", e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Reads the indexes of the packs written since the last build in the background. Loads wait for this until at
+   * most {@link #PACK_INDEX_WAIT_SECONDS} after the start, so that packed entries are not reported as misses.
+   */
+  void startPacks() {
+    if (packStore == null) {
+      return;
+    }
+    packIndexDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PACK_INDEX_WAIT_SECONDS);
+    packIndexRefresh = packExecutor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        AmazonS3 s3 = s3();
+        if (s3 == null) {
+          return false;
+        }
+        try {
+          int read = packStore.refresh(s3, packExecutor);
+          logger.info("Read {} pack indexes from S3 bucket", read);
+          return true;
+        } catch (IOException | RuntimeException e) {
+          logger.info("Could not read S3 build cache pack indexes: {}", e.getMessage());
+          return false;
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until the pack indexes have been read. All loads wait for the same deadline, once it has passed or the
+   * indexes could not be read, loads go on without the packs which are not known yet.
+   */
+  private void awaitPackIndex() throws IOException {
+    Future<Boolean> refresh = packIndexRefresh;
+    if (refresh == null) {
+      return;
+    }
+    boolean read;
+    try {
+      read = refresh.get(Math.max(0, packIndexDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading pack indexes");
+    } catch (ExecutionException | TimeoutException e) {
+      read = false;
+    }
+    if (!read && packIndexMissed.compareAndSet(false, true)) {
+      logger.warn("Could not read S3 build cache pack indexes in time, recently packed entries may not be found");
+    }
+  }
+
+  private List<String> readManifest() throws IOException {
+    AmazonS3 s3 = s3();
+    S3Object object = s3 != null ? getObject(s3, manifestPath, new ResponseTimer()) : null;
+    if (object == null) {
+      return Collections.emptyList();
+    }
+    try (InputStream is = object.getObjectContent()) {
+      return KeyManifest.read(is);
+    }
+  }
+
+  private void prefetch(String hashCode) throws IOException {
+    InputStream local = localTier.open(hashCode);
+    if (local != null) {
+      local.close();
+      return;
+    }
+    AmazonS3 s3 = reads();
+    S3Object object = s3 != null ? getEntry(s3, hashCode, new ResponseTimer()) : null;
+    if (object == null) {
+      return;
+    }
+    try (InputStream content = object.getObjectContent()) {
+      if (ChunkManifest.isManifest(object.getObjectMetadata())) {
+        // Fetching the chunks copies them into the local tier
+        if (chunkStore != null) {
+          try (InputStream chunks = chunkStore.open(s3, ChunkManifest.read(content), localTier)) {
+            copy(chunks, null);
+          }
+        }
+        return;
+      }
+      ObjectMetadata meta = object.getObjectMetadata();
+      InputStream decoded = EntryCodecs.forMetadata(meta).decode(content);
+      localTier.put(hashCode, EntryChecksums.verify(decoded, meta)).close();
+    }
+  }
+
+  private void writeManifest() {
+    if (!writeManifest || manifest.isEmpty() || circuitBreaker.isOpen()) {
+      return;
+    }
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return;
+    }
+    SpoolingOutputStream os = new SpoolingOutputStream(bufferPool, Long.MAX_VALUE);
+    try {
+      try {
+        manifest.writeTo(os);
+      } finally {
+        os.close();
+      }
+      ObjectMetadata meta = new ObjectMetadata();
+      meta.setContentLength(os.size());
+      try (InputStream is = os.openInputStream()) {
+        s3.putObject(new PutObjectRequest(bucketName, manifestPath, is, meta));
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not store cache manifest '{}': {}", manifestPath, e.getMessage());
+    } finally {
+      os.discard();
+    }
+  }
+
+  private void writeIndexDelta() {
+    if (circuitBreaker.isOpen()) {
+      return;
+    }
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return;
+    }
+    try {
+      keyIndex.writeDelta(s3);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not store delta of S3 build cache index: {}", e.getMessage());
+    }
+  }
+
+  private void writeAccessLog() {
+    if (accessed == null || accessed.isEmpty() || circuitBreaker.isOpen()) {
+      return;
+    }
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return;
+    }
+    try {
+      KeyLogs.write(s3, bucketName, getBucketPath(ACCESS_LOG_PREFIX), accessed);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not store access log of S3 build cache: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the S3 client, or {@code null} if the remote cache is disabled for this build because the client
+   * could not be created within its budget.
+   */
+  private AmazonS3 s3() {
+    if (remoteDisabled) {
+      return null;
+    }
+    try {
+      return s3Client.get();
+    } catch (IOException e) {
+      if (!remoteDisabled) {
+        remoteDisabled = true;
+        logger.warn("S3 build cache is disabled for this build: {}", e.getMessage());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Returns the client entries are read with.
+   */
+  private AmazonS3 reads() {
+    return readClient != null ? readClient.getClient() : s3();
+  }
+
   private String getBucketPath(BuildCacheKey key) {
+    return getBucketPath(keyLayout.getObjectKey(key.getHashCode()));
+  }
+
+  private String getBucketPath(String name) {
+    return getBucketPath(path, name);
+  }
+
+  static String getBucketPath(String path, String name) {
     if (path == null || path.length() == 0) {
-      return key.getHashCode();
+      return name;
     }
-    return (path+"/"+key.getHashCode()).replaceAll("[/]+", "/");
+    return (path+"/"+name).replaceAll("[/]+", "/");
+  }
+
+  /**
+   * The prefixes below the given path which hold anything but entries.
+   */
+  static List<String> getNonEntryPrefixes(String path) {
+    return Arrays.asList(getBucketPath(path, CHUNKS_PREFIX), getBucketPath(path, MANIFESTS_PREFIX),
+        getBucketPath(path, "index/"), getBucketPath(path, ACCESS_LOG_PREFIX), getBucketPath(path, "packs/"));
   }
 
   @Override
   public boolean load(BuildCacheKey key, BuildCacheEntryReader reader) {
     final String bucketPath = getBucketPath(key);
-    if (s3.doesObjectExist(bucketName, bucketPath)) {
+    long start = System.nanoTime();
+    boolean remote = false;
+    try {
+      if (localTier != null) {
+        InputStream local = localTier.open(key.getHashCode());
+        if (local != null) {
+          logger.info("Found cache item '{}' in local directory", bucketPath);
+          recordKey(key);
+          recordAccess(bucketPath);
+          try (InputStream is = local) {
+            reader.readFrom(is);
+          }
+          metrics.localHit();
+          return true;
+        }
+      }
+      boolean mayBePacked = false;
+      if (packStore != null) {
+        awaitPackIndex();
+        mayBePacked = packStore.contains(key.getHashCode());
+      }
+      // Packed entries are not in the key index, and may have been recorded as missing before they were packed
+      if (!mayBePacked && missCache.contains(bucketName, bucketPath)) {
+        logger.info("Cache item '{}' was recently missing in S3 bucket, skipping lookup", bucketPath);
+        metrics.cachedMiss();
+        return false;
+      }
+      if (!mayBePacked && keyIndex != null && isMissingFromIndex(key.getHashCode(), bucketPath)) {
+        logger.info("Cache item '{}' is not in the index of the S3 bucket, skipping lookup", bucketPath);
+        metrics.cachedMiss();
+        return false;
+      }
+      if (!circuitBreaker.allowRequest()) {
+        metrics.cachedMiss();
+        return false;
+      }
+      final AmazonS3 s3 = reads();
+      if (s3 == null) {
+        return false;
+      }
+      remote = true;
+      final String hashCode = key.getHashCode();
+      final ResponseTimer timer = new ResponseTimer();
+      S3Object object = loadCoalescer.getObject(bucketPath, new Callable<S3Object>() {
+        @Override
+        public S3Object call() throws IOException {
+          return getEntry(s3, hashCode, timer);
+        }
+      }, timer);
+      // The breaker judges S3 by the time to its first response, the transfer time depends on the size of the entry
+      long firstByteNanos = timer.getResponseNanos();
+      if (object == null) {
+        logger.info("Did not find cache item '{}' in S3 bucket", bucketPath);
+        if (!mayBePacked) {
+          missCache.record(bucketName, bucketPath, missCacheTtlMillis);
+        }
+        metrics.miss(System.nanoTime() - start);
+        circuitBreaker.onSuccess(firstByteNanos);
+        return false;
+      }
       logger.info("Found cache item '{}' in S3 bucket", bucketPath);
-      S3Object object = s3.getObject(bucketName, bucketPath);
-      try (InputStream is = object.getObjectContent()) {
-        reader.readFrom(is);
-        return true;
-      } catch (IOException e) {
-        throw new BuildCacheException("Error while reading cache object from S3 bucket", e);
+      if (ChunkManifest.isManifest(object.getObjectMetadata())) {
+        return loadChunks(key, bucketPath, s3, object, reader, start, firstByteNanos);
       }
-    } else {
-      logger.info("Did not find cache item '{}' in S3 bucket", bucketPath);
+      EntryCodec objectCodec;
+      try {
+        objectCodec = EntryCodecs.forMetadata(object.getObjectMetadata());
+      } catch (IllegalArgumentException e) {
+        logger.warn("Ignoring cache item '{}' in S3 bucket: {}", bucketPath, e.getMessage());
+        object.getObjectContent().close();
+        metrics.miss(System.nanoTime() - start);
+        circuitBreaker.onSuccess(firstByteNanos);
+        return false;
+      }
+      try (InputStream content = object.getObjectContent()) {
+        InputStream decoded;
+        InputStream verified;
+        InputStream is;
+        try {
+          decoded = objectCodec.decode(content);
+          verified = EntryChecksums.verify(decoded, object.getObjectMetadata());
+          is = openContent(key, verified);
+        } catch (EntryChecksums.ChecksumMismatchException | ZipException e) {
+          // The local tier reads the whole entry before the reader gets it, so this can still be a miss
+          ignoreCorrupt(bucketPath, e);
+          metrics.miss(System.nanoTime() - start);
+          circuitBreaker.onSuccess(firstByteNanos);
+          return false;
+        }
+        try (InputStream entry = is) {
+          reader.readFrom(entry);
+          if (verified != decoded && localTier == null) {
+            // The checksum is verified at the end, which the reader might not have read up to
+            copy(entry, null);
+          }
+        } catch (EntryChecksums.ChecksumMismatchException | ZipException e) {
+          ignoreCorrupt(bucketPath, e);
+          throw e;
+        }
+      }
+      metrics.hit(System.nanoTime() - start, getContentLength(object));
+      circuitBreaker.onSuccess(firstByteNanos);
+      presenceCache.record(bucketName, bucketPath, presenceCacheTtlMillis);
+      recordKey(key);
+      recordAccess(bucketPath);
+      return true;
+    } catch (IOException e) {
+      loadFailed(remote, System.nanoTime() - start);
+      throw new BuildCacheException("Error while reading cache object from S3 bucket", e);
+    } catch (RuntimeException e) {
+      loadFailed(remote, System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  /**
+   * Loads an entry stored in chunks. The chunks are assembled before the entry is handed to the reader, so that a
+   * chunk which has expired before the manifest turns the load into a miss instead of a failure.
+   */
+  private boolean loadChunks(BuildCacheKey key, String bucketPath, AmazonS3 s3, S3Object object,
+      BuildCacheEntryReader reader, long start, long firstByteNanos) throws IOException {
+    ChunkManifest chunks;
+    try (InputStream is = object.getObjectContent()) {
+      chunks = ChunkManifest.read(is);
+    }
+    if (chunkStore == null) {
+      logger.warn("Ignoring cache item '{}' in S3 bucket: it is stored in chunks", bucketPath);
+      metrics.miss(System.nanoTime() - start);
+      circuitBreaker.onSuccess(firstByteNanos);
       return false;
     }
+    SpoolingOutputStream content = new SpoolingOutputStream(bufferPool, LoadCoalescer.DEFAULT_SPILL_THRESHOLD);
+    try {
+      long downloaded;
+      try (ChunkStore.ChunkedInputStream is = chunkStore.open(s3, chunks, localTier)) {
+        copy(EntryChecksums.verify(is, object.getObjectMetadata()), content);
+        downloaded = is.getDownloadedBytes();
+      } catch (EntryChecksums.ChecksumMismatchException | ChunkStore.CorruptChunkException e) {
+        ignoreCorrupt(bucketPath, e);
+        metrics.miss(System.nanoTime() - start);
+        circuitBreaker.onSuccess(firstByteNanos);
+        return false;
+      } catch (ChunkStore.MissingChunkException e) {
+        logger.info("Ignoring cache item '{}' in S3 bucket: {}", bucketPath, e.getMessage());
+        // Lets the next store replace the manifest
+        brokenEntries.add(bucketPath);
+        presenceCache.invalidate(bucketName, bucketPath);
+        metrics.miss(System.nanoTime() - start);
+        circuitBreaker.onSuccess(firstByteNanos);
+        return false;
+      } finally {
+        content.close();
+      }
+      try (InputStream is = content.openInputStream()) {
+        reader.readFrom(is);
+      }
+      metrics.hit(System.nanoTime() - start, downloaded + getContentLength(object));
+    } finally {
+      content.discard();
+    }
+    circuitBreaker.onSuccess(firstByteNanos);
+    presenceCache.record(bucketName, bucketPath, presenceCacheTtlMillis);
+    recordKey(key);
+    recordAccess(bucketPath);
+    return true;
+  }
+
+  /**
+   * Copies the stream into the given one, or just reads it to its end if there is none.
+   */
+  private void copy(InputStream is, OutputStream os) throws IOException {
+    byte[] buffer = bufferPool.acquire();
+    try {
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        if (os != null) {
+          os.write(buffer, 0, read);
+        }
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Stops treating an entry whose content does not match its checksum or can't be decoded as present, so that the
+   * next store replaces it.
+   */
+  private void ignoreCorrupt(String bucketPath, IOException e) {
+    logger.warn("Ignoring corrupt cache item '{}' in S3 bucket: {}", bucketPath, e.getMessage());
+    brokenEntries.add(bucketPath);
+    presenceCache.invalidate(bucketName, bucketPath);
+  }
+
+  private void loadFailed(boolean remote, long nanos) {
+    metrics.loadError(nanos);
+    if (remote) {
+      circuitBreaker.onFailure(nanos);
+    }
+  }
+
+  private void recordKey(BuildCacheKey key) {
+    if (manifestPath != null) {
+      manifest.record(key.getHashCode());
+    }
+  }
+
+  private void recordAccess(String bucketPath) {
+    if (accessed != null) {
+      accessed.record(bucketPath);
+    }
+  }
+
+  /**
+   * Returns the decoded content of an object, copied into the local tier first if there is one.
+   */
+  private InputStream openContent(BuildCacheKey key, InputStream content) throws IOException {
+    if (localTier == null) {
+      return content;
+    }
+    return localTier.put(key.getHashCode(), content);
+  }
+
+  /**
+   * Gets the entry with the given hash code from its pack, from where the key layout puts it, or from where it was
+   * stored before if the legacy fallback is enabled.
+   */
+  private S3Object getEntry(AmazonS3 s3, String hashCode, ResponseTimer timer) throws IOException {
+    if (packStore != null) {
+      S3Object packed = packStore.getObject(s3, hashCode, localTier);
+      if (packed != null) {
+        return packed;
+      }
+    }
+    String bucketPath = getBucketPath(keyLayout.getObjectKey(hashCode));
+    S3Object object = getObject(s3, bucketPath, timer);
+    if (object == null && legacyKeyFallback) {
+      String legacyPath = getBucketPath(hashCode);
+      if (!legacyPath.equals(bucketPath)) {
+        object = getObject(s3, legacyPath, timer);
+        if (object != null) {
+          logger.info("Found cache item '{}' in S3 bucket under its legacy key '{}'", bucketPath, legacyPath);
+        }
+      }
+    }
+    return object;
+  }
+
+  /**
+   * Fetches the object with a single GET request, or as parallel ranged GETs for large objects if configured. A
+   * missing object is reported as {@code null} instead of paying for an additional existence check up front.
+   */
+  private S3Object getObject(AmazonS3 s3, String bucketPath, ResponseTimer timer) throws IOException {
+    try {
+      if (parallelDownloader != null) {
+        return parallelDownloader.getObject(s3, bucketName, bucketPath, timer);
+      }
+      GetObjectRequest request = new GetObjectRequest(bucketName, bucketPath);
+      S3Object object = hedging != null ? hedging.getObject(s3, request) : s3.getObject(request);
+      timer.responded();
+      return object;
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        timer.responded();
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private boolean isMissingFromIndex(String hashCode, String bucketPath) {
+    return keyIndex.isMissing(bucketPath) && (!legacyKeyFallback || keyIndex.isMissing(getBucketPath(hashCode)));
   }
 
   @Override
   public void store(BuildCacheKey key, BuildCacheEntryWriter writer) {
-    final String bucketPath = getBucketPath(key);
+    String bucketPath = reserveStore(key);
+    if (bucketPath == null) {
+      return;
+    }
     logger.info("Start storing cache entry '{}' in S3 bucket", bucketPath);
+    CapturedEntry entry;
+    try {
+      entry = capture(writer);
+    } catch (IOException e) {
+      cancelStore(bucketPath);
+      throw new BuildCacheException("Error while storing cache object in S3 bucket", e);
+    } catch (RuntimeException e) {
+      cancelStore(bucketPath);
+      throw e;
+    }
+    store(key, bucketPath, entry);
+  }
+
+  /**
+   * Runs the checks which skip a store before the entry is captured. Returns the bucket path reserved for the store,
+   * which must be passed to {@link #store(BuildCacheKey, String, CapturedEntry)} or released with
+   * {@link #cancelStore}, or {@code null} if the entry is not stored.
+   */
+  String reserveStore(BuildCacheKey key) {
+    if (remoteDisabled) {
+      return null;
+    }
+    String bucketPath = getBucketPath(key);
+    boolean broken = brokenEntries.contains(bucketPath);
+    if (!broken && (presenceCache.contains(bucketName, bucketPath)
+        || packStore != null && packStore.contains(key.getHashCode()))) {
+      logger.info("Cache entry '{}' was recently found in S3 bucket, skipping store", bucketPath);
+      recordKey(key);
+      metrics.skippedStore();
+      return null;
+    }
+    if (!circuitBreaker.allowRequest()) {
+      metrics.skippedStore();
+      return null;
+    }
+    if (pendingStores.putIfAbsent(bucketPath, Boolean.TRUE) != null) {
+      logger.info("Cache entry '{}' is already being stored, skipping store", bucketPath);
+      recordKey(key);
+      metrics.skippedStore();
+      return null;
+    }
+    boolean reserved = false;
+    try {
+      // With packing the pack index tells which entries exist, and entries which are not packed are put conditionally.
+      // A recent miss makes the HEAD pointless, the conditional put covers an entry stored by another build since.
+      if (skipExistingEntries && !broken && packStore == null && !missCache.contains(bucketName, bucketPath)
+          && existsRemotely(bucketPath)) {
+        logger.info("Cache entry '{}' already exists in S3 bucket, skipping store", bucketPath);
+        presenceCache.record(bucketName, bucketPath, presenceCacheTtlMillis);
+        recordKey(key);
+        metrics.skippedStore();
+        return null;
+      }
+      reserved = true;
+      return bucketPath;
+    } finally {
+      if (!reserved) {
+        pendingStores.remove(bucketPath);
+      }
+    }
+  }
+
+  void cancelStore(String bucketPath) {
+    pendingStores.remove(bucketPath);
+  }
+
+  /**
+   * Stores an entry under a bucket path reserved with {@link #reserveStore}. The entry may have been captured by a
+   * service with the same configuration, such as another replica of the bucket. It is discarded, and the bucket
+   * path released, once the entry was stored.
+   */
+  void store(BuildCacheKey key, String bucketPath, CapturedEntry entry) {
+    boolean queued = false;
+    try {
+      queued = upload(key, bucketPath, entry);
+    } finally {
+      if (!queued) {
+        pendingStores.remove(bucketPath);
+      }
+    }
+  }
+
+  /**
+   * Captures the content of an entry the way this service stores it, so that it can be stored by several services
+   * with {@link #store(BuildCacheKey, String, CapturedEntry)} without asking Gradle for it again.
+   */
+  CapturedEntry capture(BuildCacheEntryWriter writer) throws IOException {
     ObjectMetadata meta = new ObjectMetadata();
     meta.setContentType(BUILD_CACHE_CONTENT_TYPE);
+    SpoolingOutputStream os = new SpoolingOutputStream(bufferPool, multipartThreshold);
+    try {
+      List<ChunkManifest.Chunk> chunks = capture(writer, os, meta);
+      return new CapturedEntry(os, meta, chunks);
+    } catch (IOException | RuntimeException e) {
+      os.discard();
+      throw e;
+    }
+  }
 
-    try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-      writer.writeTo(os);
-      meta.setContentLength(os.size());
-      try (InputStream is = new ByteArrayInputStream(os.toByteArray())) {
+  /**
+   * Uploads a captured entry and discards it afterwards. Returns whether the upload was handed to the write-behind
+   * queue.
+   */
+  private boolean upload(BuildCacheKey key, final String bucketPath, CapturedEntry entry) {
+    final SpoolingOutputStream os = entry.content;
+    final List<ChunkManifest.Chunk> chunks = entry.chunks;
+    boolean queued = false;
+    try {
+      // The metadata gets the content length of this upload
+      final ObjectMetadata meta = entry.meta.clone();
+      recordKey(key);
+      if (packStore != null && chunks == null && packStore.add(key.getHashCode(), os, meta)) {
+        logger.info("Added cache entry '{}' to the next pack", bucketPath);
+        brokenEntries.remove(bucketPath);
+        // Not recorded as present, a pack which fails to upload takes its entries with it
+        missCache.invalidate(bucketName, bucketPath);
+        if (keyIndex != null) {
+          keyIndex.recordStored(bucketPath);
+        }
+        if (packStore.isFlushDue()) {
+          schedulePackFlush();
+        }
+        return false;
+      }
+      if (writeBehindQueue != null) {
+        writeBehindQueue.submit(bucketPath, os, new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            try {
+              if (circuitBreaker.isOpen()) {
+                logger.info("Skipping upload of cache entry '{}', the S3 build cache is disabled", bucketPath);
+                metrics.skippedStore();
+              } else {
+                upload(bucketPath, meta, os, chunks);
+              }
+            } finally {
+              pendingStores.remove(bucketPath);
+            }
+            return null;
+          }
+        });
+        queued = true;
+      } else {
+        upload(bucketPath, meta, os, chunks);
+      }
+      return queued;
+    } catch (IOException e) {
+      throw new BuildCacheException("Error while storing cache object in S3 bucket", e);
+    } finally {
+      if (!queued) {
+        os.discard();
+      }
+    }
+  }
+
+  /**
+   * Writes the entry into the given stream, encoded with the codec or split into chunks, and adds its checksum to
+   * the metadata. Returns the chunks, or {@code null} if the entry is stored as a single object.
+   */
+  private List<ChunkManifest.Chunk> capture(BuildCacheEntryWriter writer, SpoolingOutputStream os,
+      ObjectMetadata meta) throws IOException {
+    if (averageChunkSize > 0) {
+      // Chunks are encoded one by one, the content is split before so that equal content yields equal chunks
+      ChunkManifest.addToMetadata(meta);
+      ContentDefinedChunker chunker = new ContentDefinedChunker(os, averageChunkSize);
+      try {
+        CheckedOutputStream checked = EntryChecksums.checksum(chunker);
+        writer.writeTo(checked);
+        EntryChecksums.addToMetadata(checked, meta);
+      } finally {
+        chunker.close();
+      }
+      return chunker.getChunks();
+    }
+    EntryCodecs.addToMetadata(codec, meta);
+    OutputStream encoded = codec.encode(os);
+    try {
+      CheckedOutputStream checked = EntryChecksums.checksum(encoded);
+      writer.writeTo(checked);
+      EntryChecksums.addToMetadata(checked, meta);
+    } finally {
+      encoded.close();
+    }
+    return null;
+  }
+
+  private boolean existsRemotely(String bucketPath) {
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      boolean exists = s3.doesObjectExist(bucketName, bucketPath);
+      circuitBreaker.onSuccess(System.nanoTime() - start);
+      return exists;
+    } catch (AmazonClientException e) {
+      circuitBreaker.onFailure(System.nanoTime() - start);
+      logger.info("Could not check whether cache entry '{}' exists in S3 bucket: {}", bucketPath, e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Uploads the entry as a single object, or if it was split into the given chunks, uploads the chunks which are
+   * not in the bucket yet followed by the manifest listing them.
+   */
+  private void upload(String bucketPath, ObjectMetadata meta, SpoolingOutputStream entry,
+      List<ChunkManifest.Chunk> chunks) throws IOException {
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return;
+    }
+    long start = System.nanoTime();
+    long chunkBytes = 0;
+    SpoolingOutputStream content = entry;
+    try {
+      if (chunks != null) {
+        chunkBytes = chunkStore.uploadMissing(s3, entry, chunks, codec, getStorageClass());
+        content = new SpoolingOutputStream(bufferPool, Long.MAX_VALUE);
+        try {
+          new ChunkManifest(chunks).writeTo(content);
+        } finally {
+          content.close();
+        }
+      }
+      boolean broken = brokenEntries.contains(bucketPath);
+      if (content.isSpilled() && multipartUploader != null) {
+        logger.info("Uploading cache entry '{}' of {} bytes in multiple parts", bucketPath, content.size());
+        multipartUploader.upload(s3, bucketName, bucketPath, meta, getStorageClass(), content.getFile());
+      } else {
+        meta.setContentLength(content.size());
+        try (InputStream is = content.openInputStream()) {
           PutObjectRequest request = getPutObjectRequest(bucketPath, meta, is);
           if(this.reducedRedundancy) {
             request.withStorageClass(StorageClass.ReducedRedundancy);
           }
-          s3.putObject(request);
+          if (skipExistingEntries && !broken) {
+            // Lets S3 reject the upload after the headers, before the content is sent with Expect: 100-continue
+            request.putCustomRequestHeader("If-None-Match", "*");
+          }
+          try {
+            s3.putObject(request);
+          } catch (AmazonS3Exception e) {
+            if (!skipExistingEntries || !isAlreadyPresent(e)) {
+              throw e;
+            }
+            logger.info("Cache entry '{}' was stored in S3 bucket by another build, skipping upload", bucketPath);
+            metrics.skippedStore();
+            circuitBreaker.onSuccess(System.nanoTime() - start);
+            recordStored(bucketPath);
+            return;
+          }
+        }
       }
-    } catch (IOException e) {
-      throw new BuildCacheException("Error while storing cache object in S3 bucket", e);
+      metrics.stored(System.nanoTime() - start, chunkBytes + content.size());
+    } catch (IOException | RuntimeException e) {
+      metrics.storeError(System.nanoTime() - start);
+      circuitBreaker.onFailure(System.nanoTime() - start);
+      throw e;
+    } finally {
+      if (content != entry) {
+        content.discard();
+      }
+    }
+    circuitBreaker.onSuccess(System.nanoTime() - start);
+    brokenEntries.remove(bucketPath);
+    recordStored(bucketPath);
+  }
+
+  /**
+   * Uploads the pack in the background, so that the storing thread does not wait for it.
+   */
+  private void schedulePackFlush() {
+    if (!packFlushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      packExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          packFlushScheduled.set(false);
+          flushPacks(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Closing, which uploads the pack anyway
+      packFlushScheduled.set(false);
+    }
+  }
+
+  /**
+   * Uploads the entries buffered for the next pack. Unless {@code force} is set this only happens if the pack is
+   * due and no other thread is uploading a pack already.
+   */
+  private void flushPacks(boolean force) {
+    AmazonS3 s3 = s3();
+    if (s3 == null) {
+      return;
+    }
+    if (circuitBreaker.isOpen()) {
+      logger.info("Skipping upload of pack, the S3 build cache is disabled");
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      long uploaded = force ? packStore.flush(s3, getStorageClass()) : packStore.flushIfDue(s3, getStorageClass());
+      if (uploaded > 0) {
+        metrics.stored(System.nanoTime() - start, uploaded);
+        circuitBreaker.onSuccess(System.nanoTime() - start);
+      }
+    } catch (IOException | RuntimeException e) {
+      metrics.storeError(System.nanoTime() - start);
+      circuitBreaker.onFailure(System.nanoTime() - start);
+      logger.warn("Could not store pack of cache entries in S3 bucket: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Consolidates the pack indexes read by this daemon into a snapshot if enough were written since the last one.
+   */
+  private void writePackIndexSnapshot() {
+    AmazonS3 s3 = s3();
+    if (s3 == null || circuitBreaker.isOpen()) {
+      return;
+    }
+    try {
+      packStore.writeIndexSnapshot(s3);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not store snapshot of S3 build cache pack indexes: {}", e.getMessage());
     }
   }
 
+  private void recordStored(String bucketPath) {
+    presenceCache.record(bucketName, bucketPath, presenceCacheTtlMillis);
+    missCache.invalidate(bucketName, bucketPath);
+    if (keyIndex != null) {
+      keyIndex.recordStored(bucketPath);
+    }
+  }
+
+  /**
+   * Whether a conditional put failed because the object exists (412) or is being written concurrently (409).
+   */
+  static boolean isAlreadyPresent(AmazonS3Exception e) {
+    return e.getStatusCode() == 412 || e.getStatusCode() == 409;
+  }
+
+  private static long getContentLength(S3Object object) {
+    ObjectMetadata meta = object.getObjectMetadata();
+    return meta != null ? meta.getContentLength() : 0;
+  }
+
+  private StorageClass getStorageClass() {
+    return reducedRedundancy ? StorageClass.ReducedRedundancy : null;
+  }
+
   protected PutObjectRequest getPutObjectRequest(String bucketPath, ObjectMetadata meta, InputStream is) {
     return new PutObjectRequest(bucketName, bucketPath, is, meta);
   }
 
   @Override
   public void close() throws IOException {
-    // The AWS S3 client does not need to be closed
+    if (writeBehindQueue != null) {
+      writeBehindQueue.drain(writeBehindTimeoutMillis);
+    }
+    if (packStore != null) {
+      // A pack being uploaded in the background is finished, the forced flush waits for it
+      packExecutor.shutdown();
+      flushPacks(true);
+      packExecutor.shutdownNow();
+      writePackIndexSnapshot();
+    }
+    if (prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+      writeManifest();
+    }
+    if (keyIndex != null) {
+      keyIndexExecutor.shutdownNow();
+      writeIndexDelta();
+    }
+    writeAccessLog();
+    if (multipartUploader != null) {
+      multipartUploader.shutdown();
+    }
+    if (parallelDownloader != null) {
+      parallelDownloader.shutdown();
+    }
+    if (hedging != null) {
+      hedging.shutdown();
+    }
+    if (readClient != null) {
+      readClient.close();
+    }
+    if (chunkStore != null) {
+      chunkStore.shutdown();
+    }
+    if (localTier != null) {
+      localTier.cleanupInBackground();
+    }
+    if (hedging != null && hedging.getHedges() > 0) {
+      logger.info("Hedged {} of {} GET requests to S3, {} hedges responded first", hedging.getHedges(),
+          hedging.getRequests(), hedging.getHedgeWins());
+    }
+    if (packStore != null && packStore.getWrittenPacks() + packStore.getRangeReads() > 0) {
+      logger.info("Stored {} cache entries in {} packs, read {} packed entries with ranged GETs",
+          packStore.getPackedEntries(), packStore.getWrittenPacks(), packStore.getRangeReads());
+    }
+    if (chunkStore != null && chunkStore.getUploadedChunks() + chunkStore.getReusedChunks() > 0) {
+      logger.info("Uploaded {} chunks to S3, {} chunks were already stored", chunkStore.getUploadedChunks(),
+          chunkStore.getReusedChunks());
+    }
+    reportMetrics();
+    String circuitBreakerReport = circuitBreaker.getReport();
+    if (circuitBreakerReport != null) {
+      logger.warn(circuitBreakerReport);
+    }
+    s3Client.close();
+  }
+
+  /**
+   * Content of an entry together with the metadata and chunks it is stored with.
+   */
+  static final class CapturedEntry {
+    private final SpoolingOutputStream content;
+    private final ObjectMetadata meta;
+    private final List<ChunkManifest.Chunk> chunks;
+
+    CapturedEntry(SpoolingOutputStream content, ObjectMetadata meta, List<ChunkManifest.Chunk> chunks) {
+      this.content = content;
+      this.meta = meta;
+      this.chunks = chunks;
+    }
+
+    SpoolingOutputStream getContent() {
+      return content;
+    }
+
+    /**
+     * Takes another reference to the entry for one more store, the entry is released once every store discarded it.
+     */
+    CapturedEntry retain() {
+      content.retain();
+      return this;
+    }
+
+    void discard() {
+      content.discard();
+    }
   }
 }
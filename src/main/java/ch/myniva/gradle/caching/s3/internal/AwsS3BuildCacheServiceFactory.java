@@ -20,13 +20,24 @@ import static com.amazonaws.util.StringUtils.isNullOrEmpty;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import org.gradle.api.GradleException;
 import org.gradle.caching.BuildCacheService;
 import org.gradle.caching.BuildCacheServiceFactory;
@@ -34,20 +45,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import ch.myniva.gradle.caching.s3.AwsS3Replica;
+import ch.myniva.gradle.caching.s3.KeyLayout;
+import ch.myniva.gradle.caching.s3.KeyLayouts;
 
 public class AwsS3BuildCacheServiceFactory implements BuildCacheServiceFactory<AwsS3BuildCache> {
 
   private static final Logger logger = LoggerFactory.getLogger(AwsS3BuildCacheServiceFactory.class);
+  private static final int MIN_AVERAGE_CHUNK_SIZE = 4 * 1024;
+  private static final int MAX_AVERAGE_CHUNK_SIZE = 16 * 1024 * 1024;
+  private static final int MAX_PACK_THRESHOLD = 1024 * 1024;
 
   @Override
-  public BuildCacheService createBuildCacheService(AwsS3BuildCache config, Describer describer) {
+  public BuildCacheService createBuildCacheService(final AwsS3BuildCache config, Describer describer) {
     logger.debug("Start creating S3 build cache service");
 
     describer
         .type("AWS S3")
         .config("Region", config.getRegion())
         .config("Bucket", config.getBucket())
-        .config("Reduced Redundancy", String.valueOf(config.isReducedRedundancy()));
+        .config("Reduced Redundancy", String.valueOf(config.isReducedRedundancy()))
+        .config("Miss Cache TTL", config.getMissCacheTtlSeconds() + "s");
 
     if (config.getPath() != null) {
       describer.config("Path", config.getPath());
@@ -57,10 +75,160 @@ public class AwsS3BuildCacheServiceFactory implements BuildCacheServiceFactory<A
       describer.config("Endpoint", config.getEndpoint());
     }
 
+    if (config.getReadUrl() != null) {
+      describer.config("Read URL", config.getReadUrl());
+    }
+
+    if (config.getCompression() != null) {
+      describer.config("Compression", config.getCompression());
+    }
+
+    if (config.getKeyLayout() != null || config.getKeyShards() > 0) {
+      describer.config("Key Layout", getKeyLayout(config).toString());
+    }
+
+    if (config.isChunkedStorage()) {
+      describer.config("Average Chunk Size", Integer.toString(config.getAverageChunkSize()));
+    }
+
+    if (config.isPackedStorage()) {
+      describer.config("Pack Threshold", Integer.toString(config.getPackThreshold()));
+    }
+
+    if (config.isKeyIndex()) {
+      describer.config("Key Index", "enabled");
+    }
+
+    if (config.getLocalCacheDirectory() != null) {
+      describer.config("Local Directory", config.getLocalCacheDirectory());
+    }
+
+    if (config.getPrefetchManifest() != null) {
+      describer.config("Prefetch Manifest", config.getPrefetchManifest());
+    }
+
+    if (!config.getReplicas().isEmpty()) {
+      describer.config("Replicas", config.getReplicas().toString());
+    }
+
     verifyConfig(config);
-    AmazonS3 s3 = createS3Client(config);
+    LocalDiskTier localTier = null;
+    if (!isNullOrEmpty(config.getLocalCacheDirectory())) {
+      localTier = new LocalDiskTier(Paths.get(config.getLocalCacheDirectory()), config.getLocalCacheMaxSize(),
+          TimeUnit.DAYS.toMillis(config.getLocalCacheMaxAgeDays()));
+    }
+    AwsS3BuildCacheService service =
+        createService(config, config.getRegion(), config.getBucket(), config.getEndpoint(), localTier);
+    service.setMetricsReporting(config.isPrintMetrics(),
+        isNullOrEmpty(config.getMetricsReport()) ? null : new File(config.getMetricsReport()));
+    service.setRecordAccess(config.isRecordAccess());
+    if (!isNullOrEmpty(config.getReadUrl())) {
+      service.setReadClient(acquireReadClient(config));
+    }
+    if (config.isAsyncStore()) {
+      service.setWriteBehindQueue(new WriteBehindQueue(config.getUploadConcurrency(), config.getAsyncStoreQueueSize(),
+          config.getAsyncStoreQueueMaxSize()), TimeUnit.SECONDS.toMillis(config.getAsyncStoreTimeoutSeconds()));
+    }
+    if (!isNullOrEmpty(config.getPrefetchManifest())) {
+      service.setPrefetch(config.getPrefetchManifest(),
+          TransferThreads.newPool("s3-build-cache-prefetch", Math.max(1, config.getDownloadConcurrency())),
+          config.isPush());
+      service.startPrefetch();
+    }
+    if (config.isKeyIndex()) {
+      service.setKeyIndex(TimeUnit.HOURS.toMillis(config.getKeyIndexMaxAgeHours()),
+          TransferThreads.newPool("s3-build-cache-index", 1));
+      service.startKeyIndex();
+    }
+    if (config.getReplicas().isEmpty()) {
+      return service;
+    }
+    List<String> names = new ArrayList<>();
+    List<AwsS3BuildCacheService> services = new ArrayList<>();
+    names.add((config.getEndpoint() != null ? config.getEndpoint() : config.getRegion()) + "/" + config.getBucket());
+    services.add(service);
+    for (AwsS3Replica replica : config.getReplicas()) {
+      names.add(replica.toString());
+      services.add(createService(config, replica.getRegion(), replica.getBucket(), replica.getEndpoint(), localTier));
+    }
+    // Replicated stores are bounded like asynchronous ones, so that slow replicas throttle the build
+    WriteBehindQueue replication = config.isReplicateStores()
+        ? new WriteBehindQueue("s3-build-cache-replicas", Math.max(services.size(), config.getUploadConcurrency()),
+            config.getAsyncStoreQueueSize(), config.getAsyncStoreQueueMaxSize())
+        : null;
+    ReplicatedBuildCacheService replicated = new ReplicatedBuildCacheService(names, services,
+        TransferThreads.newPool("s3-build-cache-probes", services.size()), replication,
+        TimeUnit.SECONDS.toMillis(config.getAsyncStoreTimeoutSeconds()));
+    replicated.start();
+    return replicated;
+  }
 
-    return new AwsS3BuildCacheService(s3, config.getBucket(), config.getPath(), config.isReducedRedundancy());
+  /**
+   * Creates a service for the given bucket with everything which applies to replicas as well.
+   */
+  private AwsS3BuildCacheService createService(final AwsS3BuildCache config, final String region, String bucket,
+      final String endpoint, LocalDiskTier localTier) {
+    LazyS3Client s3 = LazyS3Client.start(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() throws Exception {
+        return S3ClientRegistry.shared().acquire(getClientKey(config, region, endpoint), new Callable<AmazonS3>() {
+          @Override
+          public AmazonS3 call() {
+            return createS3Client(config, region, endpoint);
+          }
+        });
+      }
+    }, TimeUnit.SECONDS.toMillis(config.getClientInitTimeoutSeconds()));
+
+    AwsS3BuildCacheService service = new AwsS3BuildCacheService(s3, bucket, config.getPath(),
+        config.isReducedRedundancy());
+    service.setKeyLayout(getKeyLayout(config), config.isLegacyKeyFallback());
+    if (config.getCircuitBreakerThreshold() > 0) {
+      service.setCircuitBreaker(new CircuitBreaker(CircuitBreaker.DEFAULT_WINDOW_SIZE,
+          CircuitBreaker.DEFAULT_MINIMUM_REQUESTS, config.getCircuitBreakerThreshold() / 100.0,
+          config.getSlowRequestMillis(), TimeUnit.SECONDS.toMillis(config.getCircuitBreakerProbeSeconds())));
+    }
+    // Replicas may use the same bucket name on different endpoints, which must not share misses or presences
+    service.setMissCache(ExpiringKeyCache.misses().forLocation(region, endpoint),
+        TimeUnit.SECONDS.toMillis(config.getMissCacheTtlSeconds()));
+    service.setPresenceCache(ExpiringKeyCache.presences().forLocation(region, endpoint),
+        TimeUnit.SECONDS.toMillis(config.getPresenceCacheTtlSeconds()));
+    service.setSkipExistingEntries(config.isSkipExistingEntries());
+    service.setMultipartUploader(
+        new MultipartUploader(TransferThreads.newPool("s3-build-cache-upload", config.getUploadConcurrency()),
+            config.getMultipartPartSize()),
+        config.getMultipartThreshold());
+    // Entries stored in chunks are read even if new entries are not stored in chunks
+    int chunkConcurrency = Math.max(config.getUploadConcurrency(), config.getDownloadConcurrency());
+    service.setChunking(TransferThreads.newPool("s3-build-cache-chunks", chunkConcurrency), chunkConcurrency,
+        config.isChunkedStorage() ? config.getAverageChunkSize() : 0);
+    ParallelDownloader parallelDownloader = null;
+    if (config.getDownloadConcurrency() > 1) {
+      parallelDownloader = new ParallelDownloader(
+          TransferThreads.newPool("s3-build-cache-download", config.getDownloadConcurrency() - 1),
+          config.getDownloadPartSize());
+      service.setParallelDownloader(parallelDownloader);
+    }
+    if (config.isHedgeLoads()) {
+      HedgedRequests hedging = new HedgedRequests(TransferThreads.newUnboundedPool("s3-build-cache-get"),
+          config.getHedgePercentile() / 100.0, config.getHedgeMaxPercent() / 100.0);
+      service.setHedging(hedging);
+      if (parallelDownloader != null) {
+        parallelDownloader.setHedging(hedging);
+      }
+    }
+    if (localTier != null) {
+      service.setLocalTier(localTier);
+    }
+    service.setCodec(EntryCodecs.forName(config.getCompression(), config.getCompressionLevel()));
+    if (config.isPackedStorage()) {
+      // One thread reads the pack indexes, the others fetch them
+      service.setPacking(config.getPackThreshold(), config.getPackSize(),
+          TimeUnit.DAYS.toMillis(config.getPackMaxAgeDays()),
+          TransferThreads.newPool("s3-build-cache-packs", Math.max(1, config.getDownloadConcurrency()) + 1));
+      service.startPacks();
+    }
+    return service;
   }
 
   private void verifyConfig(AwsS3BuildCache config) {
@@ -70,31 +238,164 @@ public class AwsS3BuildCacheServiceFactory implements BuildCacheServiceFactory<A
     if (isNullOrEmpty(config.getBucket())) {
       throw new IllegalStateException("S3 build cache has no bucket configured");
     }
+    if (config.getMultipartPartSize() < MultipartUploader.MIN_PART_SIZE) {
+      throw new IllegalStateException("S3 build cache multipart part size must be at least 5 MiB");
+    }
+    if (config.getUploadConcurrency() < 1) {
+      throw new IllegalStateException("S3 build cache upload concurrency must be at least 1");
+    }
+    if (config.isAsyncStore() && config.getAsyncStoreQueueSize() < 1) {
+      throw new IllegalStateException("S3 build cache async store queue size must be at least 1");
+    }
+    if (config.isAsyncStore() && config.getAsyncStoreQueueMaxSize() < 0) {
+      throw new IllegalStateException("S3 build cache async store queue max size must not be negative");
+    }
+    try {
+      EntryCodecs.forName(config.getCompression(), config.getCompressionLevel());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("S3 build cache compression must be one of 'none' or 'gzip'", e);
+    }
+    if (config.getCompressionLevel() < -1 || config.getCompressionLevel() > 9) {
+      throw new IllegalStateException("S3 build cache compression level must be between -1 and 9");
+    }
+    if (!isNullOrEmpty(config.getPrefetchManifest()) && isNullOrEmpty(config.getLocalCacheDirectory())) {
+      throw new IllegalStateException("S3 build cache needs a local cache directory to prefetch entries into");
+    }
+    if (config.getDownloadPartSize() < 1) {
+      throw new IllegalStateException("S3 build cache download part size must be positive");
+    }
+    if (config.getCircuitBreakerThreshold() < 0 || config.getCircuitBreakerThreshold() > 100) {
+      throw new IllegalStateException("S3 build cache circuit breaker threshold must be between 0 and 100");
+    }
+    if (config.getSlowRequestMillis() < 1) {
+      throw new IllegalStateException("S3 build cache slow request threshold must be positive");
+    }
+    if (config.getHedgePercentile() < 1 || config.getHedgePercentile() > 99) {
+      throw new IllegalStateException("S3 build cache hedge percentile must be between 1 and 99");
+    }
+    if (config.getHedgeMaxPercent() < 0 || config.getHedgeMaxPercent() > 100) {
+      throw new IllegalStateException("S3 build cache hedge max percent must be between 0 and 100");
+    }
+    if (config.getAverageChunkSize() < MIN_AVERAGE_CHUNK_SIZE
+        || config.getAverageChunkSize() > MAX_AVERAGE_CHUNK_SIZE) {
+      throw new IllegalStateException("S3 build cache average chunk size must be between 4 KiB and 16 MiB");
+    }
+    if (config.getPackThreshold() < 1 || config.getPackThreshold() > MAX_PACK_THRESHOLD) {
+      throw new IllegalStateException("S3 build cache pack threshold must be between 1 byte and 1 MiB");
+    }
+    if (config.getPackSize() < config.getPackThreshold()) {
+      throw new IllegalStateException("S3 build cache pack size must be at least the pack threshold");
+    }
+    if (config.getPackMaxAgeDays() < 1) {
+      throw new IllegalStateException("S3 build cache pack max age must be at least 1 day");
+    }
+    if (config.getKeyShards() < 0) {
+      throw new IllegalStateException("S3 build cache key shards must not be negative");
+    }
+    if (config.getKeyIndexMaxAgeHours() < 1) {
+      throw new IllegalStateException("S3 build cache key index max age must be at least 1 hour");
+    }
+    for (AwsS3Replica replica : config.getReplicas()) {
+      if (isNullOrEmpty(replica.getRegion()) || isNullOrEmpty(replica.getBucket())) {
+        throw new IllegalStateException("S3 build cache replicas need an AWS region and a bucket");
+      }
+    }
+    if (!isNullOrEmpty(config.getReadUrl()) && !config.getReadUrl().matches("(?i)https?://.+")) {
+      throw new IllegalStateException("S3 build cache read URL must be an http or https URL");
+    }
+    if (config.getMaxConnections() < 0) {
+      throw new IllegalStateException("S3 build cache max connections must not be negative");
+    }
   }
 
-  private AmazonS3 createS3Client(AwsS3BuildCache config) {
+  private static KeyLayout getKeyLayout(AwsS3BuildCache config) {
+    if (config.getKeyLayout() != null) {
+      return config.getKeyLayout();
+    }
+    return config.getKeyShards() > 0 ? KeyLayouts.hashPrefix(config.getKeyShards()) : KeyLayouts.flat();
+  }
+
+  /**
+   * Everything {@link #createS3Client} configures the client with, clients with equal keys are interchangeable.
+   */
+  private static Object getClientKey(AwsS3BuildCache config, String region, String endpoint) {
+    return Arrays.asList(region, endpoint, config.getAwsAccessKeyId(),
+        config.getAwsSecretKey(), config.getSessionToken(), copyHeaders(config), getMaxConnections(config),
+        config.isAdaptiveConcurrency());
+  }
+
+  /**
+   * Leases the client reading through the configured URL from the registry, so that its connection pool is kept
+   * across builds like the one of the S3 client.
+   */
+  private static S3ClientRegistry.Lease acquireReadClient(final AwsS3BuildCache config) {
+    Object key = Arrays.asList("readUrl", config.getReadUrl(), copyHeaders(config), getMaxConnections(config));
+    try {
+      return S3ClientRegistry.shared().acquire(key, new Callable<AmazonS3>() {
+        @Override
+        public AmazonS3 call() {
+          return new HttpReadClient(config.getReadUrl(), config.getHeaders(), getMaxConnections(config));
+        }
+      });
+    } catch (Exception e) {
+      throw new IllegalStateException("S3 build cache could not create a client for the read URL", e);
+    }
+  }
+
+  private static Map<String, String> copyHeaders(AwsS3BuildCache config) {
+    return config.getHeaders() != null
+        ? new HashMap<>(config.getHeaders())
+        : Collections.<String, String>emptyMap();
+  }
+
+  /**
+   * Every thread transferring an entry or a part of it holds a pooled connection while it does: the Gradle workers
+   * loading and storing entries in parallel, each with up to the configured number of parts in flight, and the
+   * prefetch threads. Unless configured explicitly the pool is sized for that, and never below the SDK's default.
+   */
+  static int getMaxConnections(AwsS3BuildCache config) {
+    if (config.getMaxConnections() > 0) {
+      return config.getMaxConnections();
+    }
+    int partsPerTransfer = Math.max(config.getUploadConcurrency(), config.getDownloadConcurrency());
+    int transfers = Runtime.getRuntime().availableProcessors() * partsPerTransfer
+        + Math.max(1, config.getDownloadConcurrency());
+    return Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, transfers);
+  }
+
+  AmazonS3 createS3Client(AwsS3BuildCache config) {
+    return createS3Client(config, config.getRegion(), config.getEndpoint());
+  }
+
+  private AmazonS3 createS3Client(AwsS3BuildCache config, String region, String endpoint) {
     AmazonS3 s3;
     try {
       AmazonS3ClientBuilder s3Builder = AmazonS3ClientBuilder.standard();
+      AWSCredentialsProvider credentialsProvider = DefaultAWSCredentialsProviderChain.getInstance();
       if (!isNullOrEmpty(config.getAwsAccessKeyId()) && !isNullOrEmpty(config.getAwsSecretKey()) &&
                 !isNullOrEmpty(config.getSessionToken())) {
-            s3Builder.withCredentials(new AWSStaticCredentialsProvider(
+            credentialsProvider = new AWSStaticCredentialsProvider(
                     new BasicSessionCredentials(config.getAwsAccessKeyId(), config.getAwsSecretKey(),
-                            config.getSessionToken())));
+                            config.getSessionToken()));
       } else if (!isNullOrEmpty(config.getAwsAccessKeyId()) && !isNullOrEmpty(config.getAwsSecretKey())) {
-        s3Builder.withCredentials(new AWSStaticCredentialsProvider(
-            new BasicAWSCredentials(config.getAwsAccessKeyId(), config.getAwsSecretKey())));
+        credentialsProvider = new AWSStaticCredentialsProvider(
+            new BasicAWSCredentials(config.getAwsAccessKeyId(), config.getAwsSecretKey()));
       }
+      s3Builder.withCredentials(credentialsProvider);
 
-      addHttpHeaders(s3Builder, config);
+      s3Builder.setClientConfiguration(createClientConfiguration(config));
+      if (config.isAdaptiveConcurrency()) {
+        s3Builder.withRequestHandlers(new ConcurrencyLimiter(getMaxConnections(config)));
+      }
 
-      if (isNullOrEmpty(config.getEndpoint())) {
-        s3Builder.withRegion(config.getRegion());
+      if (isNullOrEmpty(endpoint)) {
+        s3Builder.withRegion(region);
       } else {
-        s3Builder.withEndpointConfiguration(
-            new AwsClientBuilder.EndpointConfiguration(config.getEndpoint(), config.getRegion()));
+        s3Builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
       }
       s3 = s3Builder.build();
+      // Resolve the credentials while the client is created in the background, instead of on the first request
+      credentialsProvider.getCredentials();
     } catch (SdkClientException e) {
       logger.debug("Error while building AWS S3 client: {}", e.getMessage());
       throw new GradleException("Creation of S3 build cache failed; cannot create S3 client", e);
@@ -102,16 +403,20 @@ public class AwsS3BuildCacheServiceFactory implements BuildCacheServiceFactory<A
     return s3;
   }
 
-  private void addHttpHeaders(final AmazonS3ClientBuilder s3Builder, final AwsS3BuildCache config) {
+  private ClientConfiguration createClientConfiguration(final AwsS3BuildCache config) {
+    final ClientConfiguration clientConfiguration = new ClientConfiguration();
+    clientConfiguration.setMaxConnections(getMaxConnections(config));
+    if (config.isAdaptiveConcurrency()) {
+      clientConfiguration.setRetryPolicy(ConcurrencyLimiter.newRetryPolicy());
+    }
     final Map<String, String> headers = config.getHeaders();
     if (headers != null) {
-      final ClientConfiguration clientConfiguration = new ClientConfiguration();
       for (Map.Entry<String, String> header : headers.entrySet()) {
         if(header.getKey() != null && header.getValue() != null) {
           clientConfiguration.addHeader(header.getKey(), header.getValue());
         }
       }
-      s3Builder.setClientConfiguration(clientConfiguration);
     }
+    return clientConfiguration;
   }
 }
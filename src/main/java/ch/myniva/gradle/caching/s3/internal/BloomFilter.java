@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Set of strings which may report strings as contained which it does not contain, at a configurable rate, but
+ * never the other way round.
+ *
+ * <p>Bits are chosen by double hashing a 64-bit hash of the string. The hash function and the serialized form
+ * are shared by every plugin version which reads or writes an index, so they must not change.</p>
+ */
+class BloomFilter {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAX_HASHES = 30;
+
+  private final long[] bits;
+  private final long numBits;
+  private final int numHashes;
+
+  private BloomFilter(long[] bits, int numHashes) {
+    this.bits = bits;
+    this.numBits = (long) bits.length * Long.SIZE;
+    this.numHashes = numHashes;
+  }
+
+  /**
+   * Creates a filter sized for the given number of strings at the given false positive rate.
+   */
+  static BloomFilter create(long expectedStrings, double falsePositiveRate) {
+    long n = Math.max(1, expectedStrings);
+    double ln2 = Math.log(2);
+    long numBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+    int numLongs = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, (numBits + Long.SIZE - 1) / Long.SIZE));
+    long hashes = Math.round((double) numLongs * Long.SIZE / n * ln2);
+    int numHashes = (int) Math.max(1, Math.min(MAX_HASHES, hashes));
+    return new BloomFilter(new long[numLongs], numHashes);
+  }
+
+  static long hash(String string) {
+    byte[] bytes = string.getBytes(UTF_8);
+    // FNV-1a followed by the MurmurHash3 finalizer, which spreads FNV's weak high bits
+    long h = 0xcbf29ce484222325L;
+    for (byte b : bytes) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  void add(String string) {
+    addHash(hash(string));
+  }
+
+  void addHash(long hash) {
+    long h1 = (int) hash;
+    long h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  boolean mightContain(String string) {
+    long hash = hash(string);
+    long h1 = (int) hash;
+    long h2 = (int) (hash >>> 32);
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the size of the serialized filter in bytes.
+   */
+  long getSize() {
+    return 8 + (long) bits.length * 8;
+  }
+
+  void writeTo(DataOutputStream os) throws IOException {
+    os.writeInt(numHashes);
+    os.writeInt(bits.length);
+    for (long word : bits) {
+      os.writeLong(word);
+    }
+  }
+
+  static BloomFilter read(DataInputStream is) throws IOException {
+    int numHashes = is.readInt();
+    int numLongs = is.readInt();
+    if (numHashes < 1 || numHashes > MAX_HASHES || numLongs < 1) {
+      throw new IOException("Malformed Bloom filter with " + numHashes + " hashes and " + numLongs + " words");
+    }
+    long[] bits = new long[numLongs];
+    for (int i = 0; i < numLongs; i++) {
+      bits[i] = is.readLong();
+    }
+    return new BloomFilter(bits, numHashes);
+  }
+}
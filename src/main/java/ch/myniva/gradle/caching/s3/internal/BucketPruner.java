@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the entries of a bucket which were not accessed for a while, and the least recently accessed entries
+ * beyond a size budget.
+ *
+ * <p>An entry was last accessed when it was stored, or when a build which records its accesses last loaded it
+ * according to the access logs. The bucket is listed in parallel, one listing per hex digit the keys of entries
+ * start with, and entries are deleted in batches while they are listed, so that memory use does not depend on the
+ * number of entries but only on the number of recently accessed ones. To stay within the size budget a first
+ * listing sums up the sizes of the entries by the hour they were last accessed in, which yields the age beyond
+ * which entries have to go, and a second listing deletes them.</p>
+ */
+class BucketPruner {
+
+  static final String SHARDS = "0123456789abcdef";
+
+  private static final Logger logger = LoggerFactory.getLogger(BucketPruner.class);
+
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final int DELETE_BATCH_SIZE = 1000;
+  private static final int ACCESS_LOG_READ_AHEAD = 64;
+
+  private final String bucketName;
+  private final String prefix;
+  private final List<String> excludedPrefixes;
+  private final String accessLogPrefix;
+  private final ExecutorService executor;
+  private final AtomicLong listedEntries = new AtomicLong();
+  private final AtomicLong deletedEntries = new AtomicLong();
+  private final AtomicLong deletedBytes = new AtomicLong();
+  private final AtomicLong failedDeletes = new AtomicLong();
+
+  /**
+   * Prunes the entries below {@code prefix}, skipping the given prefixes which hold anything but entries, with
+   * the access logs below {@code accessLogPrefix}. Listings and deletes run on the given executor.
+   */
+  BucketPruner(String bucketName, String prefix, List<String> excludedPrefixes, String accessLogPrefix,
+      ExecutorService executor) {
+    this.bucketName = bucketName;
+    this.prefix = prefix;
+    this.excludedPrefixes = excludedPrefixes;
+    this.accessLogPrefix = accessLogPrefix;
+    this.executor = executor;
+  }
+
+  /**
+   * Deletes the entries which were not accessed within {@code maxIdleMillis}, and if the remaining entries are
+   * larger than {@code maxSize} bytes, the least recently accessed ones until they are not. {@code maxSize} is
+   * ignored if it is not positive. Access logs older than {@code maxIdleMillis} are deleted as well. Returns the
+   * size of the remaining entries.
+   */
+  long prune(final AmazonS3 s3, long maxIdleMillis, long maxSize) throws IOException {
+    final long now = System.currentTimeMillis();
+    final long idleSince = now - maxIdleMillis;
+    final AccessTimes accessTimes = readAccessLogs(s3, idleSince);
+    final int maxAgeHours = (int) Math.min(Integer.MAX_VALUE - 1, maxIdleMillis / HOUR_MILLIS);
+    final AtomicLongArray bytesByAge = new AtomicLongArray(maxAgeHours + 1);
+
+    listAll(s3, new EntryFilter() {
+      @Override
+      public boolean shouldDelete(S3ObjectSummary entry) {
+        listedEntries.incrementAndGet();
+        long lastAccess = getLastAccess(entry, accessTimes);
+        if (lastAccess < idleSince) {
+          return true;
+        }
+        bytesByAge.addAndGet(getAgeHours(now, lastAccess, maxAgeHours), entry.getSize());
+        return false;
+      }
+    });
+
+    long remaining = 0;
+    int cutoff = -1;
+    for (int age = 0; age < bytesByAge.length(); age++) {
+      remaining += bytesByAge.get(age);
+      if (maxSize > 0 && remaining > maxSize && cutoff < 0) {
+        cutoff = age;
+      }
+    }
+    if (cutoff >= 0) {
+      logger.info("Entries of S3 build cache bucket '{}' take {} bytes, deleting those last accessed {} hours ago "
+          + "and earlier", bucketName, remaining, cutoff);
+      final int maxAge = cutoff;
+      long deletedBefore = deletedBytes.get();
+      listAll(s3, new EntryFilter() {
+        @Override
+        public boolean shouldDelete(S3ObjectSummary entry) {
+          return getAgeHours(now, getLastAccess(entry, accessTimes), maxAgeHours) >= maxAge;
+        }
+      });
+      remaining -= deletedBytes.get() - deletedBefore;
+    }
+    KeyLogs.deleteBefore(s3, bucketName, accessLogPrefix, idleSince);
+    return remaining;
+  }
+
+  long getListedEntries() {
+    return listedEntries.get();
+  }
+
+  long getDeletedEntries() {
+    return deletedEntries.get();
+  }
+
+  long getDeletedBytes() {
+    return deletedBytes.get();
+  }
+
+  long getFailedDeletes() {
+    return failedDeletes.get();
+  }
+
+  /**
+   * Reads the access logs written since the given time, several at a time but recorded in the order they were
+   * written in.
+   */
+  private AccessTimes readAccessLogs(final AmazonS3 s3, long since) throws IOException {
+    AccessTimes accessTimes = new AccessTimes();
+    List<String> logKeys = KeyLogs.listSince(s3, bucketName, accessLogPrefix, since);
+    for (int start = 0; start < logKeys.size(); start += ACCESS_LOG_READ_AHEAD) {
+      List<String> window = logKeys.subList(start, Math.min(logKeys.size(), start + ACCESS_LOG_READ_AHEAD));
+      List<Future<List<String>>> reads = new ArrayList<>();
+      for (final String logKey : window) {
+        reads.add(executor.submit(new Callable<List<String>>() {
+          @Override
+          public List<String> call() throws IOException {
+            return KeyLogs.read(s3, bucketName, logKey);
+          }
+        }));
+      }
+      for (int i = 0; i < window.size(); i++) {
+        long writtenAt = KeyLogs.getWrittenAt(accessLogPrefix, window.get(i));
+        for (String key : await(reads.get(i))) {
+          accessTimes.record(key, writtenAt);
+        }
+      }
+    }
+    logger.info("Read {} access logs of S3 build cache bucket '{}' with {} accessed entries", logKeys.size(),
+        bucketName, accessTimes.size());
+    return accessTimes;
+  }
+
+  private static long getLastAccess(S3ObjectSummary entry, AccessTimes accessTimes) {
+    long modified = entry.getLastModified() != null ? entry.getLastModified().getTime() : 0;
+    return Math.max(modified, accessTimes.getLastAccess(entry.getKey()));
+  }
+
+  private static int getAgeHours(long now, long lastAccess, int maxAgeHours) {
+    return (int) Math.max(0, Math.min(maxAgeHours, (now - lastAccess) / HOUR_MILLIS));
+  }
+
+  /**
+   * Lists every shard on the executor, deleting the entries the filter picks.
+   */
+  private void listAll(final AmazonS3 s3, final EntryFilter filter) throws IOException {
+    List<Future<Void>> listings = new ArrayList<>();
+    for (int i = 0; i < SHARDS.length(); i++) {
+      final String shardPrefix = prefix + SHARDS.charAt(i);
+      listings.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          listShard(s3, shardPrefix, filter);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Void> listing : listings) {
+        await(listing);
+      }
+    } finally {
+      for (Future<Void> listing : listings) {
+        listing.cancel(true);
+      }
+    }
+  }
+
+  private void listShard(AmazonS3 s3, String shardPrefix, EntryFilter filter) throws IOException {
+    Deletes deletes = new Deletes(s3);
+    ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(shardPrefix);
+    boolean more = true;
+    while (more) {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Interrupted while listing S3 build cache bucket");
+      }
+      ListObjectsV2Result result = s3.listObjectsV2(request);
+      request.setContinuationToken(result.getNextContinuationToken());
+      more = result.isTruncated();
+      for (S3ObjectSummary summary : result.getObjectSummaries()) {
+        String excluded = getExcludedPrefix(summary.getKey());
+        if (excluded != null) {
+          String skipTo = excluded + Character.MAX_VALUE;
+          if (!skipTo.equals(request.getStartAfter())) {
+            // Lists on after the excluded prefix instead of listing everything below it, e.g. the chunks
+            request.setContinuationToken(null);
+            request.setStartAfter(skipTo);
+            more = true;
+            break;
+          }
+          continue;
+        }
+        if (filter.shouldDelete(summary)) {
+          deletes.add(summary);
+        }
+      }
+    }
+    deletes.flush();
+  }
+
+  private String getExcludedPrefix(String key) {
+    for (String excluded : excludedPrefixes) {
+      if (key.startsWith(excluded)) {
+        return excluded;
+      }
+    }
+    return null;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while pruning S3 build cache bucket");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Error while pruning S3 build cache bucket", cause);
+    }
+  }
+
+  private interface EntryFilter {
+    boolean shouldDelete(S3ObjectSummary entry);
+  }
+
+  /**
+   * Deletes the entries of one listing in batches of the most keys a request may delete.
+   */
+  private final class Deletes {
+
+    private final AmazonS3 s3;
+    private final List<S3ObjectSummary> batch = new ArrayList<>();
+
+    Deletes(AmazonS3 s3) {
+      this.s3 = s3;
+    }
+
+    void add(S3ObjectSummary entry) {
+      batch.add(entry);
+      if (batch.size() == DELETE_BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<>(batch.size());
+      for (S3ObjectSummary entry : batch) {
+        keys.add(new DeleteObjectsRequest.KeyVersion(entry.getKey()));
+      }
+      Set<String> failed = new HashSet<>();
+      try {
+        s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(keys).withQuiet(true));
+      } catch (MultiObjectDeleteException e) {
+        for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+          failed.add(error.getKey());
+        }
+        logger.warn("Could not delete {} entries of S3 build cache bucket '{}': {}", failed.size(), bucketName,
+            e.getMessage());
+        failedDeletes.addAndGet(failed.size());
+      }
+      for (S3ObjectSummary entry : batch) {
+        if (!failed.contains(entry.getKey())) {
+          deletedEntries.incrementAndGet();
+          deletedBytes.addAndGet(entry.getSize());
+        }
+      }
+      batch.clear();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of equally sized byte arrays used to buffer cache entries in memory.
+ *
+ * <p>Released buffers are kept for reuse up to a fixed number, further buffers are left to the garbage
+ * collector.</p>
+ */
+class BufferPool {
+
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  static final int DEFAULT_MAX_POOLED = 256;
+
+  private static final BufferPool SHARED = new BufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+
+  private final int chunkSize;
+  private final BlockingQueue<byte[]> free;
+
+  BufferPool(int chunkSize, int maxPooled) {
+    this.chunkSize = chunkSize;
+    this.free = new ArrayBlockingQueue<>(maxPooled);
+  }
+
+  static BufferPool shared() {
+    return SHARED;
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  byte[] acquire() {
+    byte[] buffer = free.poll();
+    return buffer != null ? buffer : new byte[chunkSize];
+  }
+
+  void release(byte[] buffer) {
+    if (buffer.length == chunkSize) {
+      free.offer(buffer);
+    }
+  }
+
+  int pooled() {
+    return free.size();
+  }
+}
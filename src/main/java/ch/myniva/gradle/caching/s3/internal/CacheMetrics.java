@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the remote cache operations of one build.
+ */
+class CacheMetrics {
+
+  private static final double MIB = 1024 * 1024;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong cachedMisses = new AtomicLong();
+  private final AtomicLong loadErrors = new AtomicLong();
+  private final AtomicLong stores = new AtomicLong();
+  private final AtomicLong storeErrors = new AtomicLong();
+  private final AtomicLong skippedStores = new AtomicLong();
+  private final AtomicLong bytesDownloaded = new AtomicLong();
+  private final AtomicLong bytesUploaded = new AtomicLong();
+  private final AtomicLong downloadNanos = new AtomicLong();
+  private final LatencyHistogram loadLatency = new LatencyHistogram();
+  private final LatencyHistogram storeLatency = new LatencyHistogram();
+
+  void hit(long nanos, long bytes) {
+    hits.incrementAndGet();
+    bytesDownloaded.addAndGet(bytes);
+    downloadNanos.addAndGet(nanos);
+    loadLatency.record(nanos);
+  }
+
+  void localHit() {
+    localHits.incrementAndGet();
+  }
+
+  void miss(long nanos) {
+    misses.incrementAndGet();
+    loadLatency.record(nanos);
+  }
+
+  /**
+   * A miss which was answered without asking S3.
+   */
+  void cachedMiss() {
+    cachedMisses.incrementAndGet();
+  }
+
+  void loadError(long nanos) {
+    loadErrors.incrementAndGet();
+    loadLatency.record(nanos);
+  }
+
+  void stored(long nanos, long bytes) {
+    stores.incrementAndGet();
+    bytesUploaded.addAndGet(bytes);
+    storeLatency.record(nanos);
+  }
+
+  void storeError(long nanos) {
+    storeErrors.incrementAndGet();
+    storeLatency.record(nanos);
+  }
+
+  /**
+   * A store which did not upload because the entry already existed or was being stored.
+   */
+  void skippedStore() {
+    skippedStores.incrementAndGet();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getLoadErrors() {
+    return loadErrors.get();
+  }
+
+  long getStores() {
+    return stores.get();
+  }
+
+  long getSkippedStores() {
+    return skippedStores.get();
+  }
+
+  boolean isEmpty() {
+    return hits.get() + localHits.get() + misses.get() + cachedMisses.get() + loadErrors.get()
+        + stores.get() + storeErrors.get() + skippedStores.get() == 0;
+  }
+
+  String getSummary() {
+    return String.format(Locale.ROOT,
+        "S3 build cache: %d hits, %d local hits, %d misses (%d answered locally), %d load errors, "
+            + "%d stores, %d store errors, %d stores skipped; "
+            + "downloaded %.1f MiB at %.1f MiB/s, uploaded %.1f MiB at %.1f MiB/s; "
+            + "load latency p50 %d ms, p95 %d ms, p99 %d ms, max %d ms; "
+            + "store latency p50 %d ms, p95 %d ms, p99 %d ms, max %d ms",
+        hits.get(), localHits.get(), misses.get() + cachedMisses.get(), cachedMisses.get(), loadErrors.get(),
+        stores.get(), storeErrors.get(), skippedStores.get(),
+        bytesDownloaded.get() / MIB, throughput(bytesDownloaded.get(), downloadNanos.get()),
+        bytesUploaded.get() / MIB, throughput(bytesUploaded.get(), storeLatency.getTotalNanos()),
+        loadLatency.getPercentileMillis(0.5), loadLatency.getPercentileMillis(0.95),
+        loadLatency.getPercentileMillis(0.99), loadLatency.getMaxMillis(),
+        storeLatency.getPercentileMillis(0.5), storeLatency.getPercentileMillis(0.95),
+        storeLatency.getPercentileMillis(0.99), storeLatency.getMaxMillis());
+  }
+
+  String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\"loads\":{")
+        .append("\"hits\":").append(hits.get())
+        .append(",\"localHits\":").append(localHits.get())
+        .append(",\"misses\":").append(misses.get())
+        .append(",\"cachedMisses\":").append(cachedMisses.get())
+        .append(",\"errors\":").append(loadErrors.get())
+        .append(",\"bytes\":").append(bytesDownloaded.get())
+        .append(",\"bytesPerSecond\":")
+        .append(Math.round(throughput(bytesDownloaded.get(), downloadNanos.get()) * MIB))
+        .append(",\"latencyMillis\":");
+    appendLatency(json, loadLatency);
+    json.append("},\"stores\":{")
+        .append("\"count\":").append(stores.get())
+        .append(",\"errors\":").append(storeErrors.get())
+        .append(",\"skipped\":").append(skippedStores.get())
+        .append(",\"bytes\":").append(bytesUploaded.get())
+        .append(",\"bytesPerSecond\":")
+        .append(Math.round(throughput(bytesUploaded.get(), storeLatency.getTotalNanos()) * MIB))
+        .append(",\"latencyMillis\":");
+    appendLatency(json, storeLatency);
+    json.append("}}");
+    return json.toString();
+  }
+
+  void writeJson(File file) throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create directory " + parent);
+    }
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+      writer.write(toJson());
+    }
+  }
+
+  private static void appendLatency(StringBuilder json, LatencyHistogram histogram) {
+    json.append("{\"count\":").append(histogram.getCount())
+        .append(",\"p50\":").append(histogram.getPercentileMillis(0.5))
+        .append(",\"p95\":").append(histogram.getPercentileMillis(0.95))
+        .append(",\"p99\":").append(histogram.getPercentileMillis(0.99))
+        .append(",\"max\":").append(histogram.getMaxMillis())
+        .append('}');
+  }
+
+  /**
+   * Returns the throughput in MiB per second.
+   */
+  private static double throughput(long bytes, long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return bytes / MIB / ((double) nanos / TimeUnit.SECONDS.toNanos(1));
+  }
+}
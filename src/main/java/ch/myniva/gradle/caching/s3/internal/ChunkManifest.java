@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The object stored under the key of an entry which is stored in chunks: the names and lengths of the entry's
+ * chunks in order, one per line below a header line.
+ */
+class ChunkManifest {
+
+  /**
+   * User metadata key marking manifests, sent as {@code x-amz-meta-format} like the codec of entries.
+   */
+  static final String METADATA_KEY = "format";
+  static final String FORMAT = "chunks";
+
+  private static final String HEADER = "chunks v1";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final List<Chunk> chunks;
+
+  ChunkManifest(List<Chunk> chunks) {
+    this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+  }
+
+  /**
+   * Whether the object with the given metadata is a chunk manifest rather than the content of an entry.
+   */
+  static boolean isManifest(ObjectMetadata meta) {
+    return meta != null && FORMAT.equals(meta.getUserMetaDataOf(METADATA_KEY));
+  }
+
+  static void addToMetadata(ObjectMetadata meta) {
+    meta.addUserMetadata(METADATA_KEY, FORMAT);
+  }
+
+  List<Chunk> getChunks() {
+    return chunks;
+  }
+
+  long getContentLength() {
+    long length = 0;
+    for (Chunk chunk : chunks) {
+      length += chunk.getLength();
+    }
+    return length;
+  }
+
+  void writeTo(OutputStream os) throws IOException {
+    Writer writer = new OutputStreamWriter(os, UTF_8);
+    writer.write(HEADER);
+    writer.write('\n');
+    for (Chunk chunk : chunks) {
+      writer.write(chunk.getHash());
+      writer.write(' ');
+      writer.write(Integer.toString(chunk.getLength()));
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  static ChunkManifest read(InputStream is) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8));
+    String header = reader.readLine();
+    if (!HEADER.equals(header)) {
+      throw new IOException("Unsupported chunk manifest format '" + header + "'");
+    }
+    List<Chunk> chunks = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      int separator = line.indexOf(' ');
+      try {
+        chunks.add(new Chunk(line.substring(0, separator), Integer.parseInt(line.substring(separator + 1))));
+      } catch (RuntimeException e) {
+        throw new IOException("Malformed chunk manifest line '" + line + "'");
+      }
+    }
+    return new ChunkManifest(chunks);
+  }
+
+  static final class Chunk {
+    private final String hash;
+    private final int length;
+
+    Chunk(String hash, int length) {
+      this.hash = hash;
+      this.length = length;
+    }
+
+    /**
+     * The hex encoded SHA-256 of the chunk's content, which is also its name in the bucket.
+     */
+    String getHash() {
+      return hash;
+    }
+
+    int getLength() {
+      return length;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.StorageClass;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+/**
+ * Stores the chunks of entries as objects named by the SHA-256 of their content, so that chunks shared by
+ * several entries are stored only once.
+ *
+ * <p>Chunks are uploaded and downloaded in parallel on a bounded pool, with at most {@code concurrency} chunks
+ * held in memory per entry. Downloaded chunks are verified against their name and copied into the local tier if
+ * there is one, where loads of other entries containing the same chunks find them.</p>
+ *
+ * <p>Chunks are put with {@code If-None-Match: *}, so that S3 rejects a chunk which is already in the bucket before
+ * its content is sent, except for chunks which were found to be corrupt and need to be replaced.</p>
+ */
+class ChunkStore {
+
+  static final String LOCAL_PREFIX = "chunk-";
+
+  private final String bucketName;
+  private final String keyPrefix;
+  private final ExecutorService executor;
+  private final int concurrency;
+  private final ExpiringKeyCache presenceCache;
+  private final long presenceCacheTtlMillis;
+  private final AtomicLong uploadedChunks = new AtomicLong();
+  private final AtomicLong reusedChunks = new AtomicLong();
+  private final Set<String> corruptChunks = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  ChunkStore(String bucketName, String keyPrefix, ExecutorService executor, int concurrency,
+      ExpiringKeyCache presenceCache, long presenceCacheTtlMillis) {
+    this.bucketName = bucketName;
+    this.keyPrefix = keyPrefix;
+    this.executor = executor;
+    this.concurrency = Math.max(1, concurrency);
+    this.presenceCache = presenceCache;
+    this.presenceCacheTtlMillis = presenceCacheTtlMillis;
+  }
+
+  String getKey(String hash) {
+    return keyPrefix + hash;
+  }
+
+  /**
+   * Uploads the chunks of the content which are not in the bucket yet and returns the number of bytes uploaded.
+   */
+  long uploadMissing(final AmazonS3 s3, SpoolingOutputStream content, List<ChunkManifest.Chunk> chunks,
+      final EntryCodec codec, final StorageClass storageClass) throws IOException {
+    final Semaphore permits = new Semaphore(concurrency);
+    List<Future<Long>> uploads = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    try {
+      try (InputStream is = content.openInputStream()) {
+        for (final ChunkManifest.Chunk chunk : chunks) {
+          final byte[] data = readFully(is, chunk.getLength());
+          if (!seen.add(chunk.getHash()) || presenceCache.contains(bucketName, getKey(chunk.getHash()))) {
+            reusedChunks.incrementAndGet();
+            continue;
+          }
+          permits.acquire();
+          uploads.add(executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+              try {
+                return upload(s3, chunk.getHash(), data, codec, storageClass);
+              } finally {
+                permits.release();
+              }
+            }
+          }));
+        }
+      }
+      long uploaded = 0;
+      for (Future<Long> upload : uploads) {
+        uploaded += upload.get();
+      }
+      return uploaded;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancel(uploads);
+      throw new InterruptedIOException("Interrupted while uploading chunks");
+    } catch (ExecutionException e) {
+      cancel(uploads);
+      throw rethrow(e, "Error while uploading chunks");
+    } catch (IOException | RuntimeException e) {
+      cancel(uploads);
+      throw e;
+    }
+  }
+
+  private long upload(AmazonS3 s3, String hash, byte[] data, EntryCodec codec, StorageClass storageClass)
+      throws IOException {
+    String key = getKey(hash);
+    EncodedChunk encoded = new EncodedChunk(data.length);
+    try (OutputStream os = codec.encode(encoded)) {
+      os.write(data);
+    }
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(encoded.size());
+    EntryCodecs.addToMetadata(codec, meta);
+    PutObjectRequest request = new PutObjectRequest(bucketName, key, encoded.openInputStream(), meta);
+    if (storageClass != null) {
+      request.withStorageClass(storageClass);
+    }
+    boolean corrupt = corruptChunks.contains(hash);
+    if (!corrupt) {
+      request.putCustomRequestHeader("If-None-Match", "*");
+    }
+    try {
+      s3.putObject(request);
+    } catch (AmazonS3Exception e) {
+      if (corrupt || !AwsS3BuildCacheService.isAlreadyPresent(e)) {
+        throw e;
+      }
+      reusedChunks.incrementAndGet();
+      presenceCache.record(bucketName, key, presenceCacheTtlMillis);
+      return 0;
+    }
+    corruptChunks.remove(hash);
+    uploadedChunks.incrementAndGet();
+    presenceCache.record(bucketName, key, presenceCacheTtlMillis);
+    return encoded.size();
+  }
+
+  /**
+   * Returns a stream of the content of the given chunks in order. The next chunks are fetched in parallel while
+   * the current one is read, from the local tier if it has them or from the bucket otherwise.
+   *
+   * @throws MissingChunkException from the stream if a chunk is not in the bucket
+   * @throws CorruptChunkException from the stream if the content of a chunk in the bucket does not match its name,
+   *     or cannot be decoded
+   */
+  ChunkedInputStream open(AmazonS3 s3, ChunkManifest manifest, LocalDiskTier localTier) {
+    return new ChunkedInputStream(s3, manifest.getChunks().iterator(), localTier);
+  }
+
+  private byte[] fetch(AmazonS3 s3, ChunkManifest.Chunk chunk, LocalDiskTier localTier, AtomicLong downloaded)
+      throws IOException {
+    String localKey = LOCAL_PREFIX + chunk.getHash();
+    if (localTier != null) {
+      InputStream local = localTier.open(localKey);
+      if (local != null) {
+        byte[] data = null;
+        try (InputStream is = local) {
+          data = readFully(is, chunk.getLength());
+        } catch (EOFException e) {
+          // Truncated, like a corrupt copy it is replaced by the one from the bucket
+        }
+        if (data != null && matches(chunk, data)) {
+          return data;
+        }
+      }
+    }
+    String key = getKey(chunk.getHash());
+    S3Object object;
+    try {
+      object = s3.getObject(bucketName, key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        // Lets the next store of an entry with this chunk upload it again
+        presenceCache.invalidate(bucketName, key);
+        throw new MissingChunkException(key);
+      }
+      throw e;
+    }
+    byte[] data;
+    try (InputStream content = object.getObjectContent();
+         InputStream is = EntryCodecs.forMetadata(object.getObjectMetadata()).decode(content)) {
+      data = readFully(is, chunk.getLength());
+      ObjectMetadata meta = object.getObjectMetadata();
+      downloaded.addAndGet(meta != null ? meta.getContentLength() : data.length);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Cannot read chunk '" + key + "': " + e.getMessage());
+    } catch (EOFException | ZipException e) {
+      // Too short or not decodable, which is corrupt just like content which does not match the name
+      data = null;
+    }
+    if (data == null || !matches(chunk, data)) {
+      // Lets the next store of an entry with this chunk replace it
+      presenceCache.invalidate(bucketName, key);
+      corruptChunks.add(chunk.getHash());
+      throw new CorruptChunkException(key);
+    }
+    presenceCache.record(bucketName, key, presenceCacheTtlMillis);
+    if (localTier != null) {
+      localTier.put(localKey, new ByteArrayInputStream(data)).close();
+    }
+    return data;
+  }
+
+  private static boolean matches(ChunkManifest.Chunk chunk, byte[] data) {
+    MessageDigest digest = ContentDefinedChunker.sha256();
+    return ContentDefinedChunker.toHex(digest.digest(data)).equals(chunk.getHash());
+  }
+
+  long getUploadedChunks() {
+    return uploadedChunks.get();
+  }
+
+  long getReusedChunks() {
+    return reusedChunks.get();
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static byte[] readFully(InputStream is, int length) throws IOException {
+    byte[] data = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int read = is.read(data, offset, length - offset);
+      if (read == -1) {
+        throw new EOFException("Chunk ended after " + offset + " of " + length + " bytes");
+      }
+      offset += read;
+    }
+    return data;
+  }
+
+  private static void cancel(List<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private static IOException rethrow(ExecutionException e, String message) throws IOException {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(message, cause);
+  }
+
+  /**
+   * Thrown when a chunk listed in a manifest is not in the bucket, e.g. because it expired before the manifest.
+   */
+  static class MissingChunkException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MissingChunkException(String key) {
+      super("Chunk '" + key + "' is missing in S3 bucket");
+    }
+  }
+
+  /**
+   * Thrown when the content of a chunk in the bucket does not match the SHA-256 it is named by, or cannot be decoded.
+   */
+  static class CorruptChunkException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptChunkException(String key) {
+      super("Content of chunk '" + key + "' does not match its name");
+    }
+  }
+
+  /**
+   * Hands the encoded chunk to the upload without copying it out of the buffer.
+   */
+  private static class EncodedChunk extends ByteArrayOutputStream {
+    EncodedChunk(int size) {
+      super(size);
+    }
+
+    InputStream openInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  class ChunkedInputStream extends InputStream {
+    private final AmazonS3 s3;
+    private final Iterator<ChunkManifest.Chunk> chunks;
+    private final LocalDiskTier localTier;
+    private final Deque<Future<byte[]>> fetches = new ArrayDeque<>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private byte[] current = new byte[0];
+    private int position;
+
+    ChunkedInputStream(AmazonS3 s3, Iterator<ChunkManifest.Chunk> chunks, LocalDiskTier localTier) {
+      this.s3 = s3;
+      this.chunks = chunks;
+      this.localTier = localTier;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!ensureAvailable()) {
+        return -1;
+      }
+      int n = Math.min(len, current.length - position);
+      System.arraycopy(current, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    /**
+     * Returns the number of bytes of the chunks read so far which were downloaded from the bucket.
+     */
+    long getDownloadedBytes() {
+      return downloaded.get();
+    }
+
+    @Override
+    public void close() {
+      for (Future<byte[]> fetch : fetches) {
+        fetch.cancel(true);
+      }
+      fetches.clear();
+    }
+
+    private boolean ensureAvailable() throws IOException {
+      while (position == current.length) {
+        while (fetches.size() < concurrency && chunks.hasNext()) {
+          final ChunkManifest.Chunk chunk = chunks.next();
+          fetches.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+              return fetch(s3, chunk, localTier, downloaded);
+            }
+          }));
+        }
+        Future<byte[]> next = fetches.poll();
+        if (next == null) {
+          return false;
+        }
+        try {
+          current = next.get();
+          position = 0;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          close();
+          throw new InterruptedIOException("Interrupted while downloading chunks");
+        } catch (ExecutionException e) {
+          close();
+          throw rethrow(e, "Error while downloading chunks");
+        }
+      }
+      return true;
+    }
+  }
+}
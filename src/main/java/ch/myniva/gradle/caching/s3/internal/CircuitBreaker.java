@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to S3 for the rest of a build once too many recent requests failed or were slow.
+ *
+ * <p>The outcomes of the last {@code windowSize} requests are kept. Once at least {@code minimumRequests} were
+ * seen and the share of failed or slow ones reaches the threshold, the breaker opens and {@link #allowRequest}
+ * returns false. While it is open one probe request is allowed every {@code probeIntervalMillis}; a successful
+ * probe closes the breaker again with an empty window.</p>
+ */
+class CircuitBreaker {
+
+  static final int DEFAULT_WINDOW_SIZE = 20;
+  static final int DEFAULT_MINIMUM_REQUESTS = 10;
+
+  private final int minimumRequests;
+  private final double threshold;
+  private final long slowRequestNanos;
+  private final long probeIntervalNanos;
+
+  private final boolean[] failed;
+  private final boolean[] slow;
+  private int recorded;
+  private int next;
+
+  private boolean open;
+  private long nextProbe;
+  private int trips;
+  private long skipped;
+  private String reason;
+
+  /**
+   * @param threshold share of failed or slow requests in the window, between 0 and 1, which opens the breaker
+   */
+  CircuitBreaker(int windowSize, int minimumRequests, double threshold, long slowRequestMillis,
+      long probeIntervalMillis) {
+    this.minimumRequests = Math.min(minimumRequests, windowSize);
+    this.threshold = threshold;
+    this.slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(slowRequestMillis);
+    this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+    this.failed = new boolean[windowSize];
+    this.slow = new boolean[windowSize];
+  }
+
+  /**
+   * A breaker which never opens.
+   */
+  static CircuitBreaker disabled() {
+    return new CircuitBreaker(1, 1, Double.POSITIVE_INFINITY, Long.MAX_VALUE / 1000000, 0);
+  }
+
+  synchronized boolean allowRequest() {
+    if (!open) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (now - nextProbe >= 0) {
+      nextProbe = now + probeIntervalNanos;
+      return true;
+    }
+    skipped++;
+    return false;
+  }
+
+  synchronized void onSuccess(long nanos) {
+    if (open && nanos < slowRequestNanos) {
+      open = false;
+      recorded = 0;
+      next = 0;
+      return;
+    }
+    record(false, nanos);
+  }
+
+  synchronized void onFailure(long nanos) {
+    record(true, nanos);
+  }
+
+  synchronized boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Describes why and how often the breaker opened, or returns {@code null} if it never did.
+   */
+  synchronized String getReport() {
+    if (trips == 0) {
+      return null;
+    }
+    return String.format(Locale.ROOT, "S3 build cache was disabled %d time(s) during this build because %s; "
+        + "%d requests were skipped", trips, reason, skipped);
+  }
+
+  private void record(boolean failure, long nanos) {
+    if (open) {
+      // A failed probe, keep the breaker open until the next one
+      return;
+    }
+    failed[next] = failure;
+    slow[next] = nanos >= slowRequestNanos;
+    next = (next + 1) % failed.length;
+    recorded = Math.min(recorded + 1, failed.length);
+    if (recorded < minimumRequests) {
+      return;
+    }
+    int failures = 0;
+    int slowRequests = 0;
+    int bad = 0;
+    for (int i = 0; i < recorded; i++) {
+      if (failed[i]) {
+        failures++;
+      }
+      if (slow[i]) {
+        slowRequests++;
+      }
+      if (failed[i] || slow[i]) {
+        bad++;
+      }
+    }
+    if (bad >= threshold * recorded) {
+      open = true;
+      nextProbe = System.nanoTime() + probeIntervalNanos;
+      trips++;
+      reason = String.format(Locale.ROOT, "%d of the last %d requests failed and %d took longer than %d ms",
+          failures, recorded, slowRequests, TimeUnit.NANOSECONDS.toMillis(slowRequestNanos));
+    }
+  }
+}
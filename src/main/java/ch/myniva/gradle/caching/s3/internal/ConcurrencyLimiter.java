@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of requests an S3 client has in flight, adapting the limit to how S3 copes with the load.
+ *
+ * <p>The limit is adjusted by additive increase, multiplicative decrease: every successful request made while the
+ * limit was reached raises it by {@code 1 / limit}, i.e. by one per round of requests, up to the configured maximum.
+ * A throttled request, or latency of GET and HEAD requests rising above {@link #LATENCY_TOLERANCE} times its long
+ * term average, cuts it by {@link #BACKOFF_RATIO}, at most once per round: requests started before the last cut
+ * don't cut it again. Requests beyond the limit wait in the order they arrived.</p>
+ *
+ * <p>The limiter is installed as request handler of the client, so every attempt of every request holds a permit
+ * while it is sent and until its response arrives, the body of a response is read without one. Retries wait for
+ * their backoff without a permit and queue up again behind the other requests.</p>
+ */
+class ConcurrencyLimiter extends RequestHandler2 {
+
+  static final double BACKOFF_RATIO = 0.7;
+  static final double LATENCY_TOLERANCE = 2.0;
+  static final int LATENCY_WARMUP = 100;
+
+  private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+  private static final HandlerContextKey<Long> STARTED = new HandlerContextKey<>("ConcurrencyLimiter.started");
+  private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<>(Arrays.asList("SlowDown", "Throttling",
+      "ThrottlingException", "RequestLimitExceeded", "TooManyRequestsException", "RequestThrottled"));
+  private static final double SHORT_SMOOTHING = 0.1;
+  private static final double LONG_SMOOTHING = 0.002;
+  private static final int BASE_DELAY_MILLIS = 100;
+  private static final int THROTTLED_BASE_DELAY_MILLIS = 500;
+  private static final int MAX_BACKOFF_MILLIS = 20000;
+
+  private final int maxLimit;
+  private final Queue<Object> waiters = new ArrayDeque<>();
+  private double limit;
+  private int inFlight;
+  private long lastDecrease = System.nanoTime();
+  private double shortLatency;
+  private double longLatency;
+  private long latencySamples;
+  private long throttled;
+
+  /**
+   * Starts with the maximum, which is the size of the client's connection pool.
+   */
+  ConcurrencyLimiter(int maxLimit) {
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Retries the requests the SDK retries by default, with exponential backoff and full jitter, so that requests
+   * throttled at the same time don't come back at the same time.
+   */
+  static RetryPolicy newRetryPolicy() {
+    return new RetryPolicy(PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION, new RetryPolicy.BackoffStrategy() {
+      @Override
+      public long delayBeforeNextRetry(AmazonWebServiceRequest request, AmazonClientException exception,
+          int retriesAttempted) {
+        int base = isThrottling(exception) ? THROTTLED_BASE_DELAY_MILLIS : BASE_DELAY_MILLIS;
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, (long) base << Math.min(retriesAttempted, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+      }
+    }, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+  }
+
+  @Override
+  public void beforeAttempt(HandlerBeforeAttemptContext context) {
+    try {
+      context.getRequest().addHandlerContext(STARTED, acquire());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbortedException(e);
+    }
+  }
+
+  @Override
+  public void afterAttempt(HandlerAfterAttemptContext context) {
+    Request<?> request = context.getRequest();
+    Long started = request.getHandlerContext(STARTED);
+    if (started == null) {
+      return;
+    }
+    request.addHandlerContext(STARTED, null);
+    Exception exception = context.getException();
+    if (isThrottling(exception)) {
+      onThrottled(started);
+    } else if (exception == null
+        || exception instanceof AmazonServiceException && ((AmazonServiceException) exception).getStatusCode() < 500) {
+      // Responses like 404 are as good a measure of latency as successful ones
+      HttpMethodName method = request.getHttpMethod();
+      onSuccess(started, method == HttpMethodName.GET || method == HttpMethodName.HEAD);
+    } else {
+      release(started);
+    }
+  }
+
+  /**
+   * Waits for a permit and returns the time the request started at, which is passed back when it completes.
+   */
+  synchronized long acquire() throws InterruptedException {
+    if (waiters.isEmpty() && inFlight < (int) limit) {
+      inFlight++;
+      return System.nanoTime();
+    }
+    Object waiter = new Object();
+    waiters.add(waiter);
+    try {
+      while (waiters.peek() != waiter || inFlight >= (int) limit) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      waiters.remove(waiter);
+      notifyAll();
+      throw e;
+    }
+    waiters.remove();
+    inFlight++;
+    if (!waiters.isEmpty()) {
+      // The next request may fit as well
+      notifyAll();
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Returns the permit of a request which failed for reasons which say nothing about the load.
+   */
+  synchronized void release(long started) {
+    inFlight--;
+    if (!waiters.isEmpty()) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the permit of a request which succeeded, with its latency if it is comparable to others'.
+   */
+  synchronized void onSuccess(long started, boolean sampleLatency) {
+    boolean limited = inFlight >= (int) limit || !waiters.isEmpty();
+    release(started);
+    if (sampleLatency) {
+      long latency = System.nanoTime() - started;
+      if (latencySamples++ == 0) {
+        shortLatency = latency;
+        longLatency = latency;
+      } else {
+        shortLatency += SHORT_SMOOTHING * (latency - shortLatency);
+        longLatency += LONG_SMOOTHING * (latency - longLatency);
+      }
+      if (latencySamples >= LATENCY_WARMUP && shortLatency > LATENCY_TOLERANCE * longLatency) {
+        decrease(started, "responses slowed down");
+        return;
+      }
+    }
+    if (limited) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  /**
+   * Returns the permit of a request which S3 rejected because it is sent too many requests.
+   */
+  synchronized void onThrottled(long started) {
+    throttled++;
+    release(started);
+    decrease(started, "requests were throttled");
+  }
+
+  private void decrease(long started, String reason) {
+    if (started - lastDecrease < 0) {
+      return;
+    }
+    limit = Math.max(1, limit * BACKOFF_RATIO);
+    lastDecrease = System.nanoTime();
+    // Latencies measured before the cut must not cut it again
+    shortLatency = longLatency;
+    logger.info("S3 {}, sending at most {} requests at a time", reason, (int) limit);
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  synchronized int getWaiting() {
+    return waiters.size();
+  }
+
+  synchronized long getThrottled() {
+    return throttled;
+  }
+
+  private static boolean isThrottling(Exception exception) {
+    if (!(exception instanceof AmazonServiceException)) {
+      return false;
+    }
+    AmazonServiceException e = (AmazonServiceException) exception;
+    return e.getStatusCode() == 429 || e.getStatusCode() == 503 || THROTTLING_ERROR_CODES.contains(e.getErrorCode());
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Passes the content written to it through to the underlying stream and splits it into chunks at positions
+ * determined by the content itself.
+ *
+ * <p>A gear hash is rolled over the content and a chunk ends wherever its top bits are all zero, so inserting or
+ * removing bytes only moves the boundaries next to the change and the chunks after it are the same as before.
+ * Chunks are at least a quarter and at most four times the average size. Every chunk is named by the SHA-256 of
+ * its content.</p>
+ */
+class ContentDefinedChunker extends FilterOutputStream {
+
+  static final int MIN_AVERAGE_SIZE = 64;
+
+  /**
+   * The boundaries, and with them the names of all chunks in the bucket, depend on this table, so it must never
+   * change. {@link Random} is specified to return the same sequence for the same seed on every JVM.
+   */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    Random random = new Random(0x5eed5eedL);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final int minSize;
+  private final int maxSize;
+  private final long mask;
+  private final MessageDigest digest;
+  private final List<ChunkManifest.Chunk> chunks = new ArrayList<>();
+  private long hash;
+  private int size;
+  private boolean closed;
+
+  ContentDefinedChunker(OutputStream out, int averageSize) {
+    super(out);
+    int average = Integer.highestOneBit(Math.max(averageSize, MIN_AVERAGE_SIZE));
+    this.minSize = average / 4;
+    this.maxSize = average * 4;
+    this.mask = -1L << (64 - Integer.numberOfTrailingZeros(average));
+    this.digest = sha256();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    int start = off;
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      hash = (hash << 1) + GEAR[b[i] & 0xff];
+      size++;
+      if (size >= maxSize || (size >= minSize && (hash & mask) == 0)) {
+        digest.update(b, start, i + 1 - start);
+        endChunk();
+        start = i + 1;
+      }
+    }
+    digest.update(b, start, end - start);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      if (size > 0) {
+        endChunk();
+      }
+    }
+    super.close();
+  }
+
+  /**
+   * Returns the chunks of the content, once the stream is closed.
+   */
+  List<ChunkManifest.Chunk> getChunks() {
+    return Collections.unmodifiableList(chunks);
+  }
+
+  private void endChunk() {
+    chunks.add(new ChunkManifest.Chunk(toHex(digest.digest()), size));
+    hash = 0;
+    size = 0;
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Checksums of the content of entries, computed while an entry is written and verified while it is read.
+ *
+ * <p>The checksum is a CRC32 of the entry as the writer produced it, before it is encoded or split into chunks, so
+ * it covers the codec and the assembly of chunks as well as the transfer. CRC32C would be the more common choice
+ * for storage, but is not available before Java 9; both detect the same random corruption.</p>
+ */
+final class EntryChecksums {
+
+  /**
+   * User metadata key holding the checksum in hex, sent as {@code x-amz-meta-crc32}.
+   */
+  static final String METADATA_KEY = "crc32";
+
+  private EntryChecksums() {
+  }
+
+  /**
+   * Returns a stream which writes into the given one and computes the checksum of what passes through. The given
+   * stream is not closed with it.
+   */
+  static CheckedOutputStream checksum(OutputStream os) {
+    return new CheckedOutputStream(os, new CRC32());
+  }
+
+  static void addToMetadata(CheckedOutputStream os, ObjectMetadata meta) {
+    meta.addUserMetadata(METADATA_KEY, Long.toHexString(os.getChecksum().getValue()));
+  }
+
+  /**
+   * Returns a stream which reads the given one and throws a {@link ChecksumMismatchException} once it reaches the
+   * end if the content does not match the checksum in the metadata. Objects stored without a checksum are not
+   * verified.
+   */
+  static InputStream verify(InputStream is, ObjectMetadata meta) {
+    String expected = meta != null ? meta.getUserMetaDataOf(METADATA_KEY) : null;
+    if (expected == null) {
+      return is;
+    }
+    try {
+      return new VerifyingInputStream(is, Long.parseLong(expected, 16));
+    } catch (NumberFormatException e) {
+      return is;
+    }
+  }
+
+  /**
+   * Thrown when the content of an entry does not match its checksum.
+   */
+  static class ChecksumMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ChecksumMismatchException(String message) {
+      super(message);
+    }
+  }
+
+  private static class VerifyingInputStream extends CheckedInputStream {
+    private final long expected;
+
+    VerifyingInputStream(InputStream is, long expected) {
+      super(is, new CRC32());
+      this.expected = expected;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        verify();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read == -1) {
+        verify();
+      }
+      return read;
+    }
+
+    private void verify() throws ChecksumMismatchException {
+      Checksum checksum = getChecksum();
+      if (checksum.getValue() != expected) {
+        throw new ChecksumMismatchException("Content has checksum " + Long.toHexString(checksum.getValue())
+            + " instead of " + Long.toHexString(expected));
+      }
+    }
+  }
+}
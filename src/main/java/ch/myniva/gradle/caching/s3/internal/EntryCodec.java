@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding applied to cache entries before they are uploaded. The name of the codec is stored with the object so
+ * that entries written with different codecs can be read side by side.
+ */
+interface EntryCodec {
+
+  String getName();
+
+  /**
+   * Wraps the given stream so that everything written to the returned stream ends up encoded in the given one.
+   * Closing the returned stream closes the given one.
+   */
+  OutputStream encode(OutputStream os) throws IOException;
+
+  InputStream decode(InputStream is) throws IOException;
+}
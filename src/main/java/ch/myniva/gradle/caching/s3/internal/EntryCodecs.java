@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+final class EntryCodecs {
+
+  /**
+   * User metadata key holding the codec name, sent as {@code x-amz-meta-codec}. The standard
+   * {@code Content-Encoding} header is not used on purpose: HTTP clients and proxies may decode content with that
+   * header transparently, which would hand already decoded bytes to the codec.
+   */
+  static final String METADATA_KEY = "codec";
+
+  static final EntryCodec NONE = new EntryCodec() {
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public OutputStream encode(OutputStream os) {
+      return os;
+    }
+
+    @Override
+    public InputStream decode(InputStream is) {
+      return is;
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private EntryCodecs() {
+  }
+
+  /**
+   * Returns the codec with the given name, using the given compression level where applicable.
+   *
+   * @throws IllegalArgumentException if there is no codec with that name
+   */
+  static EntryCodec forName(String name, int level) {
+    if (name == null || name.equals(NONE.getName())) {
+      return NONE;
+    }
+    if (name.equals(Gzip.NAME)) {
+      return new Gzip(level);
+    }
+    throw new IllegalArgumentException("Unsupported codec '" + name + "'");
+  }
+
+  /**
+   * Returns the codec an object was written with. Objects written before codecs were introduced don't carry any
+   * codec name and are not encoded.
+   *
+   * @throws IllegalArgumentException if the object was written with an unknown codec
+   */
+  static EntryCodec forMetadata(ObjectMetadata meta) {
+    if (meta == null) {
+      return NONE;
+    }
+    return forName(meta.getUserMetaDataOf(METADATA_KEY), Deflater.DEFAULT_COMPRESSION);
+  }
+
+  static void addToMetadata(EntryCodec codec, ObjectMetadata meta) {
+    if (codec != NONE) {
+      meta.addUserMetadata(METADATA_KEY, codec.getName());
+    }
+  }
+
+  private static class Gzip implements EntryCodec {
+    static final String NAME = "gzip";
+
+    private final int level;
+
+    Gzip(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public String getName() {
+      return NAME;
+    }
+
+    @Override
+    public OutputStream encode(OutputStream os) throws IOException {
+      return new GZIPOutputStream(os, BUFFER_SIZE) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+
+    @Override
+    public InputStream decode(InputStream is) throws IOException {
+      return new GZIPInputStream(is, BUFFER_SIZE);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of object keys with a per-key expiry, used both for keys which were recently found to be missing in
+ * a bucket and for keys which were recently found to exist.
+ *
+ * <p>The shared instances live as long as the plugin classes are loaded, i.e. they are reused by all builds running
+ * in the same Gradle daemon. Entries expire after the TTL given when the key was recorded; when the cache is full the
+ * least recently recorded entries are evicted first. Buckets of the same name on different endpoints or in different
+ * regions are told apart by the views returned by {@link #forLocation}.</p>
+ */
+class ExpiringKeyCache {
+
+  static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private static final ExpiringKeyCache MISSES = new ExpiringKeyCache(DEFAULT_MAX_ENTRIES);
+  private static final ExpiringKeyCache PRESENCES = new ExpiringKeyCache(DEFAULT_MAX_ENTRIES);
+
+  private final Map<String, Long> expiries;
+  private final String location;
+
+  ExpiringKeyCache(final int maxEntries) {
+    this(new LinkedHashMap<String, Long>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        return size() > maxEntries;
+      }
+    }, null);
+  }
+
+  private ExpiringKeyCache(Map<String, Long> expiries, String location) {
+    this.expiries = expiries;
+    this.location = location;
+  }
+
+  /**
+   * Returns a view of this cache for the buckets of the given region and endpoint, either of which may be
+   * {@code null}. Views share the entries and the bound of this cache, but not their keys.
+   */
+  ExpiringKeyCache forLocation(String region, String endpoint) {
+    return new ExpiringKeyCache(expiries, region + "|" + endpoint);
+  }
+
+  /**
+   * Returns the daemon-wide cache of keys which were recently found to be missing.
+   */
+  static ExpiringKeyCache misses() {
+    return MISSES;
+  }
+
+  /**
+   * Returns the daemon-wide cache of keys which were recently found to exist, so that stores of entries which another
+   * build already uploaded can be skipped without asking S3.
+   */
+  static ExpiringKeyCache presences() {
+    return PRESENCES;
+  }
+
+  boolean contains(String bucketName, String bucketPath) {
+    String key = cacheKey(bucketName, bucketPath);
+    synchronized (expiries) {
+      Long expiry = expiries.get(key);
+      if (expiry == null) {
+        return false;
+      }
+      if (expiry - System.nanoTime() <= 0) {
+        expiries.remove(key);
+        return false;
+      }
+      return true;
+    }
+  }
+
+  void record(String bucketName, String bucketPath, long ttlMillis) {
+    if (ttlMillis <= 0) {
+      return;
+    }
+    String key = cacheKey(bucketName, bucketPath);
+    synchronized (expiries) {
+      // Re-insert so that the entry moves to the end of the eviction order
+      expiries.remove(key);
+      expiries.put(key, System.nanoTime() + ttlMillis * 1000000L);
+    }
+  }
+
+  void invalidate(String bucketName, String bucketPath) {
+    String key = cacheKey(bucketName, bucketPath);
+    synchronized (expiries) {
+      expiries.remove(key);
+    }
+  }
+
+  int size() {
+    synchronized (expiries) {
+      return expiries.size();
+    }
+  }
+
+  private String cacheKey(String bucketName, String bucketPath) {
+    String key = bucketName + "/" + bucketPath;
+    return location != null ? location + "|" + key : key;
+  }
+}
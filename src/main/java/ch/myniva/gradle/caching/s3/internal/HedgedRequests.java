@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends GET requests which did not respond within the usual time a second time and uses whichever response
+ * arrives first.
+ *
+ * <p>The delay before the second request is the given percentile of the recent response times, so with the 95th
+ * percentile about one in twenty requests is hedged. Hedging starts once enough response times were observed,
+ * and never more than {@code maxRatio} of all requests are hedged. The slower response is aborted.</p>
+ */
+class HedgedRequests {
+
+  static final int MIN_SAMPLES = 20;
+  private static final Logger logger = LoggerFactory.getLogger(HedgedRequests.class);
+  private static final int MAX_SAMPLES = 256;
+
+  private final ExecutorService executor;
+  private final double percentile;
+  private final double maxRatio;
+
+  private final long[] samples = new long[MAX_SAMPLES];
+  private int sampleCount;
+  private int nextSample;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+
+  HedgedRequests(ExecutorService executor, double percentile, double maxRatio) {
+    this.executor = executor;
+    this.percentile = percentile;
+    this.maxRatio = maxRatio;
+  }
+
+  S3Object getObject(final AmazonS3 s3, final GetObjectRequest request) throws IOException {
+    long start = System.nanoTime();
+    requests.incrementAndGet();
+    CompletionService<S3Object> completion = new ExecutorCompletionService<>(executor);
+    Future<S3Object> primary = completion.submit(new Callable<S3Object>() {
+      @Override
+      public S3Object call() {
+        return s3.getObject(request);
+      }
+    });
+    Future<S3Object> hedge = null;
+    try {
+      Future<S3Object> done = completion.poll(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+      if (done == null && allowHedge()) {
+        logger.debug("GET request for '{}' is slow, sending it again", request.getKey());
+        hedge = completion.submit(new Callable<S3Object>() {
+          @Override
+          public S3Object call() {
+            return s3.getObject((GetObjectRequest) request.clone());
+          }
+        });
+      }
+      if (done == null) {
+        done = completion.take();
+      }
+      Future<S3Object> other = done == primary ? hedge : primary;
+      S3Object object;
+      try {
+        object = done.get();
+      } catch (ExecutionException e) {
+        if (other == null) {
+          throw e;
+        }
+        // Fall back to the other request, which may still succeed
+        done = completion.take();
+        other = null;
+        object = done.get();
+      }
+      if (other != null) {
+        abortWhenDone(other);
+      }
+      if (done == hedge) {
+        hedgeWins.incrementAndGet();
+      }
+      record(System.nanoTime() - start);
+      return object;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } catch (InterruptedException e) {
+      abortWhenDone(primary);
+      if (hedge != null) {
+        abortWhenDone(hedge);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + request.getKey());
+    }
+  }
+
+  /**
+   * Lets requests in flight finish, so that the responses which lost are still aborted.
+   */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  long getRequests() {
+    return requests.get();
+  }
+
+  long getHedges() {
+    return hedges.get();
+  }
+
+  long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  /**
+   * Returns how long to wait for a response before hedging, or practically forever while there are too few
+   * samples.
+   */
+  synchronized long getHedgeDelayNanos() {
+    if (sampleCount < MIN_SAMPLES) {
+      return Long.MAX_VALUE;
+    }
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  synchronized void record(long nanos) {
+    samples[nextSample] = nanos;
+    nextSample = (nextSample + 1) % samples.length;
+    sampleCount = Math.min(sampleCount + 1, samples.length);
+  }
+
+  private boolean allowHedge() {
+    while (true) {
+      long current = hedges.get();
+      if (current + 1 > maxRatio * requests.get()) {
+        return false;
+      }
+      if (hedges.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases the connection of a response which is not used. The request is not cancelled, as the SDK could
+   * still return a response for it which nobody would close.
+   */
+  private void abortWhenDone(final Future<S3Object> future) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          S3Object object = future.get();
+          if (object != null) {
+            object.getObjectContent().abort();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          // Nothing to release
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.SdkHttpUtils;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Reads objects through a plain HTTP(S) base URL in front of the bucket, such as a CloudFront distribution, with
+ * unsigned requests.
+ *
+ * <p>Only the GET requests of loads are supported, all other operations throw
+ * {@link UnsupportedOperationException}. Object keys are appended to the base URL, and the metadata of an object is
+ * taken from the response headers, which CloudFront passes on from S3 including the {@code x-amz-meta-} user
+ * metadata. Errors are reported like the S3 client does, so a missing object is an {@link AmazonS3Exception} with
+ * status 404 and an object whose ETag does not match the constraints of the request is {@code null}. Connections are
+ * kept alive in a pool shared by all requests.</p>
+ */
+class HttpReadClient extends AbstractAmazonS3 {
+
+  private final String baseUrl;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * Creates a client which adds the given headers to every request, except for those with {@code null} values.
+   */
+  HttpReadClient(String baseUrl, Map<String, String> headers, int maxConnections) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    connections.setMaxTotal(maxConnections);
+    connections.setDefaultMaxPerRoute(maxConnections);
+    List<Header> defaultHeaders = new ArrayList<>();
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        if (header.getKey() != null && header.getValue() != null) {
+          defaultHeaders.add(new BasicHeader(header.getKey(), header.getValue()));
+        }
+      }
+    }
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(connections)
+        .setDefaultHeaders(defaultHeaders)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT)
+            .setSocketTimeout(ClientConfiguration.DEFAULT_SOCKET_TIMEOUT)
+            .build())
+        // Entries are stored encoded already, a CDN must hand them out byte for byte
+        .disableContentCompression()
+        .build();
+  }
+
+  String getUrl(String key) {
+    return baseUrl + SdkHttpUtils.urlEncode(key, true);
+  }
+
+  @Override
+  public S3Object getObject(String bucketName, String key) {
+    return getObject(new GetObjectRequest(bucketName, key));
+  }
+
+  @Override
+  public S3Object getObject(GetObjectRequest request) {
+    HttpGet get = new HttpGet(getUrl(request.getKey()));
+    long[] range = request.getRange();
+    if (range != null) {
+      get.setHeader(Headers.RANGE, "bytes=" + range[0] + "-" + range[1]);
+    }
+    List<String> eTags = request.getMatchingETagConstraints();
+    if (!eTags.isEmpty()) {
+      get.setHeader(Headers.GET_OBJECT_IF_MATCH, join(eTags));
+    }
+    HttpResponse response;
+    try {
+      response = httpClient.execute(get);
+    } catch (IOException e) {
+      throw new SdkClientException("Unable to execute HTTP request: " + e.getMessage(), e);
+    }
+    int status = response.getStatusLine().getStatusCode();
+    HttpEntity entity = response.getEntity();
+    if (status != 200 && status != 206) {
+      // Reading the error body lets the connection be reused
+      EntityUtils.consumeQuietly(entity);
+      if (status == 412 && !eTags.isEmpty()) {
+        return null;
+      }
+      AmazonS3Exception e = new AmazonS3Exception(response.getStatusLine().getReasonPhrase() + " (GET "
+          + get.getURI() + ")");
+      e.setStatusCode(status);
+      throw e;
+    }
+    S3Object object = new S3Object();
+    object.setBucketName(request.getBucketName());
+    object.setKey(request.getKey());
+    object.setObjectMetadata(getMetadata(response));
+    try {
+      object.setObjectContent(new S3ObjectInputStream(entity.getContent(), get));
+    } catch (IOException e) {
+      get.abort();
+      throw new SdkClientException("Unable to read HTTP response: " + e.getMessage(), e);
+    }
+    return object;
+  }
+
+  @Override
+  public void shutdown() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      // Only closes idle connections
+    }
+  }
+
+  /**
+   * Takes the metadata the service reads from the response headers, in the form the S3 client provides it.
+   */
+  private static ObjectMetadata getMetadata(HttpResponse response) {
+    ObjectMetadata meta = new ObjectMetadata();
+    for (Header header : response.getAllHeaders()) {
+      String name = header.getName().toLowerCase(Locale.ROOT);
+      if (name.startsWith(Headers.S3_USER_METADATA_PREFIX)) {
+        meta.addUserMetadata(name.substring(Headers.S3_USER_METADATA_PREFIX.length()), header.getValue());
+      } else if (name.equalsIgnoreCase(Headers.CONTENT_LENGTH)) {
+        meta.setContentLength(Long.parseLong(header.getValue().trim()));
+      } else if (name.equalsIgnoreCase(Headers.ETAG)) {
+        meta.setHeader(Headers.ETAG, header.getValue().replace("\"", ""));
+      } else if (name.equalsIgnoreCase(Headers.CONTENT_RANGE)) {
+        meta.setHeader(Headers.CONTENT_RANGE, header.getValue());
+      } else if (name.equalsIgnoreCase(Headers.CONTENT_TYPE)) {
+        meta.setContentType(header.getValue());
+      }
+    }
+    return meta;
+  }
+
+  private static String join(List<String> values) {
+    StringBuilder joined = new StringBuilder();
+    for (String value : values) {
+      if (joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+}
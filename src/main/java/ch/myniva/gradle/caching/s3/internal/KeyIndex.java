@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the entries in the bucket, which answers lookups of entries that are definitely not in the bucket
+ * without asking S3.
+ *
+ * <p>The index is a Bloom filter of the keys of all entries, rebuilt from a listing of the bucket from time to
+ * time, plus deltas: every build which stored entries writes the keys it stored into a small delta object when
+ * it finishes. Loading the index reads the filter and the deltas written since the filter was built, and keys
+ * stored by the current build are added as they are stored, so an entry is never reported as missing because
+ * the filter is older than the entry. Only entries stored by other builds which are still running are not
+ * known.</p>
+ */
+class KeyIndex {
+
+  static final String INDEX_NAME = "index/keys";
+  static final String DELTA_PREFIX = "index/deltas/";
+  static final double FALSE_POSITIVE_RATE = 0.01;
+
+  private static final Logger logger = LoggerFactory.getLogger(KeyIndex.class);
+
+  private static final int MAGIC = 0x53334b49;
+  private static final int VERSION = 1;
+  /**
+   * Deltas written up to this long before the filter was built are read as well, so that the clocks of the
+   * machines writing deltas and building the filter may be off by that much.
+   */
+  private static final long DELTA_OVERLAP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final String bucketName;
+  private final String indexKey;
+  private final String deltaPrefix;
+  private final long maxAgeMillis;
+  private final Set<String> added = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final KeyManifest stored = new KeyManifest();
+  private volatile BloomFilter filter;
+
+  KeyIndex(String bucketName, String indexKey, String deltaPrefix, long maxAgeMillis) {
+    this.bucketName = bucketName;
+    this.indexKey = indexKey;
+    this.deltaPrefix = deltaPrefix;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Whether the entry with the given key is definitely not in the bucket. Returns {@code false} until the index
+   * is loaded.
+   */
+  boolean isMissing(String key) {
+    BloomFilter current = filter;
+    return current != null && !added.contains(key) && !current.mightContain(key);
+  }
+
+  void recordStored(String key) {
+    added.add(key);
+    stored.record(key);
+  }
+
+  /**
+   * Reads the filter and the deltas written since, unless there is no filter or it is too old to be trusted.
+   */
+  void load(AmazonS3 s3) throws IOException {
+    S3Object object;
+    try {
+      object = s3.getObject(bucketName, indexKey);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        logger.info("S3 build cache bucket has no index at '{}'", indexKey);
+        return;
+      }
+      throw e;
+    }
+    long builtAt;
+    BloomFilter loaded;
+    try (DataInputStream is = new DataInputStream(new BufferedInputStream(object.getObjectContent()))) {
+      if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+        throw new IOException("Unsupported index format");
+      }
+      builtAt = is.readLong();
+      loaded = BloomFilter.read(is);
+    }
+    long age = System.currentTimeMillis() - builtAt;
+    if (age > maxAgeMillis) {
+      logger.warn("Not using S3 build cache index '{}', it was built {} hours ago", indexKey,
+          TimeUnit.MILLISECONDS.toHours(age));
+      return;
+    }
+    int deltas = 0;
+    for (String deltaKey : KeyLogs.listSince(s3, bucketName, deltaPrefix, builtAt - DELTA_OVERLAP_MILLIS)) {
+      // A delta deleted by a rebuild in the meantime reads as empty, its keys are in the new filter
+      added.addAll(KeyLogs.read(s3, bucketName, deltaKey));
+      deltas++;
+    }
+    filter = loaded;
+    logger.info("Loaded S3 build cache index '{}' built {} minutes ago and {} deltas", indexKey,
+        TimeUnit.MILLISECONDS.toMinutes(age), deltas);
+  }
+
+  /**
+   * Writes the keys stored by this build into a new delta, if it stored any.
+   */
+  void writeDelta(AmazonS3 s3) throws IOException {
+    if (stored.isEmpty()) {
+      return;
+    }
+    KeyLogs.write(s3, bucketName, deltaPrefix, stored);
+  }
+
+  /**
+   * Builds a new filter from a listing of all entries below {@code prefix}, skipping the given prefixes which hold
+   * anything but entries, and replaces the index with it. Deltas which are covered by the new filter are deleted.
+   * Returns the number of entries in the new filter.
+   */
+  long rebuild(AmazonS3 s3, String prefix, List<String> excludedPrefixes) throws IOException {
+    long builtAt = System.currentTimeMillis();
+    long[] hashes = new long[1024];
+    int count = 0;
+    ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+    ListObjectsV2Result result;
+    do {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Interrupted while listing S3 build cache bucket");
+      }
+      result = s3.listObjectsV2(request);
+      for (S3ObjectSummary summary : result.getObjectSummaries()) {
+        if (isExcluded(summary.getKey(), excludedPrefixes)) {
+          continue;
+        }
+        if (count == hashes.length) {
+          hashes = Arrays.copyOf(hashes, count * 2);
+        }
+        hashes[count++] = BloomFilter.hash(summary.getKey());
+      }
+      request.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated());
+
+    BloomFilter rebuilt = BloomFilter.create(count, FALSE_POSITIVE_RATE);
+    for (int i = 0; i < count; i++) {
+      rebuilt.addHash(hashes[i]);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, rebuilt.getSize() + 16));
+    try (DataOutputStream os = new DataOutputStream(bytes)) {
+      os.writeInt(MAGIC);
+      os.writeInt(VERSION);
+      os.writeLong(builtAt);
+      rebuilt.writeTo(os);
+    }
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(bytes.size());
+    s3.putObject(new PutObjectRequest(bucketName, indexKey, new ByteArrayInputStream(bytes.toByteArray()), meta));
+    logger.info("Rebuilt S3 build cache index '{}' of {} entries, {} bytes", indexKey, count, bytes.size());
+
+    KeyLogs.deleteBefore(s3, bucketName, deltaPrefix, builtAt - DELTA_OVERLAP_MILLIS);
+    return count;
+  }
+
+  static boolean isExcluded(String key, List<String> excludedPrefixes) {
+    for (String excluded : excludedPrefixes) {
+      if (key.startsWith(excluded)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
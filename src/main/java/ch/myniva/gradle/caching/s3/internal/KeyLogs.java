@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Lists of keys which builds append to a bucket as one object per build below a common prefix, named by the time
+ * they were written at so that listing the prefix returns them in the order they were written in.
+ */
+final class KeyLogs {
+
+  private static final int NAME_LENGTH = 15;
+  private static final int DELETE_BATCH_SIZE = 1000;
+
+  private KeyLogs() {
+  }
+
+  /**
+   * Writes the given keys into a new log below the prefix.
+   */
+  static void write(AmazonS3 s3, String bucketName, String prefix, KeyManifest keys) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    keys.writeTo(os);
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(os.size());
+    String logKey = newKey(prefix);
+    s3.putObject(new PutObjectRequest(bucketName, logKey, new ByteArrayInputStream(os.toByteArray()), meta));
+  }
+
+  /**
+   * Returns a new key below the prefix named by the current time.
+   */
+  static String newKey(String prefix) {
+    return prefix + name(System.currentTimeMillis()) + "-" + UUID.randomUUID();
+  }
+
+  /**
+   * Lists the logs written at or after the given time, oldest first.
+   */
+  static List<String> listSince(AmazonS3 s3, String bucketName, String prefix, long since) {
+    List<String> logKeys = new ArrayList<>();
+    ListObjectsV2Request request = new ListObjectsV2Request()
+        .withBucketName(bucketName)
+        .withPrefix(prefix)
+        .withStartAfter(prefix + name(Math.max(0, since)));
+    ListObjectsV2Result result;
+    do {
+      result = s3.listObjectsV2(request);
+      for (S3ObjectSummary summary : result.getObjectSummaries()) {
+        logKeys.add(summary.getKey());
+      }
+      request.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated());
+    return logKeys;
+  }
+
+  /**
+   * Reads the keys of a log, which is empty if the log was deleted in the meantime.
+   */
+  static List<String> read(AmazonS3 s3, String bucketName, String logKey) throws IOException {
+    try (InputStream is = s3.getObject(bucketName, logKey).getObjectContent()) {
+      return KeyManifest.read(is);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Returns the time the log with the given key was written at.
+   */
+  static long getWrittenAt(String prefix, String logKey) {
+    try {
+      return Long.parseLong(logKey.substring(prefix.length(), prefix.length() + NAME_LENGTH));
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      throw new IllegalArgumentException("Not a log below '" + prefix + "': " + logKey, e);
+    }
+  }
+
+  /**
+   * Deletes the logs written before the given time.
+   */
+  static void deleteBefore(AmazonS3 s3, String bucketName, String prefix, long before) {
+    String end = prefix + name(Math.max(0, before));
+    List<DeleteObjectsRequest.KeyVersion> batch = new ArrayList<>();
+    ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+    boolean done = false;
+    while (!done) {
+      ListObjectsV2Result result = s3.listObjectsV2(request);
+      for (S3ObjectSummary summary : result.getObjectSummaries()) {
+        if (summary.getKey().compareTo(end) >= 0) {
+          done = true;
+          break;
+        }
+        batch.add(new DeleteObjectsRequest.KeyVersion(summary.getKey()));
+        if (batch.size() == DELETE_BATCH_SIZE) {
+          s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(batch).withQuiet(true));
+          batch = new ArrayList<>();
+        }
+      }
+      request.setContinuationToken(result.getNextContinuationToken());
+      done |= !result.isTruncated();
+    }
+    if (!batch.isEmpty()) {
+      s3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(batch).withQuiet(true));
+    }
+  }
+
+  private static String name(long millis) {
+    return String.format("%0" + NAME_LENGTH + "d", millis);
+  }
+}
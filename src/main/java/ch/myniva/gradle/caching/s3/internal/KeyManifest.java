@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Set of cache keys used by a build, stored as a gzipped list of hash codes, one per line.
+ *
+ * <p>Consecutive builds of the same project and branch request largely the same keys, so the manifest of one
+ * build tells the next one which entries are worth fetching ahead of time.</p>
+ */
+class KeyManifest {
+
+  static final int MAX_KEYS = 100000;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Set<String> keys = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+  void record(String hashCode) {
+    if (keys.size() < MAX_KEYS) {
+      keys.add(hashCode);
+    }
+  }
+
+  boolean isEmpty() {
+    return keys.isEmpty();
+  }
+
+  void writeTo(OutputStream os) throws IOException {
+    List<String> snapshot;
+    synchronized (keys) {
+      snapshot = new ArrayList<>(keys);
+    }
+    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(os), UTF_8)) {
+      for (String key : snapshot) {
+        writer.write(key);
+        writer.write('\n');
+      }
+    }
+  }
+
+  static List<String> read(InputStream is) throws IOException {
+    List<String> keys = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(is), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null && keys.size() < MAX_KEYS) {
+        line = line.trim();
+        if (!line.isEmpty()) {
+          keys.add(line);
+        }
+      }
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * S3 client which is created in the background.
+ *
+ * <p>Creating a client and resolving credentials can take seconds on machines without instance metadata. The
+ * creation starts as soon as the build cache service is created, and only the first load or store waits for it,
+ * for at most the given budget.</p>
+ */
+class LazyS3Client implements Closeable {
+
+  private final FutureTask<AmazonS3> task;
+  private final long budgetMillis;
+  private S3ClientRegistry.Lease lease;
+  private boolean closed;
+
+  private LazyS3Client(final Callable<S3ClientRegistry.Lease> init, long budgetMillis) {
+    this.budgetMillis = budgetMillis;
+    this.task = new FutureTask<>(new Callable<AmazonS3>() {
+      @Override
+      public AmazonS3 call() throws Exception {
+        S3ClientRegistry.Lease acquired = init.call();
+        if (!adopt(acquired)) {
+          throw new IllegalStateException("Build cache service was closed before the S3 client was created");
+        }
+        return acquired.getClient();
+      }
+    });
+  }
+
+  /**
+   * Starts acquiring the client on a background thread.
+   */
+  static LazyS3Client start(Callable<S3ClientRegistry.Lease> init, long budgetMillis) {
+    LazyS3Client client = new LazyS3Client(init, budgetMillis);
+    Thread thread = new Thread(client.task, "s3-build-cache-client-init");
+    thread.setDaemon(true);
+    thread.start();
+    return client;
+  }
+
+  /**
+   * Wraps a client which is ready to use already.
+   */
+  static LazyS3Client of(final AmazonS3 s3) {
+    LazyS3Client client = new LazyS3Client(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() {
+        return S3ClientRegistry.Lease.unmanaged(s3);
+      }
+    }, 0);
+    client.task.run();
+    return client;
+  }
+
+  private synchronized boolean adopt(S3ClientRegistry.Lease acquired) {
+    if (closed) {
+      acquired.close();
+      return false;
+    }
+    lease = acquired;
+    return true;
+  }
+
+  /**
+   * Returns the client, waiting for its creation if necessary.
+   *
+   * @throws IOException if the client could not be created or was not ready within the budget
+   */
+  AmazonS3 get() throws IOException {
+    try {
+      if (task.isDone()) {
+        return task.get();
+      }
+      return task.get(budgetMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IOException("S3 client was not ready within " + budgetMillis + " ms");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not create S3 client: " + e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for S3 client");
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (lease != null) {
+      lease.close();
+      lease = null;
+    }
+  }
+}
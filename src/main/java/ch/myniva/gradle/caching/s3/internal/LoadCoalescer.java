@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent downloads of the same object.
+ *
+ * <p>The first caller for a key performs the download. Callers asking for the same key before its response
+ * arrives wait for it instead of sending their own request. If nobody is waiting once the response arrives, the
+ * first caller streams it as usual; otherwise the content is spooled to memory, or to disk beyond the spill
+ * threshold, and every caller reads its own copy of it. Callers arriving after the response started streaming
+ * download the object themselves.</p>
+ */
+class LoadCoalescer {
+
+  static final long DEFAULT_SPILL_THRESHOLD = 16 * 1024 * 1024;
+
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+  private final BufferPool bufferPool;
+  private final long spillThreshold;
+
+  LoadCoalescer(BufferPool bufferPool, long spillThreshold) {
+    this.bufferPool = bufferPool;
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * Returns the object downloaded by {@code download}, or by a concurrent call for the same key, or {@code null}
+   * if the download found no object.
+   */
+  S3Object getObject(String key, Callable<S3Object> download) throws IOException {
+    return getObject(key, download, new ResponseTimer());
+  }
+
+  /**
+   * Like {@link #getObject(String, Callable)}, recording when the response arrived: once {@code download} returned,
+   * unless it recorded an earlier response itself, before the content is spooled for the waiting callers. Those are
+   * given the time the download waited for its response.
+   */
+  S3Object getObject(String key, Callable<S3Object> download, ResponseTimer timer) throws IOException {
+    Flight flight = new Flight();
+    Flight existing = flights.putIfAbsent(key, flight);
+    if (existing != null) {
+      if (existing.follow()) {
+        return existing.await(key, timer);
+      }
+      return download(download, timer);
+    }
+    S3Object object;
+    try {
+      object = download(download, timer);
+    } catch (IOException | RuntimeException e) {
+      flights.remove(key, flight);
+      flight.fail(e);
+      throw e;
+    }
+    flight.responded(timer.getResponseNanos());
+    flights.remove(key, flight);
+    int followers = flight.close();
+    if (object == null || followers == 0) {
+      flight.complete(null, null);
+      return object;
+    }
+
+    SpoolingOutputStream spool = new SpoolingOutputStream(bufferPool, spillThreshold);
+    try (InputStream is = object.getObjectContent()) {
+      byte[] buffer = bufferPool.acquire();
+      try {
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          spool.write(buffer, 0, n);
+        }
+      } finally {
+        bufferPool.release(buffer);
+      }
+      spool.close();
+    } catch (IOException | RuntimeException e) {
+      spool.discard();
+      flight.fail(e);
+      throw e;
+    }
+    SharedContent content = new SharedContent(object, spool);
+    flight.complete(content, object.getObjectMetadata());
+    return content.newObject(object.getObjectMetadata());
+  }
+
+  int inFlight() {
+    return flights.size();
+  }
+
+  private static S3Object download(Callable<S3Object> download, ResponseTimer timer) throws IOException {
+    try {
+      S3Object object = download.call();
+      timer.responded();
+      return object;
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * A download which callers can wait for until its response arrives.
+   */
+  private static final class Flight {
+
+    private int followers;
+    private int abandoned;
+    private boolean closed;
+    private boolean done;
+    private SharedContent content;
+    private ObjectMetadata metadata;
+    private Throwable failure;
+    private long responseNanos = -1;
+
+    synchronized boolean follow() {
+      if (closed) {
+        return false;
+      }
+      followers++;
+      return true;
+    }
+
+    /**
+     * Stops accepting followers and returns how many there are.
+     */
+    synchronized int close() {
+      closed = true;
+      return followers;
+    }
+
+    synchronized void responded(long nanos) {
+      responseNanos = nanos;
+    }
+
+    synchronized void complete(SharedContent content, ObjectMetadata metadata) {
+      this.content = content;
+      this.metadata = metadata;
+      if (content != null) {
+        // One reference for the caller which downloaded the object, one for each follower still waiting
+        content.retain(followers + 1 - abandoned);
+      }
+      done = true;
+      notifyAll();
+    }
+
+    synchronized void fail(Throwable failure) {
+      this.closed = true;
+      this.failure = failure;
+      done = true;
+      notifyAll();
+    }
+
+    synchronized S3Object await(String key, ResponseTimer timer) throws IOException {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          abandoned++;
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for concurrent download of " + key);
+        }
+      }
+      if (failure != null) {
+        throw new IOException("Concurrent download of " + key + " failed", failure);
+      }
+      if (responseNanos >= 0) {
+        timer.responded(responseNanos);
+      }
+      return content != null ? content.newObject(metadata) : null;
+    }
+  }
+
+  /**
+   * Spooled content which is discarded when the last copy handed out is closed.
+   */
+  private static final class SharedContent {
+
+    private final S3Object original;
+    private final SpoolingOutputStream spool;
+    private int references;
+
+    SharedContent(S3Object original, SpoolingOutputStream spool) {
+      this.original = original;
+      this.spool = spool;
+    }
+
+    synchronized void retain(int count) {
+      references += count;
+      if (references == 0) {
+        spool.discard();
+      }
+    }
+
+    S3Object newObject(ObjectMetadata metadata) throws IOException {
+      S3Object object = new S3Object();
+      object.setBucketName(original.getBucketName());
+      object.setKey(original.getKey());
+      object.setObjectMetadata(metadata.clone());
+      object.setObjectContent(new FilterInputStream(spool.openInputStream()) {
+        private boolean closed;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            super.close();
+            retain(-1);
+          }
+        }
+      });
+      return object;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-through disk tier in front of the bucket.
+ *
+ * <p>The directory itself is the index: every entry is a file named after its cache key, and the file's
+ * modification time is its last access time. That way several daemons, or several agents sharing a volume, can
+ * use the same directory without any coordination except for eviction, which runs under an exclusive file lock
+ * so that only one process evicts at a time. Entries are written to a temporary file first and moved into place
+ * atomically, so readers never see partial entries.</p>
+ *
+ * <p>Eviction scans the whole directory, so it runs on a background thread shared by the daemon once a tenth of
+ * the size budget was written, instead of on the thread which stores or loads an entry.</p>
+ */
+class LocalDiskTier {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalDiskTier.class);
+
+  private static final String LOCK_FILE = ".lock";
+  private static final String PART_SUFFIX = ".part";
+  private static final long STALE_PART_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final Executor CLEANUP_EXECUTOR = TransferThreads.newPool("s3-build-cache-local-cleanup", 1);
+
+  private final Path directory;
+  private final long maxSize;
+  private final long maxAgeMillis;
+  private final Executor cleanupExecutor;
+  private final AtomicLong writtenSinceCleanup = new AtomicLong();
+  private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
+
+  LocalDiskTier(Path directory, long maxSize, long maxAgeMillis) {
+    this(directory, maxSize, maxAgeMillis, CLEANUP_EXECUTOR);
+  }
+
+  LocalDiskTier(Path directory, long maxSize, long maxAgeMillis, Executor cleanupExecutor) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.maxAgeMillis = maxAgeMillis;
+    this.cleanupExecutor = cleanupExecutor;
+  }
+
+  /**
+   * Opens the entry for the given key, or returns {@code null} if there is no entry or it has expired.
+   */
+  InputStream open(String key) throws IOException {
+    Path file = directory.resolve(key);
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    try {
+      long lastAccess = Files.getLastModifiedTime(file).toMillis();
+      long now = System.currentTimeMillis();
+      if (now - lastAccess > maxAgeMillis) {
+        channel.close();
+        return null;
+      }
+      if (now - lastAccess > TOUCH_INTERVAL_MILLIS) {
+        touch(file, now);
+      }
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return Channels.newInputStream(channel);
+  }
+
+  /**
+   * Copies the content into the tier and returns a stream reading the stored entry. The content stream is
+   * consumed but not closed.
+   */
+  InputStream put(String key, InputStream content) throws IOException {
+    Files.createDirectories(directory);
+    Path temp = Files.createTempFile(directory, key + ".", PART_SUFFIX);
+    FileChannel channel = null;
+    try {
+      long size;
+      try (OutputStream os = Files.newOutputStream(temp)) {
+        size = copy(content, os);
+      }
+      // Channels opened through NIO don't prevent the file from being moved or deleted on any platform
+      channel = FileChannel.open(temp, StandardOpenOption.READ);
+      try {
+        Files.move(temp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        // Someone else stored the same entry in the meantime, which has the same content
+        Files.deleteIfExists(temp);
+      }
+      if (writtenSinceCleanup.addAndGet(size) > maxSize / 10) {
+        cleanupInBackground();
+      }
+      return Channels.newInputStream(channel);
+    } catch (IOException | RuntimeException e) {
+      if (channel != null) {
+        channel.close();
+      }
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  /**
+   * Runs {@link #cleanup} on the background thread unless it is scheduled already.
+   */
+  void cleanupInBackground() {
+    if (!cleanupScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    cleanupExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          cleanup();
+        } finally {
+          cleanupScheduled.set(false);
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes expired entries and evicts the least recently used entries until the tier fits into its size budget.
+   * Does nothing if another process or thread is cleaning up the directory already.
+   */
+  void cleanup() {
+    writtenSinceCleanup.set(0);
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         FileLock lock = lockChannel.tryLock()) {
+      if (lock == null) {
+        return;
+      }
+      evict();
+    } catch (OverlappingFileLockException e) {
+      // Another thread of this process holds the lock and is cleaning up already
+    } catch (IOException e) {
+      logger.warn("Could not clean up local S3 build cache directory '{}': {}", directory, e.getMessage());
+    }
+  }
+
+  private void evict() throws IOException {
+    long now = System.currentTimeMillis();
+    List<Entry> entries = new ArrayList<>();
+    long totalSize = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.equals(LOCK_FILE)) {
+          continue;
+        }
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        long lastAccess = attributes.lastModifiedTime().toMillis();
+        if (name.endsWith(PART_SUFFIX)) {
+          if (now - lastAccess > STALE_PART_MILLIS) {
+            delete(file);
+          }
+          continue;
+        }
+        entries.add(new Entry(file, attributes.size(), lastAccess));
+        totalSize += attributes.size();
+      }
+    }
+
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return Long.compare(a.lastAccess, b.lastAccess);
+      }
+    });
+    int evicted = 0;
+    for (Entry entry : entries) {
+      if (totalSize <= maxSize && now - entry.lastAccess <= maxAgeMillis) {
+        break;
+      }
+      if (delete(entry.file)) {
+        totalSize -= entry.size;
+        evicted++;
+      }
+    }
+    logger.debug("Evicted {} entries from local S3 build cache directory '{}'", evicted, directory);
+  }
+
+  private static boolean delete(Path file) {
+    try {
+      return Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // Entry is probably in use on a platform which does not allow deleting open files
+      return false;
+    }
+  }
+
+  private static void touch(Path file, long now) {
+    try {
+      Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+    } catch (IOException e) {
+      // Only affects the eviction order
+    }
+  }
+
+  private static long copy(InputStream is, OutputStream os) throws IOException {
+    BufferPool pool = BufferPool.shared();
+    byte[] buffer = pool.acquire();
+    try {
+      long total = 0;
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        os.write(buffer, 0, read);
+        total += read;
+      }
+      return total;
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  private static class Entry {
+    private final Path file;
+    private final long size;
+    private final long lastAccess;
+
+    Entry(Path file, long size, long lastAccess) {
+      this.file = file;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads files as S3 multipart uploads, sending the parts in parallel on a bounded pool.
+ *
+ * <p>Parts are read straight from the file by the AWS client, so no part is ever copied to the heap. If any
+ * part fails the whole upload is aborted so that no orphaned parts are left behind in the bucket.</p>
+ */
+class MultipartUploader {
+
+  static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+  private static final Logger logger = LoggerFactory.getLogger(MultipartUploader.class);
+
+  private final ExecutorService executor;
+  private final long partSize;
+
+  MultipartUploader(ExecutorService executor, long partSize) {
+    this.executor = executor;
+    this.partSize = Math.max(partSize, MIN_PART_SIZE);
+  }
+
+  void upload(final AmazonS3 s3, String bucketName, String key, ObjectMetadata meta, StorageClass storageClass, File file)
+      throws IOException {
+    InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucketName, key, meta);
+    if (storageClass != null) {
+      initRequest.withStorageClass(storageClass);
+    }
+    String uploadId = s3.initiateMultipartUpload(initRequest).getUploadId();
+
+    List<Future<PartETag>> parts = new ArrayList<>();
+    try {
+      long length = file.length();
+      int partNumber = 1;
+      for (long offset = 0; offset < length; offset += partSize, partNumber++) {
+        final UploadPartRequest partRequest = new UploadPartRequest()
+            .withBucketName(bucketName)
+            .withKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withFile(file)
+            .withFileOffset(offset)
+            .withPartSize(Math.min(partSize, length - offset))
+            .withLastPart(offset + partSize >= length);
+        parts.add(executor.submit(new Callable<PartETag>() {
+          @Override
+          public PartETag call() {
+            return s3.uploadPart(partRequest).getPartETag();
+          }
+        }));
+      }
+
+      List<PartETag> partETags = new ArrayList<>(parts.size());
+      for (Future<PartETag> part : parts) {
+        partETags.add(part.get());
+      }
+      s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, partETags));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(s3, bucketName, key, uploadId, parts);
+      throw new InterruptedIOException("Interrupted while uploading parts of " + key);
+    } catch (ExecutionException e) {
+      abort(s3, bucketName, key, uploadId, parts);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Error while uploading parts of " + key, cause);
+    } catch (RuntimeException e) {
+      abort(s3, bucketName, key, uploadId, parts);
+      throw e;
+    }
+  }
+
+  private void abort(AmazonS3 s3, String bucketName, String key, String uploadId, List<Future<PartETag>> parts) {
+    for (Future<PartETag> part : parts) {
+      part.cancel(true);
+    }
+    try {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    } catch (RuntimeException e) {
+      logger.warn("Could not abort multipart upload of '{}': {}", key, e.getMessage());
+    }
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
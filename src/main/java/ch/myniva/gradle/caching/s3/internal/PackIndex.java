@@ -0,0 +1,428 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the entries which are stored in packs are: the pack and the byte range of every packed entry.
+ *
+ * <p>Every pack has an index object below a common prefix, named by the time it was written at, which lists the
+ * entries of the pack one per line below a header line. Once enough indexes were written since, a build which
+ * stores packs writes a snapshot of all entries, so that a daemon which starts reads the snapshot and the indexes
+ * written after it instead of every index ever written; indexes well behind the snapshot are deleted. Entries of
+ * packs older than the given maximum age are dropped, as the packs are expired by then. The shared instances live
+ * as long as the plugin classes are loaded, so later builds in a daemon only read the indexes written since.</p>
+ */
+class PackIndex {
+
+  static final String SNAPSHOT_NAME = "packs/snapshot";
+  /**
+   * The number of indexes read beyond the last snapshot after which a new snapshot is written.
+   */
+  static final int SNAPSHOT_INTERVAL = 100;
+  private static final Logger logger = LoggerFactory.getLogger(PackIndex.class);
+  private static final String HEADER = "pack v1";
+  private static final String SNAPSHOT_HEADER = "pack snapshot v1";
+  private static final String COVERED_UNTIL_METADATA_KEY = "covered-until";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /**
+   * Indexes written up to this long before the newest one seen are listed again, so that indexes which were
+   * written by machines with a clock that is off by that much, or which took that long to upload, are found.
+   */
+  private static final long LIST_OVERLAP_MILLIS = TimeUnit.HOURS.toMillis(1);
+  /**
+   * Indexes covered by a snapshot are kept this long, for daemons which read an older snapshot in the meantime.
+   */
+  private static final long SNAPSHOT_RETAIN_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final ConcurrentMap<String, PackIndex> SHARED = new ConcurrentHashMap<>();
+
+  private final String bucketName;
+  private final String indexPrefix;
+  private final String snapshotKey;
+  private final long maxAgeMillis;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Set<String> readIndexes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private long newestIndex;
+  private int indexesSinceSnapshot;
+  private boolean complete;
+
+  PackIndex(String bucketName, String indexPrefix, String snapshotKey, long maxAgeMillis) {
+    this.bucketName = bucketName;
+    this.indexPrefix = indexPrefix;
+    this.snapshotKey = snapshotKey;
+    this.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Returns the instance shared by all builds in the daemon. The snapshot key and maximum age are those given
+   * when the instance was first requested.
+   */
+  static PackIndex shared(String bucketName, String indexPrefix, String snapshotKey, long maxAgeMillis) {
+    String key = bucketName + "/" + indexPrefix;
+    PackIndex index = SHARED.get(key);
+    if (index == null) {
+      PackIndex created = new PackIndex(bucketName, indexPrefix, snapshotKey, maxAgeMillis);
+      index = SHARED.putIfAbsent(key, created);
+      if (index == null) {
+        index = created;
+      }
+    }
+    return index;
+  }
+
+  Entry get(String hashCode) {
+    return entries.get(hashCode);
+  }
+
+  /**
+   * Adds the entries of a pack which was just written along with the given index.
+   */
+  void add(String indexKey, Collection<Entry> packed) {
+    add(packed);
+    readIndexes.add(indexKey);
+  }
+
+  private void add(Collection<Entry> packed) {
+    for (Entry entry : packed) {
+      entries.put(entry.getHashCode(), entry);
+    }
+  }
+
+  /**
+   * Forgets the entries of a pack which no longer exists.
+   */
+  void removePack(String pack) {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      if (it.next().getPack().equals(pack)) {
+        it.remove();
+      }
+    }
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Reads the indexes written since the last refresh on the given executor, starting from the snapshot on the
+   * first refresh. Returns the number of indexes read.
+   */
+  synchronized int refresh(final AmazonS3 s3, ExecutorService executor) throws IOException {
+    long oldest = System.currentTimeMillis() - maxAgeMillis;
+    expire(oldest);
+    if (newestIndex == 0) {
+      readSnapshot(s3, oldest);
+    }
+    complete = false;
+    List<String> indexKeys = new ArrayList<>();
+    for (String indexKey : KeyLogs.listSince(s3, bucketName, indexPrefix,
+        Math.max(oldest, newestIndex - LIST_OVERLAP_MILLIS))) {
+      if (!readIndexes.contains(indexKey)) {
+        indexKeys.add(indexKey);
+      }
+    }
+    List<Future<List<Entry>>> reads = new ArrayList<>(indexKeys.size());
+    try {
+      for (final String indexKey : indexKeys) {
+        reads.add(executor.submit(new Callable<List<Entry>>() {
+          @Override
+          public List<Entry> call() throws IOException {
+            return readIndex(s3, indexKey);
+          }
+        }));
+      }
+      for (int i = 0; i < indexKeys.size(); i++) {
+        add(reads.get(i).get());
+        readIndexes.add(indexKeys.get(i));
+        newestIndex = Math.max(newestIndex, KeyLogs.getWrittenAt(indexPrefix, indexKeys.get(i)));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading pack indexes");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Error while reading pack indexes", cause);
+    } finally {
+      for (Future<List<Entry>> read : reads) {
+        read.cancel(true);
+      }
+    }
+    indexesSinceSnapshot += indexKeys.size();
+    complete = true;
+    return indexKeys.size();
+  }
+
+  private List<Entry> readIndex(AmazonS3 s3, String indexKey) throws IOException {
+    String pack = indexKey.substring(indexPrefix.length());
+    try (InputStream is = s3.getObject(bucketName, indexKey).getObjectContent()) {
+      return read(pack, is);
+    } catch (AmazonS3Exception e) {
+      // An index which expired or was deleted behind a snapshot since the listing goes with its pack or is covered
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      return Collections.emptyList();
+    }
+  }
+
+  private void readSnapshot(AmazonS3 s3, long oldest) throws IOException {
+    InputStream content;
+    try {
+      content = s3.getObject(bucketName, snapshotKey).getObjectContent();
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      return;
+    }
+    List<Entry> snapshot = new ArrayList<>();
+    long coveredUntil;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(content), UTF_8))) {
+      String header = reader.readLine();
+      if (header == null || !header.startsWith(SNAPSHOT_HEADER + " ")) {
+        logger.warn("Ignoring pack index snapshot '{}' of unsupported format", snapshotKey);
+        return;
+      }
+      coveredUntil = Long.parseLong(header.substring(SNAPSHOT_HEADER.length() + 1));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        int space = line.indexOf(' ');
+        String pack = line.substring(0, space);
+        if (KeyLogs.getWrittenAt("", pack) >= oldest) {
+          snapshot.add(parse(pack, line.substring(space + 1)));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Ignoring malformed pack index snapshot '{}': {}", snapshotKey, e.getMessage());
+      return;
+    }
+    add(snapshot);
+    newestIndex = coveredUntil;
+    logger.info("Read pack index snapshot '{}' of {} entries", snapshotKey, snapshot.size());
+  }
+
+  /**
+   * Drops the entries of packs written before the given time, which have expired.
+   */
+  private void expire(long oldest) {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      if (KeyLogs.getWrittenAt("", it.next().getPack()) < oldest) {
+        it.remove();
+      }
+    }
+    for (Iterator<String> it = readIndexes.iterator(); it.hasNext(); ) {
+      if (KeyLogs.getWrittenAt(indexPrefix, it.next()) < oldest) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Whether enough indexes were read since the last snapshot, and all indexes up to the newest one were read.
+   */
+  synchronized boolean isSnapshotDue() {
+    return complete && indexesSinceSnapshot >= SNAPSHOT_INTERVAL;
+  }
+
+  /**
+   * Writes a snapshot of all entries if one is due and the snapshot in the bucket is older, and deletes the
+   * indexes it covers which are older than {@link #SNAPSHOT_RETAIN_MILLIS}. Returns whether it was written.
+   */
+  synchronized boolean writeSnapshot(AmazonS3 s3) throws IOException {
+    if (!isSnapshotDue()) {
+      return false;
+    }
+    long coveredUntil = newestIndex;
+    if (getSnapshotCoveredUntil(s3) >= coveredUntil) {
+      indexesSinceSnapshot = 0;
+      return false;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int count = 0;
+    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), UTF_8)) {
+      writer.write(SNAPSHOT_HEADER + " " + coveredUntil + "\n");
+      for (Entry entry : entries.values()) {
+        writer.write(entry.getPack());
+        writer.write(' ');
+        writeLine(writer, entry);
+        count++;
+      }
+    }
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(bytes.size());
+    meta.addUserMetadata(COVERED_UNTIL_METADATA_KEY, Long.toString(coveredUntil));
+    s3.putObject(new PutObjectRequest(bucketName, snapshotKey, new ByteArrayInputStream(bytes.toByteArray()), meta));
+    indexesSinceSnapshot = 0;
+    logger.info("Wrote pack index snapshot '{}' of {} entries", snapshotKey, count);
+    KeyLogs.deleteBefore(s3, bucketName, indexPrefix, coveredUntil - SNAPSHOT_RETAIN_MILLIS);
+    return true;
+  }
+
+  private long getSnapshotCoveredUntil(AmazonS3 s3) {
+    try {
+      String coveredUntil = s3.getObjectMetadata(bucketName, snapshotKey)
+          .getUserMetaDataOf(COVERED_UNTIL_METADATA_KEY);
+      return coveredUntil != null ? Long.parseLong(coveredUntil) : 0;
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      return 0;
+    }
+  }
+
+  static void write(Collection<Entry> packed, OutputStream os) throws IOException {
+    Writer writer = new OutputStreamWriter(os, UTF_8);
+    writer.write(HEADER);
+    writer.write('\n');
+    for (Entry entry : packed) {
+      writeLine(writer, entry);
+    }
+    writer.flush();
+  }
+
+  private static void writeLine(Writer writer, Entry entry) throws IOException {
+    writer.write(entry.getHashCode());
+    writer.write(' ');
+    writer.write(Long.toString(entry.getOffset()));
+    writer.write(' ');
+    writer.write(Integer.toString(entry.getLength()));
+    writer.write(' ');
+    writer.write(entry.getCodec());
+    writer.write(' ');
+    writer.write(entry.getChecksum());
+    writer.write('\n');
+  }
+
+  static List<Entry> read(String pack, InputStream is) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8));
+    String header = reader.readLine();
+    if (!HEADER.equals(header)) {
+      throw new IOException("Unsupported pack index format '" + header + "'");
+    }
+    List<Entry> packed = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      try {
+        packed.add(parse(pack, line));
+      } catch (RuntimeException e) {
+        throw new IOException("Malformed pack index line '" + line + "'");
+      }
+    }
+    return packed;
+  }
+
+  private static Entry parse(String pack, String line) {
+    String[] fields = line.split(" ");
+    return new Entry(fields[0], pack, Long.parseLong(fields[1]), Integer.parseInt(fields[2]), fields[3], fields[4]);
+  }
+
+  static final class Entry {
+    private final String hashCode;
+    private final String pack;
+    private final long offset;
+    private final int length;
+    private final String codec;
+    private final String checksum;
+
+    Entry(String hashCode, String pack, long offset, int length, String codec, String checksum) {
+      this.hashCode = hashCode;
+      this.pack = pack;
+      this.offset = offset;
+      this.length = length;
+      this.codec = codec;
+      this.checksum = checksum;
+    }
+
+    String getHashCode() {
+      return hashCode;
+    }
+
+    /**
+     * The name of the pack, which is the name of its index and its data object below their prefixes.
+     */
+    String getPack() {
+      return pack;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+
+    /**
+     * The name of the codec the entry is encoded with.
+     */
+    String getCodec() {
+      return codec;
+    }
+
+    /**
+     * The hex encoded CRC32 of the decoded entry.
+     */
+    String getChecksum() {
+      return checksum;
+    }
+  }
+}
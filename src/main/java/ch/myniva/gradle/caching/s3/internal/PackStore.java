@@ -0,0 +1,412 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.StorageClass;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores small entries in packs, i.e. batches of entries which are uploaded as a single data object together with
+ * an index object listing where each entry is in the data.
+ *
+ * <p>Entries are buffered in memory until they add up to the pack size or the oldest of them has waited for
+ * {@link #MAX_PENDING_MILLIS}, and whatever is left is flushed when the build ends. Packed entries are read with a
+ * ranged GET of their bytes in the pack; packs which are read from repeatedly are copied into the local tier as a
+ * whole if there is one, where the next entries are read from.</p>
+ */
+class PackStore {
+
+  static final String DATA_PREFIX = "packs/data/";
+  static final String INDEX_PREFIX = "packs/index/";
+  static final String LOCAL_PREFIX = "pack-";
+  static final long MAX_PENDING_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  /**
+   * The number of entries read from a pack after which the whole pack is copied into the local tier.
+   */
+  static final int WHOLE_PACK_READS = 3;
+  private static final String NO_CHECKSUM = "-";
+
+  private final String bucketName;
+  private final String dataPrefix;
+  private final String indexPrefix;
+  private final PackIndex index;
+  private final int threshold;
+  private final long packSize;
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private Map<String, Pending> pending = new LinkedHashMap<>();
+  private Map<String, Pending> flushing = Collections.emptyMap();
+  private long pendingBytes;
+  private long pendingSince;
+  private final ConcurrentMap<String, AtomicInteger> packReads = new ConcurrentHashMap<>();
+  private final AtomicLong writtenPacks = new AtomicLong();
+  private final AtomicLong packedEntries = new AtomicLong();
+  private final AtomicLong rangeReads = new AtomicLong();
+
+  PackStore(String bucketName, String dataPrefix, String indexPrefix, PackIndex index, int threshold,
+      long packSize) {
+    this.bucketName = bucketName;
+    this.dataPrefix = dataPrefix;
+    this.indexPrefix = indexPrefix;
+    this.index = index;
+    this.threshold = threshold;
+    this.packSize = packSize;
+  }
+
+  /**
+   * Buffers the captured entry for the next pack if it is small enough. The codec and checksum of the entry are
+   * taken from the metadata it would have been stored with as an object of its own.
+   */
+  boolean add(String hashCode, SpoolingOutputStream content, ObjectMetadata meta) throws IOException {
+    if (content.isSpilled() || content.size() > threshold) {
+      return false;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) content.size());
+    try (InputStream is = content.openInputStream()) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+    }
+    String codec = meta.getUserMetaDataOf(EntryCodecs.METADATA_KEY);
+    String checksum = meta.getUserMetaDataOf(EntryChecksums.METADATA_KEY);
+    Pending entry = new Pending(bytes.toByteArray(), codec != null ? codec : EntryCodecs.NONE.getName(),
+        checksum != null ? checksum : NO_CHECKSUM);
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        pendingSince = System.currentTimeMillis();
+      }
+      Pending replaced = pending.put(hashCode, entry);
+      pendingBytes += entry.content.length - (replaced != null ? replaced.content.length : 0);
+    }
+    return true;
+  }
+
+  /**
+   * Whether the buffered entries should be flushed, because they fill a pack or have waited long enough.
+   */
+  synchronized boolean isFlushDue() {
+    return pendingBytes >= packSize
+        || !pending.isEmpty() && System.currentTimeMillis() - pendingSince >= MAX_PENDING_MILLIS;
+  }
+
+  /**
+   * Whether the entry is in a pack or buffered for the next one.
+   */
+  boolean contains(String hashCode) {
+    return getPending(hashCode) != null || index.get(hashCode) != null;
+  }
+
+  /**
+   * Flushes the buffered entries if that is due and no other thread is flushing already. Returns the number of
+   * bytes uploaded.
+   */
+  long flushIfDue(AmazonS3 s3, StorageClass storageClass) throws IOException {
+    if (!isFlushDue() || !flushLock.tryLock()) {
+      return 0;
+    }
+    try {
+      return flushLocked(s3, storageClass);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Uploads the buffered entries as a pack, waiting for a flush in progress first. Entries which could not be
+   * uploaded are dropped. Returns the number of bytes uploaded.
+   */
+  long flush(AmazonS3 s3, StorageClass storageClass) throws IOException {
+    flushLock.lock();
+    try {
+      return flushLocked(s3, storageClass);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private long flushLocked(AmazonS3 s3, StorageClass storageClass) throws IOException {
+    Map<String, Pending> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return 0;
+      }
+      // Entries stay readable from memory until the index lists them
+      batch = pending;
+      flushing = batch;
+      pending = new LinkedHashMap<>();
+      pendingBytes = 0;
+    }
+    try {
+      // The index is named like the pack and written after it, so that every listed entry can be read
+      String pack = KeyLogs.newKey("");
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      List<PackIndex.Entry> entries = new ArrayList<>(batch.size());
+      for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+        Pending content = entry.getValue();
+        entries.add(new PackIndex.Entry(entry.getKey(), pack, data.size(), content.content.length, content.codec,
+            content.checksum));
+        data.write(content.content);
+      }
+      put(s3, dataPrefix + pack, data.toByteArray(), storageClass);
+      ByteArrayOutputStream indexData = new ByteArrayOutputStream();
+      PackIndex.write(entries, indexData);
+      put(s3, indexPrefix + pack, indexData.toByteArray(), storageClass);
+      index.add(indexPrefix + pack, entries);
+      writtenPacks.incrementAndGet();
+      packedEntries.addAndGet(entries.size());
+      return data.size() + indexData.size();
+    } finally {
+      synchronized (this) {
+        flushing = Collections.emptyMap();
+      }
+    }
+  }
+
+  private void put(AmazonS3 s3, String key, byte[] content, StorageClass storageClass) {
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(content.length);
+    PutObjectRequest request = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(content), meta);
+    if (storageClass != null) {
+      request.withStorageClass(storageClass);
+    }
+    s3.putObject(request);
+  }
+
+  /**
+   * Reads the indexes of the packs written since the last refresh, fetching them on the given executor.
+   */
+  int refresh(AmazonS3 s3, ExecutorService executor) throws IOException {
+    return index.refresh(s3, executor);
+  }
+
+  /**
+   * Writes a snapshot of the pack index if enough indexes were written since the last one. Returns whether it was
+   * written.
+   */
+  boolean writeIndexSnapshot(AmazonS3 s3) throws IOException {
+    return index.writeSnapshot(s3);
+  }
+
+  /**
+   * Returns the packed entry as if it was stored as an object of its own, or {@code null} if it is not packed or
+   * its pack has expired.
+   */
+  S3Object getObject(AmazonS3 s3, String hashCode, LocalDiskTier localTier) throws IOException {
+    Pending buffered = getPending(hashCode);
+    if (buffered != null) {
+      return toObject(hashCode, new ByteArrayInputStream(buffered.content), buffered.content.length, buffered.codec,
+          buffered.checksum);
+    }
+    PackIndex.Entry entry = index.get(hashCode);
+    if (entry == null) {
+      return null;
+    }
+    InputStream content;
+    try {
+      content = openWhole(s3, entry, localTier);
+      if (content == null) {
+        rangeReads.incrementAndGet();
+        GetObjectRequest request = new GetObjectRequest(bucketName, dataPrefix + entry.getPack())
+            .withRange(entry.getOffset(), entry.getOffset() + entry.getLength() - 1);
+        content = s3.getObject(request).getObjectContent();
+      }
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        index.removePack(entry.getPack());
+        return null;
+      }
+      throw e;
+    }
+    return toObject(hashCode, content, entry.getLength(), entry.getCodec(), entry.getChecksum());
+  }
+
+  /**
+   * Opens the entry in the copy of its whole pack in the local tier, copying the pack there first if it has been
+   * read from often enough. Returns {@code null} if the entry should be read from the bucket.
+   */
+  private InputStream openWhole(AmazonS3 s3, PackIndex.Entry entry, LocalDiskTier localTier) throws IOException {
+    if (localTier == null) {
+      return null;
+    }
+    String localKey = LOCAL_PREFIX + entry.getPack();
+    InputStream whole = localTier.open(localKey);
+    if (whole == null) {
+      if (getReads(entry.getPack()).incrementAndGet() < WHOLE_PACK_READS) {
+        return null;
+      }
+      try (InputStream remote = s3.getObject(bucketName, dataPrefix + entry.getPack()).getObjectContent()) {
+        whole = localTier.put(localKey, remote);
+      }
+    }
+    try {
+      skipFully(whole, entry.getOffset());
+    } catch (IOException e) {
+      whole.close();
+      throw e;
+    }
+    return new Slice(whole, entry.getLength());
+  }
+
+  private AtomicInteger getReads(String pack) {
+    AtomicInteger reads = packReads.get(pack);
+    if (reads == null) {
+      AtomicInteger created = new AtomicInteger();
+      reads = packReads.putIfAbsent(pack, created);
+      if (reads == null) {
+        reads = created;
+      }
+    }
+    return reads;
+  }
+
+  private S3Object toObject(String hashCode, InputStream content, long length, String codec, String checksum) {
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(length);
+    if (!codec.equals(EntryCodecs.NONE.getName())) {
+      meta.addUserMetadata(EntryCodecs.METADATA_KEY, codec);
+    }
+    if (!checksum.equals(NO_CHECKSUM)) {
+      meta.addUserMetadata(EntryChecksums.METADATA_KEY, checksum);
+    }
+    S3Object object = new S3Object();
+    object.setBucketName(bucketName);
+    object.setKey(hashCode);
+    object.setObjectMetadata(meta);
+    object.setObjectContent(content);
+    return object;
+  }
+
+  private synchronized Pending getPending(String hashCode) {
+    Pending entry = pending.get(hashCode);
+    return entry != null ? entry : flushing.get(hashCode);
+  }
+
+  long getWrittenPacks() {
+    return writtenPacks.get();
+  }
+
+  long getPackedEntries() {
+    return packedEntries.get();
+  }
+
+  long getRangeReads() {
+    return rangeReads.get();
+  }
+
+  private static void skipFully(InputStream is, long n) throws IOException {
+    while (n > 0) {
+      long skipped = is.skip(n);
+      if (skipped <= 0) {
+        if (is.read() == -1) {
+          throw new EOFException("Pack ends before the entry");
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private static final class Pending {
+    final byte[] content;
+    final String codec;
+    final String checksum;
+
+    Pending(byte[] content, String codec, String checksum) {
+      this.content = content;
+      this.codec = codec;
+      this.checksum = checksum;
+    }
+  }
+
+  /**
+   * Reads the given number of bytes of a stream and closes it when closed.
+   */
+  private static final class Slice extends FilterInputStream {
+    private long remaining;
+
+    Slice(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = super.read();
+      if (b != -1) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = super.read(b, off, (int) Math.min(len, remaining));
+      if (read != -1) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads large objects as concurrent byte-range GETs.
+ *
+ * <p>The first request asks for the first part only. Its {@code Content-Range} header tells the total size of
+ * the object; if the object is larger than one part the remaining parts are fetched in parallel into a
+ * temporary file, pinned to the ETag of the first response so that an object replaced mid-download is not
+ * stitched together from two versions.</p>
+ */
+class ParallelDownloader {
+
+  private static final int RANGE_NOT_SATISFIABLE = 416;
+
+  private final ExecutorService executor;
+  private final long partSize;
+  private final BufferPool bufferPool;
+  private HedgedRequests hedging;
+
+  ParallelDownloader(ExecutorService executor, long partSize) {
+    this(executor, partSize, BufferPool.shared());
+  }
+
+  ParallelDownloader(ExecutorService executor, long partSize, BufferPool bufferPool) {
+    this.executor = executor;
+    this.partSize = partSize;
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Hedges the first request, which decides how long it takes until the content starts arriving.
+   */
+  void setHedging(HedgedRequests hedging) {
+    this.hedging = hedging;
+  }
+
+  /**
+   * Returns the object with its complete content, or {@code null} if the GET request did not return an object.
+   */
+  S3Object getObject(AmazonS3 s3, String bucketName, String key) throws IOException {
+    return getObject(s3, bucketName, key, new ResponseTimer());
+  }
+
+  /**
+   * Like {@link #getObject(AmazonS3, String, String)}, recording when the response to the first part arrived, before
+   * the remaining parts are downloaded.
+   */
+  S3Object getObject(AmazonS3 s3, String bucketName, String key, ResponseTimer timer) throws IOException {
+    S3Object first;
+    try {
+      first = getFirst(s3, new GetObjectRequest(bucketName, key).withRange(0, partSize - 1));
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+        // Empty objects have no range at all
+        S3Object object = getFirst(s3, new GetObjectRequest(bucketName, key));
+        timer.responded();
+        return object;
+      }
+      throw e;
+    }
+    timer.responded();
+    if (first == null) {
+      return null;
+    }
+    long length = getInstanceLength(first.getObjectMetadata());
+    if (length <= partSize) {
+      return first;
+    }
+    return downloadRemainingParts(s3, first, length);
+  }
+
+  private S3Object getFirst(AmazonS3 s3, GetObjectRequest request) throws IOException {
+    return hedging != null ? hedging.getObject(s3, request) : s3.getObject(request);
+  }
+
+  private S3Object downloadRemainingParts(AmazonS3 s3, S3Object first, long length) throws IOException {
+    File file = File.createTempFile("s3-build-cache-", ".tmp");
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        FileChannel channel = raf.getChannel();
+        List<Future<Void>> parts = new ArrayList<>();
+        try {
+          for (long start = partSize; start < length; start += partSize) {
+            GetObjectRequest request = new GetObjectRequest(first.getBucketName(), first.getKey())
+                .withRange(start, Math.min(start + partSize, length) - 1)
+                .withMatchingETagConstraint(first.getObjectMetadata().getETag());
+            parts.add(executor.submit(new PartDownload(s3, request, channel, start)));
+          }
+          // The first part is already on its way, drain it while the others are running
+          try (InputStream is = first.getObjectContent()) {
+            transfer(is, channel, 0);
+          }
+          for (Future<Void> part : parts) {
+            part.get();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while downloading parts of " + first.getKey());
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IOException("Error while downloading parts of " + first.getKey(), cause);
+        } finally {
+          for (Future<Void> part : parts) {
+            part.cancel(true);
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+      throw e;
+    }
+
+    ObjectMetadata meta = first.getObjectMetadata().clone();
+    meta.setContentLength(length);
+    S3Object object = new S3Object();
+    object.setBucketName(first.getBucketName());
+    object.setKey(first.getKey());
+    object.setObjectMetadata(meta);
+    object.setObjectContent(new TempFileInputStream(file));
+    return object;
+  }
+
+  private void transfer(InputStream is, FileChannel channel, long position) throws IOException {
+    byte[] buffer = bufferPool.acquire();
+    try {
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+        while (bytes.hasRemaining()) {
+          position += channel.write(bytes, position);
+        }
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+  }
+
+  /**
+   * Reads the total object size from a {@code Content-Range: bytes 0-99/1234} header. Responses without the
+   * header contain the whole object.
+   */
+  static long getInstanceLength(ObjectMetadata meta) {
+    Object contentRange = meta.getRawMetadataValue("Content-Range");
+    if (contentRange != null) {
+      String value = contentRange.toString();
+      int slash = value.lastIndexOf('/');
+      if (slash >= 0 && !value.endsWith("*")) {
+        try {
+          return Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+          // Fall through to the content length
+        }
+      }
+    }
+    return meta.getContentLength();
+  }
+
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private class PartDownload implements Callable<Void> {
+    private final AmazonS3 s3;
+    private final GetObjectRequest request;
+    private final FileChannel channel;
+    private final long position;
+
+    PartDownload(AmazonS3 s3, GetObjectRequest request, FileChannel channel, long position) {
+      this.s3 = s3;
+      this.request = request;
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      S3Object part = s3.getObject(request);
+      if (part == null) {
+        throw new IOException("Object " + request.getKey() + " changed while downloading its parts");
+      }
+      try (InputStream is = part.getObjectContent()) {
+        transfer(is, channel, position);
+      }
+      return null;
+    }
+  }
+}
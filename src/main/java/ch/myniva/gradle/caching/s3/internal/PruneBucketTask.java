@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.gradle.api.GradleException;
+
+/**
+ * Deletes the entries of the remote S3 build cache which were not accessed for {@code pruneMaxIdleDays}, and the
+ * least recently accessed entries beyond {@code pruneMaxSize}.
+ */
+public class PruneBucketTask extends AbstractBucketTask {
+
+  @Override
+  protected void run(AwsS3BuildCache config, AmazonS3 s3) throws IOException {
+    if (config.getPruneMaxIdleDays() < 1) {
+      throw new GradleException("S3 build cache prune max idle days must be at least 1");
+    }
+    if (config.getPruneMaxSize() < 0) {
+      throw new GradleException("S3 build cache prune max size must not be negative");
+    }
+    String path = config.getPath();
+    ExecutorService executor = TransferThreads.newPool("s3-build-cache-prune", BucketPruner.SHARDS.length());
+    try {
+      BucketPruner pruner = new BucketPruner(config.getBucket(), AwsS3BuildCacheService.getBucketPath(path, ""),
+          AwsS3BuildCacheService.getNonEntryPrefixes(path),
+          AwsS3BuildCacheService.getBucketPath(path, AwsS3BuildCacheService.ACCESS_LOG_PREFIX), executor);
+      long remaining = pruner.prune(s3, TimeUnit.DAYS.toMillis(config.getPruneMaxIdleDays()),
+          config.getPruneMaxSize());
+      getLogger().lifecycle("Deleted {} of {} entries ({} bytes) of S3 build cache bucket '{}', {} bytes remain",
+          pruner.getDeletedEntries(), pruner.getListedEntries(), pruner.getDeletedBytes(), config.getBucket(),
+          remaining);
+      if (pruner.getFailedDeletes() > 0) {
+        getLogger().warn("Could not delete {} entries of S3 build cache bucket '{}'", pruner.getFailedDeletes(),
+            config.getBucket());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.IOException;
+
+/**
+ * Rebuilds the index of the entries in the bucket of the remote S3 build cache from a listing of the bucket.
+ */
+public class RebuildKeyIndexTask extends AbstractBucketTask {
+
+  @Override
+  protected void run(AwsS3BuildCache config, AmazonS3 s3) throws IOException {
+    String path = config.getPath();
+    KeyIndex index = new KeyIndex(config.getBucket(), AwsS3BuildCacheService.getBucketPath(path, KeyIndex.INDEX_NAME),
+        AwsS3BuildCacheService.getBucketPath(path, KeyIndex.DELTA_PREFIX), Long.MAX_VALUE);
+    long entries = index.rebuild(s3, AwsS3BuildCacheService.getBucketPath(path, ""),
+        AwsS3BuildCacheService.getNonEntryPrefixes(path));
+    getLogger().lifecycle("Indexed {} entries of S3 build cache bucket '{}'", entries, config.getBucket());
+  }
+}
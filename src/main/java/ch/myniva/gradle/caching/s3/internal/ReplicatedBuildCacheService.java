@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.gradle.caching.BuildCacheEntryReader;
+import org.gradle.caching.BuildCacheEntryWriter;
+import org.gradle.caching.BuildCacheException;
+import org.gradle.caching.BuildCacheKey;
+import org.gradle.caching.BuildCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Build cache service over several buckets holding copies of the same entries, e.g. in different regions. Loads
+ * are served by the fastest bucket, stores go to the first bucket, the primary, or to all of them.
+ *
+ * <p>The latency of every replica is a moving average of cheap probe requests, which are sent in the background
+ * when the service is created and again every {@link #PROBE_INTERVAL_SECONDS} seconds while it is used. Loads ask
+ * the replicas ordered by latency and fall back to the next one when the entry is missing or the request fails. A
+ * replica whose request failed or whose circuit breaker is open is asked last until a probe succeeds again.</p>
+ */
+class ReplicatedBuildCacheService implements BuildCacheService {
+
+  static final long PROBE_INTERVAL_SECONDS = 30;
+
+  private static final Logger logger = LoggerFactory.getLogger(ReplicatedBuildCacheService.class);
+  private static final double SMOOTHING = 0.3;
+
+  private final List<Replica> replicas = new ArrayList<>();
+  private final ExecutorService executor;
+  private final WriteBehindQueue replication;
+  private final long replicationTimeoutMillis;
+  private final AtomicLong nextProbe = new AtomicLong(System.nanoTime());
+  private final AtomicInteger failedReplications = new AtomicInteger();
+
+  /**
+   * Probes run on the given executor. Stores are replicated to the other buckets through the given queue, or not at
+   * all if there is none, and are awaited for at most {@code replicationTimeoutMillis} when the service is closed.
+   */
+  ReplicatedBuildCacheService(List<String> names, List<AwsS3BuildCacheService> services, ExecutorService executor,
+      WriteBehindQueue replication, long replicationTimeoutMillis) {
+    for (int i = 0; i < services.size(); i++) {
+      replicas.add(new Replica(names.get(i), services.get(i)));
+    }
+    this.executor = executor;
+    this.replication = replication;
+    this.replicationTimeoutMillis = replicationTimeoutMillis;
+  }
+
+  /**
+   * Sends the first probes, until they respond the replicas are asked in the order they were configured in.
+   */
+  void start() {
+    probeIfDue();
+  }
+
+  @Override
+  public boolean load(BuildCacheKey key, BuildCacheEntryReader reader) {
+    probeIfDue();
+    RuntimeException error = null;
+    boolean answered = false;
+    for (Replica replica : byLatency()) {
+      try {
+        if (replica.service.load(key, reader)) {
+          return true;
+        }
+        answered = true;
+      } catch (RuntimeException e) {
+        logger.info("Could not load cache entry '{}' from S3 bucket replica '{}': {}", key.getHashCode(),
+            replica.name, e.getMessage());
+        replica.recordFailure();
+        error = e;
+      }
+    }
+    if (!answered && error != null) {
+      throw error;
+    }
+    return false;
+  }
+
+  @Override
+  public void store(final BuildCacheKey key, BuildCacheEntryWriter writer) {
+    Replica primary = replicas.get(0);
+    if (replication == null) {
+      primary.service.store(key, writer);
+      return;
+    }
+    // Buckets which have the entry or are storing it already are skipped before Gradle is asked for the entry
+    String primaryPath = primary.service.reserveStore(key);
+    List<Replica> targets = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    for (Replica replica : replicas.subList(1, replicas.size())) {
+      try {
+        String path = replica.service.reserveStore(key);
+        if (path != null) {
+          targets.add(replica);
+          paths.add(path);
+        }
+      } catch (RuntimeException e) {
+        replicationFailed(key, replica, e);
+      }
+    }
+    if (primaryPath == null && targets.isEmpty()) {
+      return;
+    }
+
+    // The entry is captured once, every bucket stores the same content and the last one to finish releases it
+    final AwsS3BuildCacheService.CapturedEntry entry;
+    try {
+      entry = primary.service.capture(writer);
+    } catch (IOException e) {
+      cancel(primaryPath, targets, paths);
+      throw new BuildCacheException("Error while storing cache object in S3 bucket", e);
+    } catch (RuntimeException e) {
+      cancel(primaryPath, targets, paths);
+      throw e;
+    }
+    for (int i = 0; i < targets.size(); i++) {
+      final Replica replica = targets.get(i);
+      final String path = paths.get(i);
+      // The queue holds a reference until the job has run or was dropped, the store takes its own one
+      entry.retain();
+      replication.submit(path, entry.getContent(), new Callable<Void>() {
+        @Override
+        public Void call() {
+          try {
+            replica.service.store(key, path, entry.retain());
+          } catch (RuntimeException e) {
+            replicationFailed(key, replica, e);
+          }
+          return null;
+        }
+      });
+    }
+    if (primaryPath != null) {
+      primary.service.store(key, primaryPath, entry);
+    } else {
+      entry.discard();
+    }
+  }
+
+  private void cancel(String primaryPath, List<Replica> targets, List<String> paths) {
+    if (primaryPath != null) {
+      replicas.get(0).service.cancelStore(primaryPath);
+    }
+    for (int i = 0; i < targets.size(); i++) {
+      targets.get(i).service.cancelStore(paths.get(i));
+    }
+  }
+
+  private void replicationFailed(BuildCacheKey key, Replica replica, RuntimeException e) {
+    failedReplications.incrementAndGet();
+    logger.info("Could not store cache entry '{}' in S3 bucket replica '{}': {}", key.getHashCode(), replica.name,
+        e.getMessage());
+  }
+
+  /**
+   * Orders the replicas by latency, healthy ones first. The order of replicas without a latency yet is kept.
+   */
+  List<Replica> byLatency() {
+    final int n = replicas.size();
+    // Takes a snapshot, latencies change while the replicas are sorted
+    Integer[] order = new Integer[n];
+    final boolean[] healthy = new boolean[n];
+    final double[] latency = new double[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+      healthy[i] = replicas.get(i).isHealthy();
+      latency[i] = replicas.get(i).getLatencyNanos();
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        if (healthy[a] != healthy[b]) {
+          return healthy[a] ? -1 : 1;
+        }
+        return Double.compare(latency[a], latency[b]);
+      }
+    });
+    List<Replica> ordered = new ArrayList<>(n);
+    for (Integer i : order) {
+      ordered.add(replicas.get(i));
+    }
+    return ordered;
+  }
+
+  private void probeIfDue() {
+    long due = nextProbe.get();
+    if (System.nanoTime() - due < 0
+        || !nextProbe.compareAndSet(due, System.nanoTime() + TimeUnit.SECONDS.toNanos(PROBE_INTERVAL_SECONDS))) {
+      return;
+    }
+    for (final Replica replica : replicas) {
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            replica.probe();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    if (replication != null) {
+      // Replications which did not run in time are dropped and release their reference to the entry
+      replication.drain(replicationTimeoutMillis);
+    }
+    if (failedReplications.get() > 0) {
+      logger.warn("Could not store {} cache entries in S3 bucket replicas", failedReplications.get());
+    }
+    for (Replica replica : replicas) {
+      logger.info("S3 bucket replica '{}' responded to probes in {} ms on average", replica.name,
+          replica.getLatencyNanos() == Double.MAX_VALUE ? "?" : Math.round(replica.getLatencyNanos() / 1000000));
+    }
+    IOException error = null;
+    for (Replica replica : replicas) {
+      try {
+        replica.service.close();
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  List<Replica> getReplicas() {
+    return Collections.unmodifiableList(replicas);
+  }
+
+  static final class Replica {
+
+    final String name;
+    final AwsS3BuildCacheService service;
+    private double latencyNanos = -1;
+    private boolean failed;
+
+    Replica(String name, AwsS3BuildCacheService service) {
+      this.name = name;
+      this.service = service;
+    }
+
+    void probe() {
+      try {
+        long nanos = service.probe();
+        if (nanos >= 0) {
+          recordProbe(nanos);
+        }
+      } catch (RuntimeException e) {
+        logger.info("Probe of S3 bucket replica '{}' failed: {}", name, e.getMessage());
+        recordFailure();
+      }
+    }
+
+    synchronized void recordProbe(long nanos) {
+      latencyNanos = latencyNanos < 0 ? nanos : latencyNanos + SMOOTHING * (nanos - latencyNanos);
+      failed = false;
+    }
+
+    synchronized void recordFailure() {
+      failed = true;
+    }
+
+    synchronized boolean isHealthy() {
+      return !failed && service.isAvailable();
+    }
+
+    /**
+     * Returns the average latency of the probes, or {@link Double#MAX_VALUE} if none responded yet.
+     */
+    synchronized double getLatencyNanos() {
+      return latencyNanos < 0 ? Double.MAX_VALUE : latencyNanos;
+    }
+  }
+}
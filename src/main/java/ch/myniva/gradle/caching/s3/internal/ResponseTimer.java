@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+/**
+ * Measures the time from the start of a load until the first response of S3 arrived. Unlike the time of the whole
+ * download it does not depend on the size of the entry, nor on the parts fetched or spooled after the first
+ * response.
+ */
+class ResponseTimer {
+
+  private final long start = System.nanoTime();
+  private volatile long responseNanos = -1;
+
+  /**
+   * Records that a response arrived now, unless an earlier one was recorded already.
+   */
+  void responded() {
+    responded(System.nanoTime() - start);
+  }
+
+  /**
+   * Records the time another caller waited for the response, e.g. the one which downloaded a shared object.
+   */
+  synchronized void responded(long nanos) {
+    if (responseNanos < 0) {
+      responseNanos = nanos;
+    }
+  }
+
+  /**
+   * Returns the time until the first response, or until now if none was recorded.
+   */
+  long getResponseNanos() {
+    long nanos = responseNanos;
+    return nanos >= 0 ? nanos : System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps S3 clients alive across the builds of a Gradle daemon.
+ *
+ * <p>Building a client is expensive: it sets up a new connection pool, and resolving credentials through the
+ * default provider chain may probe the EC2 instance metadata service. Clients are therefore shared by all services
+ * with the same effective configuration, and only shut down once nobody has used them for the idle timeout.</p>
+ */
+class S3ClientRegistry {
+
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final S3ClientRegistry SHARED = new S3ClientRegistry(DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+  private final long idleTimeoutMillis;
+  private final Map<Object, Entry> entries = new HashMap<>();
+  private ScheduledExecutorService reaper;
+
+  S3ClientRegistry(long idleTimeoutMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  static S3ClientRegistry shared() {
+    return SHARED;
+  }
+
+  /**
+   * Returns a lease on the client for the given key, creating the client if there is none yet. The key must
+   * capture everything the client was configured with and implement {@code equals} and {@code hashCode}.
+   */
+  Lease acquire(Object key, Callable<AmazonS3> factory) throws Exception {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        entry.leases++;
+        return new Lease(this, key, entry);
+      }
+    }
+    // Build outside the lock so that slow client creation does not block unrelated configurations
+    AmazonS3 client = factory.call();
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(client);
+        entries.put(key, entry);
+      } else {
+        client.shutdown();
+      }
+      entry.leases++;
+      return new Lease(this, key, entry);
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized void release(final Object key, final Entry entry) {
+    entry.leases--;
+    if (entry.leases > 0) {
+      return;
+    }
+    final long generation = ++entry.generation;
+    if (idleTimeoutMillis <= 0) {
+      expire(key, entry, generation);
+      return;
+    }
+    getReaper().schedule(new Runnable() {
+      @Override
+      public void run() {
+        expire(key, entry, generation);
+      }
+    }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void expire(Object key, Entry entry, long generation) {
+    // The client has been leased again since it became idle
+    if (entry.leases > 0 || entry.generation != generation || entries.get(key) != entry) {
+      return;
+    }
+    entries.remove(key);
+    entry.client.shutdown();
+  }
+
+  private ScheduledExecutorService getReaper() {
+    if (reaper == null) {
+      reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "s3-build-cache-client-reaper");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return reaper;
+  }
+
+  private static class Entry {
+    private final AmazonS3 client;
+    private int leases;
+    private long generation;
+
+    Entry(AmazonS3 client) {
+      this.client = client;
+    }
+  }
+
+  /**
+   * A client in use. Closing the lease hands the client back to the registry, it must not be used afterwards.
+   */
+  static class Lease implements Closeable {
+    private final S3ClientRegistry registry;
+    private final Object key;
+    private final Entry entry;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Lease(S3ClientRegistry registry, Object key, Entry entry) {
+      this.registry = registry;
+      this.key = key;
+      this.entry = entry;
+    }
+
+    /**
+     * Returns a lease on a client which is not managed by any registry, closing it does nothing.
+     */
+    static Lease unmanaged(AmazonS3 client) {
+      return new Lease(null, null, new Entry(client));
+    }
+
+    AmazonS3 getClient() {
+      return entry.client;
+    }
+
+    @Override
+    public void close() {
+      if (registry != null && released.compareAndSet(false, true)) {
+        registry.release(key, entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Output stream which keeps its content in pooled memory chunks until it grows beyond a threshold, at which
+ * point everything is spilled to a temporary file.
+ *
+ * <p>Once closed, the content can be read back any number of times. {@link #discard()} must be called when
+ * the content is no longer needed so that buffers are returned to the pool and the file gets deleted. Content
+ * shared by several readers is {@link #retain() retained} once per additional reader, and released once every
+ * reader discarded it.</p>
+ */
+class SpoolingOutputStream extends OutputStream {
+
+  private final BufferPool pool;
+  private final long threshold;
+  private final List<byte[]> chunks = new ArrayList<>();
+  private final AtomicInteger references = new AtomicInteger(1);
+  private int chunkPosition;
+  private long size;
+  private File file;
+  private OutputStream fileOut;
+
+  SpoolingOutputStream(BufferPool pool, long threshold) {
+    this.pool = pool;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (file == null && size + len > threshold) {
+      spill();
+    }
+    size += len;
+    if (fileOut != null) {
+      fileOut.write(b, off, len);
+      return;
+    }
+    int chunkSize = pool.getChunkSize();
+    while (len > 0) {
+      if (chunks.isEmpty() || chunkPosition == chunkSize) {
+        chunks.add(pool.acquire());
+        chunkPosition = 0;
+      }
+      int n = Math.min(len, chunkSize - chunkPosition);
+      System.arraycopy(b, off, chunks.get(chunks.size() - 1), chunkPosition, n);
+      chunkPosition += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void spill() throws IOException {
+    file = File.createTempFile("s3-build-cache-", ".tmp");
+    fileOut = new BufferedOutputStream(new FileOutputStream(file), pool.getChunkSize());
+    int chunkSize = pool.getChunkSize();
+    for (int i = 0; i < chunks.size(); i++) {
+      fileOut.write(chunks.get(i), 0, i == chunks.size() - 1 ? chunkPosition : chunkSize);
+    }
+    releaseChunks();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (fileOut != null) {
+      fileOut.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (fileOut != null) {
+      fileOut.close();
+    }
+  }
+
+  long size() {
+    return size;
+  }
+
+  boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Returns the file holding the content, or {@code null} if the content is still kept in memory.
+   */
+  File getFile() {
+    return file;
+  }
+
+  InputStream openInputStream() throws IOException {
+    if (file != null) {
+      return new FileInputStream(file);
+    }
+    return new ChunkInputStream();
+  }
+
+  /**
+   * Takes another reference to the content, which must be released with {@link #discard()} as well.
+   */
+  SpoolingOutputStream retain() {
+    references.incrementAndGet();
+    return this;
+  }
+
+  void discard() {
+    if (references.decrementAndGet() > 0) {
+      return;
+    }
+    releaseChunks();
+    if (fileOut != null) {
+      try {
+        fileOut.close();
+      } catch (IOException ignored) {
+        // Nothing left to do, the file is deleted anyway
+      }
+    }
+    if (file != null && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private void releaseChunks() {
+    for (byte[] chunk : chunks) {
+      pool.release(chunk);
+    }
+    chunks.clear();
+  }
+
+  /**
+   * Reads the in-memory chunks without copying them. Supports mark and reset so that the AWS client can
+   * retry a request without buffering the payload again.
+   */
+  private class ChunkInputStream extends InputStream {
+    private long position;
+    private long mark;
+
+    @Override
+    public int read() {
+      if (position >= size) {
+        return -1;
+      }
+      int chunkSize = pool.getChunkSize();
+      int b = chunks.get((int) (position / chunkSize))[(int) (position % chunkSize)] & 0xff;
+      position++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= size) {
+        return -1;
+      }
+      int chunkSize = pool.getChunkSize();
+      int read = 0;
+      while (read < len && position < size) {
+        int offsetInChunk = (int) (position % chunkSize);
+        int n = (int) Math.min(Math.min(len - read, chunkSize - offsetInChunk), size - position);
+        System.arraycopy(chunks.get((int) (position / chunkSize)), offsetInChunk, b, off + read, n);
+        position += n;
+        read += n;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, size - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+      mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+      position = mark;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads captured cache entries in the background.
+ *
+ * <p>At most {@code capacity} entries wait for an upload thread, and the entries queued or being uploaded hold at
+ * most {@code maxMemoryBytes} of memory; entries spilled to disk don't count. Once either limit is reached the
+ * storing thread uploads the entry itself, which throttles the build to the speed of the uploads instead of
+ * buffering without bounds. Failed uploads are logged only, as there is nobody left to report them to.</p>
+ */
+class WriteBehindQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger failed = new AtomicInteger();
+  private final long maxMemoryBytes;
+  private final AtomicLong memoryBytes = new AtomicLong();
+
+  WriteBehindQueue(int threads, int capacity, long maxMemoryBytes) {
+    this("s3-build-cache-store", threads, capacity, maxMemoryBytes);
+  }
+
+  WriteBehindQueue(final String name, int threads, int capacity, long maxMemoryBytes) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+          private final AtomicInteger counter = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+              ((PendingUpload) r).discard();
+            } else {
+              r.run();
+            }
+          }
+        });
+  }
+
+  /**
+   * Queues the upload of the given entry. The content is discarded once the upload has finished or failed.
+   */
+  void submit(String bucketPath, SpoolingOutputStream content, Callable<?> upload) {
+    long memory = content.isSpilled() ? 0 : content.size();
+    if (!reserve(memory)) {
+      new PendingUpload(bucketPath, content, upload, 0).run();
+      return;
+    }
+    executor.execute(new PendingUpload(bucketPath, content, upload, memory));
+  }
+
+  private boolean reserve(long bytes) {
+    while (true) {
+      long reserved = memoryBytes.get();
+      if (bytes > 0 && reserved + bytes > maxMemoryBytes) {
+        return false;
+      }
+      if (memoryBytes.compareAndSet(reserved, reserved + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  long getMemoryBytes() {
+    return memoryBytes.get();
+  }
+
+  /**
+   * Waits for all queued uploads to finish. Uploads which did not finish within the timeout are dropped.
+   *
+   * @return whether all uploads finished in time
+   */
+  boolean drain(long timeoutMillis) {
+    executor.shutdown();
+    try {
+      if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        if (failed.get() > 0) {
+          logger.warn("{} cache entries could not be stored in S3 bucket", failed.get());
+        }
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Runnable> dropped = executor.shutdownNow();
+    for (Runnable upload : dropped) {
+      ((PendingUpload) upload).discard();
+    }
+    logger.warn("Gave up waiting for cache entries to be stored in S3 bucket, dropped {} queued entries",
+        dropped.size());
+    return false;
+  }
+
+  private class PendingUpload implements Runnable {
+    private final String bucketPath;
+    private final SpoolingOutputStream content;
+    private final Callable<?> upload;
+    private final long memory;
+
+    PendingUpload(String bucketPath, SpoolingOutputStream content, Callable<?> upload, long memory) {
+      this.bucketPath = bucketPath;
+      this.content = content;
+      this.upload = upload;
+      this.memory = memory;
+    }
+
+    @Override
+    public void run() {
+      try {
+        upload.call();
+      } catch (Exception e) {
+        failed.incrementAndGet();
+        logger.warn("Error while storing cache entry '{}' in S3 bucket: {}", bucketPath, e.getMessage());
+        logger.debug("Store of cache entry '{}' failed", bucketPath, e);
+      } finally {
+        discard();
+      }
+    }
+
+    void discard() {
+      content.discard();
+      memoryBytes.addAndGet(-memory);
+    }
+  }
+}
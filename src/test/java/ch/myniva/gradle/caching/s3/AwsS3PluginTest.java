@@ -16,12 +16,15 @@
 
 package ch.myniva.gradle.caching.s3;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ch.myniva.gradle.caching.s3.internal.AwsS3BuildCacheServiceFactory;
+import org.gradle.api.Action;
 import org.gradle.api.initialization.Settings;
+import org.gradle.api.invocation.Gradle;
 import org.gradle.caching.configuration.BuildCacheConfiguration;
 import org.junit.Test;
 
@@ -32,11 +35,14 @@ public class AwsS3PluginTest {
     Settings settings = mock(Settings.class);
     BuildCacheConfiguration conf = mock(BuildCacheConfiguration.class);
     when(settings.getBuildCache()).thenReturn(conf);
+    Gradle gradle = mock(Gradle.class);
+    when(settings.getGradle()).thenReturn(gradle);
 
     AwsS3Plugin plugin = new AwsS3Plugin();
     plugin.apply(settings);
 
     verify(conf).registerBuildCacheService(AwsS3BuildCache.class, AwsS3BuildCacheServiceFactory.class);
+    verify(gradle).rootProject(any(Action.class));
   }
 
 }
\ No newline at end of file
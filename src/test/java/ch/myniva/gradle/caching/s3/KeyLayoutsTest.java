@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class KeyLayoutsTest {
+
+  @Test
+  public void flatLayoutUsesHashCodeAsKey() {
+    assertEquals("0a1b2c3d4e5f", KeyLayouts.flat().getObjectKey("0a1b2c3d4e5f"));
+  }
+
+  @Test
+  public void hashPrefixLayoutPrefixesKeyWithShardOfHashCode() {
+    assertEquals("3d/0a1b2c3d4e5f", KeyLayouts.hashPrefix(256).getObjectKey("0a1b2c3d4e5f"));
+    assertEquals("d/0a1b2c3d4e5f", KeyLayouts.hashPrefix(16).getObjectKey("0a1b2c3d4e5f"));
+    assertEquals("0/0a1b2c3d4e5f", KeyLayouts.hashPrefix(1).getObjectKey("0a1b2c3d4e5f"));
+  }
+
+  @Test
+  public void hashPrefixLayoutPadsShardsToSameLength() {
+    KeyLayout layout = KeyLayouts.hashPrefix(1000);
+    assertEquals("000/00000000", layout.getObjectKey("00000000"));
+    assertEquals("3e7/000003e7", layout.getObjectKey("000003e7"));
+  }
+
+  @Test
+  public void hashPrefixLayoutSpreadsHashCodesAcrossAllShards() {
+    KeyLayout layout = KeyLayouts.hashPrefix(16);
+    Set<String> prefixes = new HashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      String key = layout.getObjectKey(String.format("%08x", i * 2654435761L & 0xffffffffL));
+      prefixes.add(key.substring(0, key.indexOf('/')));
+    }
+    assertEquals(16, prefixes.size());
+  }
+
+  @Test
+  public void hashPrefixLayoutAcceptsHashCodesWhichAreNotHex() {
+    String key = KeyLayouts.hashPrefix(16).getObjectKey("not-a-hash");
+    assertTrue(key, key.endsWith("/not-a-hash"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void hashPrefixLayoutRequiresPositiveNumberOfShards() {
+    KeyLayouts.hashPrefix(0);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AccessTimesTest {
+
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  @Test
+  public void returnsZeroForKeysWhichWereNotAccessed() {
+    AccessTimes times = new AccessTimes();
+    times.record("cache/0a1b2c3d", 100 * HOUR);
+
+    assertEquals(0, times.getLastAccess("cache/0a1b2c3e"));
+  }
+
+  @Test
+  public void returnsLastAccessRoundedDownToTheHour() {
+    AccessTimes times = new AccessTimes();
+    times.record("cache/0a1b2c3d", 100 * HOUR + 1234);
+
+    assertEquals(100 * HOUR, times.getLastAccess("cache/0a1b2c3d"));
+  }
+
+  @Test
+  public void keepsLatestAccess() {
+    AccessTimes times = new AccessTimes();
+    times.record("cache/0a1b2c3d", 200 * HOUR);
+    times.record("cache/0a1b2c3d", 100 * HOUR);
+
+    assertEquals(200 * HOUR, times.getLastAccess("cache/0a1b2c3d"));
+    assertEquals(1, times.size());
+  }
+
+  @Test
+  public void growsForManyKeys() {
+    AccessTimes times = new AccessTimes();
+    for (int i = 0; i < 100000; i++) {
+      times.record("cache/" + i, i * HOUR);
+    }
+
+    assertEquals(100000, times.size());
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i * HOUR, times.getLastAccess("cache/" + i));
+    }
+  }
+}
@@ -16,9 +16,12 @@
 
 package ch.myniva.gradle.caching.s3.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import ch.myniva.gradle.caching.s3.AwsS3BuildCache;
+import ch.myniva.gradle.caching.s3.AwsS3Replica;
 import java.util.HashMap;
 import java.util.Map;
 import org.gradle.caching.BuildCacheService;
@@ -133,6 +136,106 @@ public class AwsS3BuildCacheServiceFactoryTest {
     assertNotNull(service);
   }
 
+  @Test
+  public void testMaxConnectionsCoverConcurrentTransfers() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setUploadConcurrency(64);
+
+    int maxConnections = AwsS3BuildCacheServiceFactory.getMaxConnections(conf);
+
+    assertTrue(maxConnections >= 64 * Runtime.getRuntime().availableProcessors());
+  }
+
+  @Test
+  public void testConfiguredMaxConnections() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setMaxConnections(8);
+
+    assertEquals(8, AwsS3BuildCacheServiceFactory.getMaxConnections(conf));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalNegativeMaxConnections() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    conf.setMaxConnections(-1);
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalTooSmallAverageChunkSize() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    conf.setChunkedStorage(true);
+    conf.setAverageChunkSize(1024);
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalKeyIndexMaxAge() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    conf.setKeyIndex(true);
+    conf.setKeyIndexMaxAgeHours(0);
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
+  @Test
+  public void testReplicas() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    AwsS3Replica replica = new AwsS3Replica();
+    replica.setRegion("eu-west-1");
+    replica.setBucket("my-bucket-eu");
+    conf.getReplicas().add(replica);
+
+    BuildCacheService service = subject.createBuildCacheService(conf, buildCacheDescriber);
+
+    assertTrue(service instanceof ReplicatedBuildCacheService);
+    assertEquals(2, ((ReplicatedBuildCacheService) service).getReplicas().size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalReplicaWithoutBucket() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    AwsS3Replica replica = new AwsS3Replica();
+    replica.setRegion("eu-west-1");
+    conf.getReplicas().add(replica);
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalPackSizeBelowThreshold() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    conf.setPackedStorage(true);
+    conf.setPackThreshold(64 * 1024);
+    conf.setPackSize(1024);
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIllegalReadUrl() {
+    AwsS3BuildCache conf = new AwsS3BuildCache();
+    conf.setRegion("us-west-1");
+    conf.setBucket("my-bucket");
+    conf.setReadUrl("d1234abcd.cloudfront.net");
+
+    subject.createBuildCacheService(conf, buildCacheDescriber);
+  }
+
   private class NoopBuildCacheDescriber implements Describer {
 
     @Override
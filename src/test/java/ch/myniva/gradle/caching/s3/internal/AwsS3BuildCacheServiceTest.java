@@ -16,12 +16,20 @@
 
 package ch.myniva.gradle.caching.s3.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
+import ch.myniva.gradle.caching.s3.KeyLayout;
+import ch.myniva.gradle.caching.s3.KeyLayouts;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
@@ -29,14 +37,26 @@ import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.StorageClass;
 import org.gradle.caching.BuildCacheEntryReader;
 import org.gradle.caching.BuildCacheEntryWriter;
+import org.gradle.caching.BuildCacheException;
 import org.gradle.caching.BuildCacheKey;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import java.io.ByteArrayOutputStream;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class AwsS3BuildCacheServiceTest {
   @Mock
@@ -62,9 +82,8 @@ public class AwsS3BuildCacheServiceTest {
   public void loadGetsObjectsAndReturnsTrueIfItExistsInS3() throws Exception {
     /** Setup **/
     buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
-    doReturn(true).when(s3).doesObjectExist("bucketName", "abcdefghijkl123456789");
     S3Object s3Object = mock(S3Object.class);
-    doReturn(s3Object).when(s3).getObject("bucketName", "abcdefghijkl123456789");
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
     S3ObjectInputStream s3ObjectInputStream = mock(S3ObjectInputStream.class);
     doReturn(s3ObjectInputStream).when(s3Object).getObjectContent();
 
@@ -74,19 +93,178 @@ public class AwsS3BuildCacheServiceTest {
     /** Check **/
     assertTrue(result);
     verify(reader).readFrom(s3ObjectInputStream);
+    verify(s3, never()).doesObjectExist(any(String.class), any(String.class));
   }
 
   @Test
   public void loadReturnsFalseIfItDoesntExistInS3() throws Exception {
     /** Setup **/
     buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
-    doReturn(false).when(s3).doesObjectExist("bucketName", "abcdefghijkl123456789");
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
 
     /** Run **/
     boolean result = buildCacheService.load(key, reader);
 
     /** Check **/
     assertFalse(result);
+    verify(reader, never()).readFrom(any(InputStream.class));
+  }
+
+  @Test
+  public void loadDoesNotLookUpRecentlyMissedKeysAgain() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    buildCacheService.setMissCache(new ExpiringKeyCache(10), 60000);
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    boolean first = buildCacheService.load(key, reader);
+    boolean second = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(first);
+    assertFalse(second);
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void loadServesEntriesFromLocalTierWithoutAskingS3() throws Exception {
+    /** Setup **/
+    LocalDiskTier localTier = mock(LocalDiskTier.class);
+    InputStream local = mock(InputStream.class);
+    doReturn(local).when(localTier).open("abcdefghijkl123456789");
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    buildCacheService.setLocalTier(localTier);
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertTrue(result);
+    verify(reader).readFrom(local);
+    verify(s3, never()).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void loadCopiesEntriesFoundInS3IntoLocalTier() throws Exception {
+    /** Setup **/
+    LocalDiskTier localTier = mock(LocalDiskTier.class);
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    buildCacheService.setLocalTier(localTier);
+    S3Object s3Object = mock(S3Object.class);
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    S3ObjectInputStream s3ObjectInputStream = mock(S3ObjectInputStream.class);
+    doReturn(s3ObjectInputStream).when(s3Object).getObjectContent();
+    InputStream local = mock(InputStream.class);
+    doReturn(local).when(localTier).put("abcdefghijkl123456789", s3ObjectInputStream);
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertTrue(result);
+    verify(reader).readFrom(local);
+  }
+
+  @Test
+  public void loadIgnoresObjectsWrittenWithUnknownCodec() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    S3Object s3Object = mock(S3Object.class);
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.addUserMetadata(EntryCodecs.METADATA_KEY, "unknown");
+    doReturn(meta).when(s3Object).getObjectMetadata();
+    doReturn(mock(S3ObjectInputStream.class)).when(s3Object).getObjectContent();
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(result);
+    verify(reader, never()).readFrom(any(InputStream.class));
+  }
+
+  @Test
+  public void disablesRemoteCacheIfClientCannotBeCreated() throws Exception {
+    /** Setup **/
+    LazyS3Client s3Client = mock(LazyS3Client.class);
+    doThrow(new IOException("no credentials")).when(s3Client).get();
+    buildCacheService = new AwsS3BuildCacheService(s3Client, "bucketName", null, true);
+
+    /** Run **/
+    boolean first = buildCacheService.load(key, reader);
+    boolean second = buildCacheService.load(key, reader);
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    assertFalse(first);
+    assertFalse(second);
+    verify(s3Client, times(1)).get();
+    verify(writer, never()).writeTo(any(OutputStream.class));
+  }
+
+  @Test
+  public void prefetchesEntriesListedInManifestIntoLocalTier() throws Exception {
+    /** Setup **/
+    LocalDiskTier localTier = mock(LocalDiskTier.class);
+    doReturn(mock(InputStream.class)).when(localTier).put(any(String.class), any(InputStream.class));
+    KeyManifest manifest = new KeyManifest();
+    manifest.record("abcdefghijkl123456789");
+    final ByteArrayOutputStream manifestContent = new ByteArrayOutputStream();
+    manifest.writeTo(manifestContent);
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+        S3Object object = new S3Object();
+        object.setObjectContent(request.getKey().equals("cache/manifests/main")
+            ? new ByteArrayInputStream(manifestContent.toByteArray())
+            : new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        return object;
+      }
+    }).when(s3).getObject(any(GetObjectRequest.class));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", true);
+    buildCacheService.setLocalTier(localTier);
+    buildCacheService.setPrefetch("main", executor, false);
+
+    /** Run **/
+    buildCacheService.startPrefetch();
+
+    /** Check **/
+    verify(localTier, timeout(5000)).put(eq("abcdefghijkl123456789"), any(InputStream.class));
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void closeStoresManifestOfUsedKeys() throws Exception {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", "cache", false));
+    buildCacheService.setPrefetch("main", Executors.newSingleThreadExecutor(), true);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+    buildCacheService.close();
+
+    /** Check **/
+    ArgumentCaptor<PutObjectRequest> requests = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(requests.capture());
+    assertEquals("cache/manifests/main", requests.getAllValues().get(1).getKey());
+  }
+
+  @Test(expected = AmazonS3Exception.class)
+  public void loadPropagatesErrorsOtherThanNotFound() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    AmazonS3Exception forbidden = new AmazonS3Exception("Forbidden");
+    forbidden.setStatusCode(403);
+    doThrow(forbidden).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    buildCacheService.load(key, reader);
   }
 
   @Test
@@ -134,8 +312,679 @@ public class AwsS3BuildCacheServiceTest {
     verify(putObjectRequest, never()).withStorageClass(eq(StorageClass.ReducedRedundancy));
   }
 
+  @Test
+  public void storeUploadsLargeEntriesInMultipleParts() throws IOException {
+    /** Setup **/
+    MultipartUploader uploader = mock(MultipartUploader.class);
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    buildCacheService.setMultipartUploader(uploader, 10);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((OutputStream) invocation.getArguments()[0]).write(new byte[32]);
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(uploader).upload(eq(s3), eq("bucketName"), eq("abcdefghijkl123456789"), any(ObjectMetadata.class),
+        isNull(StorageClass.class), any(File.class));
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void storeUploadsInBackgroundAndWaitsForUploadsOnClose() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    buildCacheService.setWriteBehindQueue(new WriteBehindQueue(1, 1, 1024 * 1024), 10000);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+    buildCacheService.close();
+
+    /** Check **/
+    verifyThatStoreStores("abcdefghijkl123456789");
+  }
+
+  @Test
+  public void storeRecordsCodecInMetadata() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    buildCacheService.setCodec(EntryCodecs.forName("gzip", -1));
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    ArgumentCaptor<ObjectMetadata> meta = ArgumentCaptor.forClass(ObjectMetadata.class);
+    verify(buildCacheService).getPutObjectRequest(eq("abcdefghijkl123456789"), meta.capture(),
+            any(InputStream.class));
+    assertEquals("gzip", meta.getValue().getUserMetaDataOf(EntryCodecs.METADATA_KEY));
+  }
+
+  @Test
+  public void storeRecordsChecksumInMetadata() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        invocation.<OutputStream>getArgument(0).write("cache entry".getBytes("UTF-8"));
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    ArgumentCaptor<ObjectMetadata> meta = ArgumentCaptor.forClass(ObjectMetadata.class);
+    verify(buildCacheService).getPutObjectRequest(eq("abcdefghijkl123456789"), meta.capture(),
+            any(InputStream.class));
+    assertEquals("c95524ed", meta.getValue().getUserMetaDataOf(EntryChecksums.METADATA_KEY));
+  }
+
+  @Test
+  public void loadFailsOnCorruptEntryWhichTheNextStoreReplaces() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    buildCacheService.setSkipExistingEntries(true);
+    S3Object s3Object = mock(S3Object.class);
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.addUserMetadata(EntryChecksums.METADATA_KEY, "c95524ed");
+    doReturn(meta).when(s3Object).getObjectMetadata();
+    doReturn(new S3ObjectInputStream(new ByteArrayInputStream("cache entrz".getBytes("UTF-8")), null))
+        .when(s3Object).getObjectContent();
+
+    /** Run **/
+    try {
+      buildCacheService.load(key, reader);
+      fail("Corrupt entry was loaded");
+    } catch (BuildCacheException expected) {
+      assertTrue(expected.getCause() instanceof EntryChecksums.ChecksumMismatchException);
+    }
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(s3, never()).doesObjectExist(any(String.class), any(String.class));
+    verify(s3).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void loadOfCorruptEntryIntoLocalTierIsAMiss() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    LocalDiskTier localTier = mock(LocalDiskTier.class);
+    doAnswer(new Answer<InputStream>() {
+      @Override
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        InputStream content = invocation.getArgument(1);
+        while (content.read() != -1) {
+          // Reads the whole entry, as the local tier does
+        }
+        return content;
+      }
+    }).when(localTier).put(any(String.class), any(InputStream.class));
+    buildCacheService.setLocalTier(localTier);
+    S3Object s3Object = mock(S3Object.class);
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.addUserMetadata(EntryChecksums.METADATA_KEY, "c95524ed");
+    doReturn(meta).when(s3Object).getObjectMetadata();
+    doReturn(new S3ObjectInputStream(new ByteArrayInputStream("cache entrz".getBytes("UTF-8")), null))
+        .when(s3Object).getObjectContent();
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(result);
+    verify(reader, never()).readFrom(any(InputStream.class));
+  }
+
+  @Test
+  public void recordsMetricsOfLoadsAndStores() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    buildCacheService.load(key, reader);
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    CacheMetrics metrics = buildCacheService.getMetrics();
+    assertEquals(0, metrics.getHits());
+    assertEquals(1, metrics.getMisses());
+    assertEquals(1, metrics.getStores());
+  }
+
+  @Test
+  public void storeSkipsEntriesWhichExistInS3WithoutAskingForContent() throws IOException {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    buildCacheService.setSkipExistingEntries(true);
+    doReturn(true).when(s3).doesObjectExist("bucketName", "abcdefghijkl123456789");
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(writer, never()).writeTo(any(OutputStream.class));
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+    assertEquals(1, buildCacheService.getMetrics().getSkippedStores());
+  }
+
+  @Test
+  public void storeDoesNotAskS3ForEntriesWhichWereRecentlyMissed() throws IOException {
+    /** Setup **/
+    ExpiringKeyCache missCache = new ExpiringKeyCache(10);
+    missCache.record("bucketName", "abcdefghijkl123456789", 60000);
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    buildCacheService.setSkipExistingEntries(true);
+    buildCacheService.setMissCache(missCache, 60000);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(s3, never()).doesObjectExist(any(String.class), any(String.class));
+    verify(putObjectRequest).putCustomRequestHeader("If-None-Match", "*");
+    verify(s3).putObject(putObjectRequest);
+  }
+
+  @Test
+  public void storeSkipsEntriesWhichWereRecentlyStored() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    buildCacheService.setPresenceCache(new ExpiringKeyCache(10), 60000);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(writer, times(1)).writeTo(any(OutputStream.class));
+    verify(s3, times(1)).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void storesCapturedEntryInSeveralServicesWithoutWritingItAgain() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    AwsS3BuildCacheService replica = spy(new AwsS3BuildCacheService(s3, "replicaBucketName", null, false));
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+    doReturn(putObjectRequest).when(replica).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    String bucketPath = buildCacheService.reserveStore(key);
+    String replicaPath = replica.reserveStore(key);
+    AwsS3BuildCacheService.CapturedEntry entry = buildCacheService.capture(writer);
+    replica.store(key, replicaPath, entry.retain());
+    buildCacheService.store(key, bucketPath, entry);
+
+    /** Check **/
+    verify(writer, times(1)).writeTo(any(OutputStream.class));
+    verify(s3, times(2)).putObject(putObjectRequest);
+  }
+
+  @Test
+  public void storeSkipsConcurrentStoresOfSameEntry() throws IOException {
+    /** Setup **/
+    final BuildCacheEntryWriter concurrentWriter = mock(BuildCacheEntryWriter.class);
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        buildCacheService.store(key, concurrentWriter);
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(concurrentWriter, never()).writeTo(any(OutputStream.class));
+    verify(s3, times(1)).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void storeTreatsFailedConditionalPutAsAlreadyStored() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", null, false));
+    buildCacheService.setSkipExistingEntries(true);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(any(String.class),
+            any(ObjectMetadata.class), any(InputStream.class));
+    AmazonS3Exception preconditionFailed = new AmazonS3Exception("Precondition Failed");
+    preconditionFailed.setStatusCode(412);
+    doThrow(preconditionFailed).when(s3).putObject(putObjectRequest);
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(putObjectRequest).putCustomRequestHeader("If-None-Match", "*");
+    assertEquals(0, buildCacheService.getMetrics().getStores());
+    assertEquals(1, buildCacheService.getMetrics().getSkippedStores());
+  }
+
+  @Test
+  public void loadSkipsS3OnceCircuitBreakerIsOpen() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    buildCacheService.setCircuitBreaker(new CircuitBreaker(4, 2, 0.5, 10000, 60000));
+    AmazonS3Exception unavailable = new AmazonS3Exception("Service Unavailable");
+    unavailable.setStatusCode(503);
+    doThrow(unavailable).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    for (int i = 0; i < 2; i++) {
+      try {
+        buildCacheService.load(key, reader);
+      } catch (AmazonS3Exception expected) {
+        // Counted by the circuit breaker
+      }
+    }
+    boolean result = buildCacheService.load(key, reader);
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    assertFalse(result);
+    verify(s3, times(2)).getObject(any(GetObjectRequest.class));
+    verify(writer, never()).writeTo(any(OutputStream.class));
+  }
+
+  @Test
+  public void loadDoesNotCountSlowReadersAsSlowRequests() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    CircuitBreaker circuitBreaker = new CircuitBreaker(1, 1, 0.5, 10, 60000);
+    buildCacheService.setCircuitBreaker(circuitBreaker);
+    S3Object s3Object = mock(S3Object.class);
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    doReturn(new ObjectMetadata()).when(s3Object).getObjectMetadata();
+    doReturn(mock(S3ObjectInputStream.class)).when(s3Object).getObjectContent();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(50);
+        return null;
+      }
+    }).when(reader).readFrom(any(InputStream.class));
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertTrue(result);
+    assertFalse(circuitBreaker.isOpen());
+  }
+
+  @Test
+  public void storePutsObjectUnderKeyOfKeyLayout() throws IOException {
+    /** Setup **/
+    buildCacheService = spy(new AwsS3BuildCacheService(s3, "bucketName", "cache", false));
+    buildCacheService.setKeyLayout(branchLayout("main"), false);
+    doReturn(putObjectRequest).when(buildCacheService).getPutObjectRequest(eq("cache/main/abcdefghijkl123456789"),
+            any(ObjectMetadata.class), any(InputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verifyThatStoreStores("cache/main/abcdefghijkl123456789");
+  }
+
+  @Test
+  public void loadFallsBackToLegacyKeyWhenConfigured() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", true);
+    buildCacheService.setKeyLayout(branchLayout("main"), true);
+    final S3Object s3Object = mock(S3Object.class);
+    S3ObjectInputStream s3ObjectInputStream = mock(S3ObjectInputStream.class);
+    doReturn(s3ObjectInputStream).when(s3Object).getObjectContent();
+    final ArgumentCaptor<GetObjectRequest> requests = ArgumentCaptor.forClass(GetObjectRequest.class);
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+        if (!request.getKey().equals("cache/abcdefghijkl123456789")) {
+          throw notFound();
+        }
+        return s3Object;
+      }
+    }).when(s3).getObject(requests.capture());
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertTrue(result);
+    verify(reader).readFrom(s3ObjectInputStream);
+    assertEquals(2, requests.getAllValues().size());
+    assertEquals("cache/main/abcdefghijkl123456789", requests.getAllValues().get(0).getKey());
+    assertEquals("cache/abcdefghijkl123456789", requests.getAllValues().get(1).getKey());
+  }
+
+  @Test
+  public void loadDoesNotFallBackToLegacyKeyByDefault() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    buildCacheService.setKeyLayout(KeyLayouts.hashPrefix(16), false);
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(result);
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void storeUploadsChunksAndManifestWhenChunkingIsEnabled() throws IOException {
+    /** Setup **/
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", false);
+    buildCacheService.setChunking(executor, 1, 4096);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((OutputStream) invocation.getArguments()[0]).write(new byte[32]);
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+    executor.shutdown();
+
+    /** Check **/
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    assertTrue(puts.getAllValues().get(0).getKey().startsWith("cache/chunks/"));
+    PutObjectRequest manifest = puts.getAllValues().get(1);
+    assertEquals("cache/abcdefghijkl123456789", manifest.getKey());
+    assertTrue(ChunkManifest.isManifest(manifest.getMetadata()));
+  }
+
+  @Test
+  public void loadTreatsEntriesWithMissingChunksAsMissAndLetsStoreReplaceThem() throws IOException {
+    /** Setup **/
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, false);
+    buildCacheService.setSkipExistingEntries(true);
+    buildCacheService.setChunking(executor, 1, 4096);
+    ObjectMetadata meta = new ObjectMetadata();
+    ChunkManifest.addToMetadata(meta);
+    S3Object manifest = new S3Object();
+    manifest.setObjectMetadata(meta);
+    manifest.setObjectContent(new ByteArrayInputStream("chunks v1\n0123 32\n".getBytes()));
+    doReturn(manifest).when(s3).getObject(any(GetObjectRequest.class));
+    doThrow(notFound()).when(s3).getObject("bucketName", "chunks/0123");
+    doReturn(true).when(s3).doesObjectExist("bucketName", "abcdefghijkl123456789");
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+    buildCacheService.store(key, writer);
+    executor.shutdown();
+
+    /** Check **/
+    assertFalse(result);
+    verify(reader, never()).readFrom(any(InputStream.class));
+    verify(s3, never()).doesObjectExist("bucketName", "abcdefghijkl123456789");
+    verify(writer).writeTo(any(OutputStream.class));
+  }
+
+  @Test
+  public void loadDoesNotAskS3ForEntriesWhichAreNotInTheIndex() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    loadEmptyKeyIndex();
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(result);
+    verify(s3, never()).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void loadAsksS3ForEntriesStoredAfterTheIndexWasLoaded() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", null, true);
+    loadEmptyKeyIndex();
+    buildCacheService.store(key, writer);
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    buildCacheService.load(key, reader);
+
+    /** Check **/
+    verify(s3).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void closeWritesKeysOfStoredEntriesIntoIndexDelta() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", true);
+    buildCacheService.setKeyIndex(24 * 60 * 60 * 1000L, Executors.newSingleThreadExecutor());
+    buildCacheService.store(key, writer);
+
+    /** Run **/
+    buildCacheService.close();
+
+    /** Check **/
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    PutObjectRequest delta = puts.getAllValues().get(1);
+    assertTrue(delta.getKey().startsWith("cache/index/deltas/"));
+    assertEquals(Collections.singletonList("cache/abcdefghijkl123456789"), KeyManifest.read(delta.getInputStream()));
+  }
+
+  @Test
+  public void closeWritesKeysOfLoadedEntriesIntoAccessLog() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", true);
+    buildCacheService.setRecordAccess(true);
+    S3Object s3Object = new S3Object();
+    s3Object.setObjectContent(new ByteArrayInputStream(new byte[0]));
+    doReturn(s3Object).when(s3).getObject(any(GetObjectRequest.class));
+    buildCacheService.load(key, reader);
+
+    /** Run **/
+    buildCacheService.close();
+
+    /** Check **/
+    ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(put.capture());
+    assertTrue(put.getValue().getKey().startsWith("cache/access/"));
+    assertEquals(Collections.singletonList("cache/abcdefghijkl123456789"),
+        KeyManifest.read(put.getValue().getInputStream()));
+  }
+
+  @Test
+  public void storeAddsSmallEntriesToPackWhichCloseUploads() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", false);
+    buildCacheService.setPacking(1024, 1024 * 1024, TimeUnit.DAYS.toMillis(30), Executors.newFixedThreadPool(2));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((OutputStream) invocation.getArguments()[0]).write("cache entry".getBytes("UTF-8"));
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+    buildCacheService.store(key, writer);
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+
+    /** Run **/
+    boolean loaded = buildCacheService.load(key, reader);
+    buildCacheService.close();
+
+    /** Check **/
+    assertTrue(loaded);
+    verify(s3, never()).getObject(any(GetObjectRequest.class));
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    assertTrue(puts.getAllValues().get(0).getKey().startsWith("cache/packs/data/"));
+    assertTrue(puts.getAllValues().get(1).getKey().startsWith("cache/packs/index/"));
+  }
+
+  @Test
+  public void storeUploadsDuePacksInTheBackground() throws Exception {
+    /** Setup **/
+    final CountDownLatch busy = new CountDownLatch(1);
+    ExecutorService packExecutor = Executors.newSingleThreadExecutor();
+    packExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          busy.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", false);
+    buildCacheService.setPacking(1024, 8, TimeUnit.DAYS.toMillis(30), packExecutor);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((OutputStream) invocation.getArguments()[0]).write("cache entry".getBytes("UTF-8"));
+        return null;
+      }
+    }).when(writer).writeTo(any(OutputStream.class));
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+    busy.countDown();
+    packExecutor.shutdown();
+    packExecutor.awaitTermination(10, TimeUnit.SECONDS);
+
+    /** Check **/
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    assertTrue(puts.getAllValues().get(0).getKey().startsWith("cache/packs/data/"));
+  }
+
+  @Test
+  public void storeSkipsEntriesWhichArePacked() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", false);
+    buildCacheService.setPacking(1024, 1024 * 1024, TimeUnit.DAYS.toMillis(30), Executors.newFixedThreadPool(2));
+    buildCacheService.store(key, writer);
+
+    /** Run **/
+    buildCacheService.store(key, writer);
+
+    /** Check **/
+    verify(writer, times(1)).writeTo(any(OutputStream.class));
+  }
+
+  @Test
+  public void loadRemembersMissesOnceThePackIndexesCouldNotBeRead() throws Exception {
+    /** Setup **/
+    buildCacheService = new AwsS3BuildCacheService(s3, "unreadablePacksBucketName", "cache", false);
+    buildCacheService.setMissCache(new ExpiringKeyCache(10), 60000);
+    buildCacheService.setPacking(1024, 1024 * 1024, TimeUnit.DAYS.toMillis(30), Executors.newFixedThreadPool(2));
+    doThrow(new AmazonS3Exception("Access Denied")).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    doThrow(notFound()).when(s3).getObject(any(GetObjectRequest.class));
+    buildCacheService.startPacks();
+
+    /** Run **/
+    boolean first = buildCacheService.load(key, reader);
+    boolean second = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertFalse(first);
+    assertFalse(second);
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void loadReadsThroughReadClientWhenConfigured() throws Exception {
+    /** Setup **/
+    AmazonS3 readClient = mock(AmazonS3.class);
+    buildCacheService = new AwsS3BuildCacheService(s3, "bucketName", "cache", false);
+    buildCacheService.setReadClient(S3ClientRegistry.Lease.unmanaged(readClient));
+    S3Object s3Object = new S3Object();
+    s3Object.setObjectContent(new ByteArrayInputStream(new byte[0]));
+    doReturn(s3Object).when(readClient).getObject(any(GetObjectRequest.class));
+
+    /** Run **/
+    boolean result = buildCacheService.load(key, reader);
+
+    /** Check **/
+    assertTrue(result);
+    ArgumentCaptor<GetObjectRequest> request = ArgumentCaptor.forClass(GetObjectRequest.class);
+    verify(readClient).getObject(request.capture());
+    assertEquals("cache/abcdefghijkl123456789", request.getValue().getKey());
+    verifyZeroInteractions(s3);
+  }
+
+  /**
+   * Makes the service load an index of an empty bucket.
+   */
+  private void loadEmptyKeyIndex() throws Exception {
+    AmazonS3 indexS3 = mock(AmazonS3.class);
+    doReturn(new ListObjectsV2Result()).when(indexS3).listObjectsV2(any(ListObjectsV2Request.class));
+    new KeyIndex("bucketName", "index/keys", "index/deltas/", 0)
+        .rebuild(indexS3, "", Collections.<String>emptyList());
+    ArgumentCaptor<PutObjectRequest> index = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(indexS3).putObject(index.capture());
+    S3Object indexObject = new S3Object();
+    indexObject.setObjectContent(index.getValue().getInputStream());
+    doReturn(indexObject).when(s3).getObject("bucketName", "index/keys");
+    doReturn(new ListObjectsV2Result()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    buildCacheService.setKeyIndex(24 * 60 * 60 * 1000L, executor);
+    buildCacheService.startKeyIndex();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  private static KeyLayout branchLayout(final String branch) {
+    return new KeyLayout() {
+      @Override
+      public String getObjectKey(String hashCode) {
+        return branch + "/" + hashCode;
+      }
+    };
+  }
+
+  private static AmazonS3Exception notFound() {
+    AmazonS3Exception e = new AmazonS3Exception("Not Found");
+    e.setStatusCode(404);
+    return e;
+  }
+
   private void verifyThatStoreStores(String bucketPath) throws IOException {
-    verify(writer).writeTo(any(ByteArrayOutputStream.class));
+    verify(writer).writeTo(any(OutputStream.class));
     verify(buildCacheService).getPutObjectRequest(eq(bucketPath), any(ObjectMetadata.class), any(InputStream.class));
     verify(s3).putObject(eq(putObjectRequest));
   }
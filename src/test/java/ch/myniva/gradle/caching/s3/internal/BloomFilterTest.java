@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+  @Test
+  public void containsEveryAddedString() {
+    BloomFilter filter = BloomFilter.create(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      filter.add("cache/" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(filter.mightContain("cache/" + i));
+    }
+  }
+
+  @Test
+  public void falsePositiveRateIsCloseToConfiguredRate() {
+    BloomFilter filter = BloomFilter.create(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add("cache/" + i);
+    }
+    int falsePositives = 0;
+    for (int i = 10000; i < 110000; i++) {
+      if (filter.mightContain("cache/" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives, falsePositives < 1500);
+  }
+
+  @Test
+  public void emptyFilterContainsNothing() {
+    BloomFilter filter = BloomFilter.create(0, 0.01);
+    assertFalse(filter.mightContain("cache/0a1b2c3d"));
+  }
+
+  @Test
+  public void addHashIsEquivalentToAdd() {
+    BloomFilter filter = BloomFilter.create(10, 0.01);
+    filter.addHash(BloomFilter.hash("cache/0a1b2c3d"));
+    assertTrue(filter.mightContain("cache/0a1b2c3d"));
+  }
+
+  @Test
+  public void hashIsStable() {
+    // Indexes written by one version are read by others
+    assertEquals(BloomFilter.hash("cache/0a1b2c3d"), BloomFilter.hash("cache/0a1b2c3d"));
+    assertEquals(0xefd01f60ba992926L, BloomFilter.hash(""));
+  }
+
+  @Test
+  public void roundTripsThroughSerializedForm() throws IOException {
+    BloomFilter filter = BloomFilter.create(100, 0.01);
+    for (int i = 0; i < 100; i++) {
+      filter.add("cache/" + i);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream os = new DataOutputStream(bytes)) {
+      filter.writeTo(os);
+    }
+    assertEquals(filter.getSize(), bytes.size());
+
+    BloomFilter read = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    for (int i = 0; i < 100; i++) {
+      assertTrue(read.mightContain("cache/" + i));
+    }
+    for (int i = 100; i < 1000; i++) {
+      assertEquals(filter.mightContain("cache/" + i), read.mightContain("cache/" + i));
+    }
+  }
+
+  @Test
+  public void rejectsMalformedFilter() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream os = new DataOutputStream(bytes)) {
+      os.writeInt(0);
+      os.writeInt(1);
+      os.writeLong(0);
+    }
+    try {
+      BloomFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
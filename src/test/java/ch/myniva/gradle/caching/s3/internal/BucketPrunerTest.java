@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class BucketPrunerTest {
+
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final long NOW = System.currentTimeMillis();
+
+  private final TreeMap<String, S3ObjectSummary> objects = new TreeMap<>();
+  private final Map<String, byte[]> contents = new TreeMap<>();
+  private final Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+  private final Set<String> failing = new HashSet<>();
+  private AmazonS3 s3;
+  private ExecutorService executor;
+  private BucketPruner pruner;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    executor = Executors.newFixedThreadPool(4);
+    pruner = new BucketPruner("bucket", "cache/", Arrays.asList("cache/chunks/", "cache/access/"),
+        "cache/access/", executor);
+    doAnswer(new Answer<ListObjectsV2Result>() {
+      @Override
+      public ListObjectsV2Result answer(InvocationOnMock invocation) {
+        ListObjectsV2Request request = (ListObjectsV2Request) invocation.getArguments()[0];
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        synchronized (objects) {
+          for (S3ObjectSummary summary : objects.values()) {
+            if (summary.getKey().startsWith(request.getPrefix())
+                && (request.getStartAfter() == null || summary.getKey().compareTo(request.getStartAfter()) > 0)) {
+              result.getObjectSummaries().add(summary);
+            }
+          }
+        }
+        return result;
+      }
+    }).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(contents.get((String) invocation.getArguments()[1])));
+        return object;
+      }
+    }).when(s3).getObject(anyString(), anyString());
+    doAnswer(new Answer<DeleteObjectsResult>() {
+      @Override
+      public DeleteObjectsResult answer(InvocationOnMock invocation) {
+        DeleteObjectsRequest request = (DeleteObjectsRequest) invocation.getArguments()[0];
+        List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+        for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+          if (failing.contains(key.getKey())) {
+            MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+            error.setKey(key.getKey());
+            errors.add(error);
+          } else {
+            deleted.add(key.getKey());
+          }
+        }
+        if (!errors.isEmpty()) {
+          throw new MultiObjectDeleteException(errors, Collections.<DeleteObjectsResult.DeletedObject>emptyList());
+        }
+        return new DeleteObjectsResult(Collections.<DeleteObjectsResult.DeletedObject>emptyList());
+      }
+    }).when(s3).deleteObjects(any(DeleteObjectsRequest.class));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void deletesEntriesWhichWereNotAccessedForTooLong() throws IOException {
+    put("cache/0a1b2c3d", 100, NOW - 40 * DAY);
+    put("cache/fa1b2c3d", 100, NOW - 10 * DAY);
+
+    long remaining = pruner.prune(s3, 30 * DAY, 0);
+
+    assertEquals(Collections.singleton("cache/0a1b2c3d"), deleted);
+    assertEquals(100, remaining);
+    assertEquals(2, pruner.getListedEntries());
+    assertEquals(1, pruner.getDeletedEntries());
+    assertEquals(100, pruner.getDeletedBytes());
+  }
+
+  @Test
+  public void keepsEntriesWhichWereLoadedRecently() throws IOException {
+    put("cache/0a1b2c3d", 100, NOW - 40 * DAY);
+    putAccessLog(NOW - DAY, "cache/0a1b2c3d");
+
+    pruner.prune(s3, 30 * DAY, 0);
+
+    assertTrue(deleted.isEmpty());
+  }
+
+  @Test
+  public void deletesLeastRecentlyUsedEntriesBeyondMaxSize() throws IOException {
+    put("cache/0a1b2c3d", 100, NOW - 20 * DAY);
+    put("cache/5a1b2c3d", 100, NOW - 20 * DAY);
+    put("cache/aa1b2c3d", 100, NOW - 10 * DAY);
+    put("cache/fa1b2c3d", 100, NOW - 5 * DAY);
+    putAccessLog(NOW - DAY, "cache/0a1b2c3d");
+
+    long remaining = pruner.prune(s3, 30 * DAY, 250);
+
+    assertEquals(new HashSet<>(Arrays.asList("cache/5a1b2c3d", "cache/aa1b2c3d")), deleted);
+    assertEquals(200, remaining);
+  }
+
+  @Test
+  public void doesNotDeleteAnythingButEntries() throws IOException {
+    put("cache/chunks/0a1b2c3d", 100, NOW - 400 * DAY);
+    put("cache/ca1b2c3d", 100, NOW - 400 * DAY);
+    put("cache/index/keys", 100, NOW - 400 * DAY);
+
+    pruner.prune(s3, 30 * DAY, 0);
+
+    assertEquals(Collections.singleton("cache/ca1b2c3d"), deleted);
+  }
+
+  @Test
+  public void deletesAccessLogsWhichWereWrittenBeforeMaxIdleTime() throws IOException {
+    String old = putAccessLog(NOW - 40 * DAY, "cache/0a1b2c3d");
+    putAccessLog(NOW - DAY, "cache/0a1b2c3d");
+
+    pruner.prune(s3, 30 * DAY, 0);
+
+    assertEquals(Collections.singleton(old), deleted);
+  }
+
+  @Test
+  public void countsEntriesWhichCouldNotBeDeleted() throws IOException {
+    put("cache/0a1b2c3d", 100, NOW - 40 * DAY);
+    put("cache/0a1b2c3e", 100, NOW - 40 * DAY);
+    failing.add("cache/0a1b2c3e");
+
+    long remaining = pruner.prune(s3, 30 * DAY, 0);
+
+    assertEquals(Collections.singleton("cache/0a1b2c3d"), deleted);
+    assertEquals(1, pruner.getDeletedEntries());
+    assertEquals(1, pruner.getFailedDeletes());
+    assertEquals(0, remaining);
+  }
+
+  private void put(String key, long size, long lastModified) {
+    S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setBucketName("bucket");
+    summary.setKey(key);
+    summary.setSize(size);
+    summary.setLastModified(new Date(lastModified));
+    objects.put(key, summary);
+  }
+
+  private String putAccessLog(long writtenAt, String... keys) throws IOException {
+    KeyManifest log = new KeyManifest();
+    for (String key : keys) {
+      log.record(key);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    log.writeTo(bytes);
+    String logKey = "cache/access/" + String.format("%015d", writtenAt) + "-" + objects.size();
+    put(logKey, bytes.size(), writtenAt);
+    contents.put(logKey, bytes.toByteArray());
+    return logKey;
+  }
+}
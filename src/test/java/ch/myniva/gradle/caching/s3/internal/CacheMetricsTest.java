@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheMetricsTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void isEmptyUntilSomethingIsRecorded() {
+    CacheMetrics metrics = new CacheMetrics();
+
+    assertTrue(metrics.isEmpty());
+    metrics.cachedMiss();
+    assertFalse(metrics.isEmpty());
+  }
+
+  @Test
+  public void countsOperations() {
+    CacheMetrics metrics = new CacheMetrics();
+
+    metrics.hit(TimeUnit.MILLISECONDS.toNanos(20), 1024);
+    metrics.hit(TimeUnit.MILLISECONDS.toNanos(30), 2048);
+    metrics.miss(TimeUnit.MILLISECONDS.toNanos(10));
+    metrics.loadError(TimeUnit.MILLISECONDS.toNanos(5));
+    metrics.stored(TimeUnit.MILLISECONDS.toNanos(100), 4096);
+
+    assertEquals(2, metrics.getHits());
+    assertEquals(1, metrics.getMisses());
+    assertEquals(1, metrics.getLoadErrors());
+    assertEquals(1, metrics.getStores());
+  }
+
+  @Test
+  public void writesJsonReport() throws Exception {
+    CacheMetrics metrics = new CacheMetrics();
+    metrics.hit(TimeUnit.SECONDS.toNanos(1), 1024 * 1024);
+    File report = new File(tempFolder.getRoot(), "reports/s3-build-cache.json");
+
+    metrics.writeJson(report);
+
+    String json = new String(Files.readAllBytes(report.toPath()), Charset.forName("UTF-8"));
+    assertTrue(json.startsWith("{\"loads\":{\"hits\":1,"));
+    assertTrue(json.contains("\"bytes\":1048576,\"bytesPerSecond\":1048576,"));
+    assertTrue(json.contains("\"stores\":{\"count\":0,"));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ChunkManifestTest {
+
+  @Test
+  public void readsWrittenManifest() throws IOException {
+    ChunkManifest manifest = new ChunkManifest(Arrays.asList(
+        new ChunkManifest.Chunk("aa", 10), new ChunkManifest.Chunk("bb", 20), new ChunkManifest.Chunk("aa", 10)));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    manifest.writeTo(out);
+    ChunkManifest read = ChunkManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(3, read.getChunks().size());
+    assertEquals("bb", read.getChunks().get(1).getHash());
+    assertEquals(20, read.getChunks().get(1).getLength());
+    assertEquals(40, read.getContentLength());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsUnknownFormat() throws IOException {
+    ChunkManifest.read(new ByteArrayInputStream("chunks v2\naa 10\n".getBytes(Charset.forName("UTF-8"))));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMalformedLines() throws IOException {
+    ChunkManifest.read(new ByteArrayInputStream("chunks v1\naa\n".getBytes(Charset.forName("UTF-8"))));
+  }
+
+  @Test
+  public void recognizesManifestsByMetadata() {
+    ObjectMetadata manifest = new ObjectMetadata();
+    ChunkManifest.addToMetadata(manifest);
+    ObjectMetadata entry = new ObjectMetadata();
+    entry.addUserMetadata("codec", "gzip");
+
+    assertTrue(ChunkManifest.isManifest(manifest));
+    assertFalse(ChunkManifest.isManifest(entry));
+    assertFalse(ChunkManifest.isManifest(null));
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ChunkStoreTest {
+
+  private static final byte[] FIRST = "first chunk".getBytes();
+  private static final byte[] SECOND = "second chunk".getBytes();
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private AmazonS3 s3;
+  private ExecutorService executor;
+  private ChunkStore store;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    executor = Executors.newFixedThreadPool(2);
+    store = new ChunkStore("bucket", "cache/chunks/", executor, 2, new ExpiringKeyCache(100), 0);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void uploadsOnlyChunksWhichAreNotInBucket() throws IOException {
+    rejectExistingChunk(FIRST);
+
+    long uploaded = store.uploadMissing(s3, spool(FIRST, SECOND, FIRST), chunks(FIRST, SECOND, FIRST),
+        EntryCodecs.NONE, null);
+
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    for (PutObjectRequest put : puts.getAllValues()) {
+      assertEquals("*", put.getCustomRequestHeaders().get("If-None-Match"));
+    }
+    verify(s3, never()).doesObjectExist(anyString(), anyString());
+    assertEquals(SECOND.length, uploaded);
+    assertEquals(1, store.getUploadedChunks());
+    assertEquals(2, store.getReusedChunks());
+  }
+
+  @Test
+  public void readsChunksInOrder() throws IOException {
+    stubChunk(FIRST, FIRST);
+    stubChunk(SECOND, SECOND);
+
+    ChunkStore.ChunkedInputStream is = store.open(s3, new ChunkManifest(chunks(FIRST, SECOND, FIRST)), null);
+
+    assertArrayEquals(concat(FIRST, SECOND, FIRST), readAll(is));
+    assertEquals(2 * FIRST.length + SECOND.length, is.getDownloadedBytes());
+  }
+
+  @Test
+  public void servesChunksFromLocalTierWithoutAskingS3() throws IOException {
+    LocalDiskTier localTier = new LocalDiskTier(temporaryFolder.getRoot().toPath(), 1024 * 1024,
+        TimeUnit.DAYS.toMillis(1));
+    stubChunk(FIRST, FIRST);
+    readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), localTier));
+
+    byte[] content = readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), localTier));
+
+    assertArrayEquals(FIRST, content);
+    verify(s3, times(1)).getObject(anyString(), anyString());
+  }
+
+  @Test
+  public void replacesTruncatedLocalCopiesWithTheOneFromTheBucket() throws IOException {
+    LocalDiskTier localTier = new LocalDiskTier(temporaryFolder.getRoot().toPath(), 1024 * 1024,
+        TimeUnit.DAYS.toMillis(1));
+    localTier.put(ChunkStore.LOCAL_PREFIX + hash(FIRST), new ByteArrayInputStream("first".getBytes())).close();
+    stubChunk(FIRST, FIRST);
+
+    byte[] content = readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), localTier));
+
+    assertArrayEquals(FIRST, content);
+    verify(s3, times(1)).getObject(anyString(), anyString());
+  }
+
+  @Test(expected = ChunkStore.MissingChunkException.class)
+  public void reportsMissingChunks() throws IOException {
+    AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+    notFound.setStatusCode(404);
+    doThrow(notFound).when(s3).getObject(anyString(), anyString());
+
+    readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), null));
+  }
+
+  @Test
+  public void rejectsChunksWhichDoNotMatchTheirName() throws IOException {
+    stubChunk(FIRST, "tampered chunk".getBytes());
+
+    try {
+      readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), null));
+      fail("Expected corrupt chunk to be rejected");
+    } catch (ChunkStore.CorruptChunkException expected) {
+      assertTrue(expected.getMessage().contains(hash(FIRST)));
+    }
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test(expected = ChunkStore.CorruptChunkException.class)
+  public void rejectsTruncatedChunks() throws IOException {
+    stubChunk(FIRST, "first".getBytes());
+
+    readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), null));
+  }
+
+  @Test(expected = ChunkStore.CorruptChunkException.class)
+  public void rejectsChunksWhichCannotBeDecoded() throws IOException {
+    stubChunk(FIRST, "not gzip at all".getBytes(), EntryCodecs.forName("gzip", 6));
+
+    readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), null));
+  }
+
+  @Test
+  public void replacesCorruptChunksUnconditionally() throws IOException {
+    stubChunk(FIRST, "tampered chunk".getBytes());
+    rejectExistingChunk(FIRST);
+    try {
+      readAll(store.open(s3, new ChunkManifest(chunks(FIRST)), null));
+      fail("Expected corrupt chunk to be rejected");
+    } catch (ChunkStore.CorruptChunkException expected) {
+      // Marks the chunk for replacement
+    }
+
+    long uploaded = store.uploadMissing(s3, spool(FIRST), chunks(FIRST), EntryCodecs.NONE, null);
+
+    ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(put.capture());
+    assertNull(put.getValue().getCustomRequestHeaders());
+    assertEquals(FIRST.length, uploaded);
+  }
+
+  private void rejectExistingChunk(byte[] chunk) {
+    final String key = "cache/chunks/" + hash(chunk);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        PutObjectRequest request = invocation.getArgument(0);
+        if (request.getKey().equals(key) && request.getCustomRequestHeaders() != null) {
+          AmazonS3Exception preconditionFailed = new AmazonS3Exception("Precondition Failed");
+          preconditionFailed.setStatusCode(412);
+          throw preconditionFailed;
+        }
+        return null;
+      }
+    }).when(s3).putObject(any(PutObjectRequest.class));
+  }
+
+  private void stubChunk(byte[] chunk, byte[] content) {
+    stubChunk(chunk, content, EntryCodecs.NONE);
+  }
+
+  private void stubChunk(byte[] chunk, final byte[] content, final EntryCodec codec) {
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(content.length);
+        EntryCodecs.addToMetadata(codec, meta);
+        object.setObjectMetadata(meta);
+        return object;
+      }
+    }).when(s3).getObject(eq("bucket"), eq("cache/chunks/" + hash(chunk)));
+  }
+
+  private static String hash(byte[] chunk) {
+    return ContentDefinedChunker.toHex(ContentDefinedChunker.sha256().digest(chunk));
+  }
+
+  private static List<ChunkManifest.Chunk> chunks(byte[]... contents) {
+    List<ChunkManifest.Chunk> chunks = new ArrayList<>();
+    for (byte[] content : contents) {
+      chunks.add(new ChunkManifest.Chunk(hash(content), content.length));
+    }
+    return chunks;
+  }
+
+  private static SpoolingOutputStream spool(byte[]... contents) throws IOException {
+    SpoolingOutputStream spool = new SpoolingOutputStream(BufferPool.shared(), Long.MAX_VALUE);
+    spool.write(concat(contents));
+    spool.close();
+    return spool;
+  }
+
+  private static byte[] concat(byte[]... contents) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] content : contents) {
+      out.write(content, 0, content.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream is) throws IOException {
+    try (InputStream in = is) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[7];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+}
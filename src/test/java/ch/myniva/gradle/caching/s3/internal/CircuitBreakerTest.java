@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void staysClosedBelowThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 60000);
+
+    for (int i = 0; i < 10; i++) {
+      breaker.onSuccess(0);
+      if (i % 3 == 0) {
+        breaker.onFailure(0);
+      }
+    }
+
+    assertTrue(breaker.allowRequest());
+    assertNull(breaker.getReport());
+  }
+
+  @Test
+  public void opensWhenTooManyRequestsFail() {
+    CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 60000);
+
+    breaker.onSuccess(0);
+    breaker.onFailure(0);
+    breaker.onSuccess(0);
+    breaker.onFailure(0);
+
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.allowRequest());
+    assertEquals("S3 build cache was disabled 1 time(s) during this build because 2 of the last 4 requests failed "
+        + "and 0 took longer than 1000 ms; 1 requests were skipped", breaker.getReport());
+  }
+
+  @Test
+  public void opensWhenTooManyRequestsAreSlow() {
+    CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 60000);
+
+    for (int i = 0; i < 4; i++) {
+      breaker.onSuccess(TimeUnit.SECONDS.toNanos(2));
+    }
+
+    assertTrue(breaker.isOpen());
+  }
+
+  @Test
+  public void waitsForMinimumNumberOfRequests() {
+    CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 60000);
+
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+
+    assertFalse(breaker.isOpen());
+  }
+
+  @Test
+  public void closesAfterSuccessfulProbe() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(4, 2, 0.5, 1000, 1);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    Thread.sleep(10);
+
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.allowRequest());
+    breaker.onSuccess(0);
+
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void staysOpenAfterFailedProbe() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(4, 2, 0.5, 1000, 1);
+    breaker.onFailure(0);
+    breaker.onFailure(0);
+    Thread.sleep(10);
+
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure(0);
+
+    assertTrue(breaker.isOpen());
+  }
+
+  @Test
+  public void disabledBreakerNeverOpens() {
+    CircuitBreaker breaker = CircuitBreaker.disabled();
+
+    for (int i = 0; i < 100; i++) {
+      breaker.onFailure(TimeUnit.MINUTES.toNanos(5));
+    }
+
+    assertFalse(breaker.isOpen());
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+  @Test
+  public void requestsBeyondTheLimitWait() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+    long first = limiter.acquire();
+    limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    thread.start();
+
+    assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+    limiter.onSuccess(first, false);
+    assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    assertEquals(2, limiter.getInFlight());
+  }
+
+  @Test
+  public void waitingRequestsProceedInArrivalOrder() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1);
+    long started = limiter.acquire();
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final int n = i;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            long started = limiter.acquire();
+            order.add(n);
+            limiter.onSuccess(started, false);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+      while (limiter.getWaiting() <= i) {
+        Thread.sleep(1);
+      }
+    }
+
+    limiter.onSuccess(started, false);
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void throttlingCutsTheLimitOncePerRound() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+    long first = limiter.acquire();
+    long second = limiter.acquire();
+
+    limiter.onThrottled(first);
+    assertEquals(7, limiter.getLimit());
+    limiter.onThrottled(second);
+    assertEquals(7, limiter.getLimit());
+    limiter.onThrottled(limiter.acquire());
+    assertEquals(4, limiter.getLimit());
+    assertEquals(3, limiter.getThrottled());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void successfulRoundsRaiseTheLimitUpToTheMaximum() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4);
+    limiter.onThrottled(limiter.acquire());
+    assertEquals(2, limiter.getLimit());
+
+    for (int round = 0; round < 20; round++) {
+      List<Long> requests = new ArrayList<>();
+      for (int i = 0; i < limiter.getLimit(); i++) {
+        requests.add(limiter.acquire());
+      }
+      for (long started : requests) {
+        limiter.onSuccess(started, false);
+      }
+    }
+
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void limitIsNotRaisedWhileItIsNotReached() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+    limiter.onThrottled(limiter.acquire());
+
+    for (int i = 0; i < 100; i++) {
+      limiter.onSuccess(limiter.acquire(), false);
+    }
+
+    assertEquals(7, limiter.getLimit());
+  }
+
+  @Test
+  public void risingLatencyCutsTheLimit() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10);
+    Thread.sleep(20);
+
+    for (int i = 0; i < ConcurrencyLimiter.LATENCY_WARMUP; i++) {
+      limiter.acquire();
+      limiter.onSuccess(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1), true);
+    }
+    assertEquals(10, limiter.getLimit());
+    for (int i = 0; i < 20 && limiter.getLimit() == 10; i++) {
+      limiter.acquire();
+      limiter.onSuccess(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10), true);
+    }
+
+    assertEquals(7, limiter.getLimit());
+  }
+
+  @Test
+  public void limitNeverDropsBelowOne() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2);
+
+    for (int i = 0; i < 10; i++) {
+      limiter.onThrottled(limiter.acquire());
+    }
+
+    assertEquals(1, limiter.getLimit());
+  }
+}
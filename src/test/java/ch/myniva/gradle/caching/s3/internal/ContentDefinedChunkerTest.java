@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+  private static final int AVERAGE_SIZE = 4096;
+
+  @Test
+  public void passesContentThroughUnchanged() throws IOException {
+    byte[] content = randomContent(100000, 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    chunk(out, content, 1000);
+
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  @Test
+  public void splitsContentIntoNamedChunksWithinBounds() throws IOException {
+    byte[] content = randomContent(200000, 2);
+
+    List<ChunkManifest.Chunk> chunks = chunk(new ByteArrayOutputStream(), content, content.length);
+
+    assertTrue(chunks.size() > 1);
+    int offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      ChunkManifest.Chunk chunk = chunks.get(i);
+      assertTrue(chunk.getLength() <= AVERAGE_SIZE * 4);
+      if (i < chunks.size() - 1) {
+        assertTrue(chunk.getLength() >= AVERAGE_SIZE / 4);
+      }
+      MessageDigest digest = ContentDefinedChunker.sha256();
+      digest.update(content, offset, chunk.getLength());
+      assertEquals(ContentDefinedChunker.toHex(digest.digest()), chunk.getHash());
+      offset += chunk.getLength();
+    }
+    assertEquals(content.length, offset);
+  }
+
+  @Test
+  public void chunksDoNotDependOnHowContentIsWritten() throws IOException {
+    byte[] content = randomContent(100000, 3);
+
+    List<ChunkManifest.Chunk> whole = chunk(new ByteArrayOutputStream(), content, content.length);
+    List<ChunkManifest.Chunk> pieces = chunk(new ByteArrayOutputStream(), content, 777);
+
+    assertEquals(hashes(whole), hashes(pieces));
+  }
+
+  @Test
+  public void insertionOnlyChangesChunksNextToIt() throws IOException {
+    byte[] content = randomContent(400000, 4);
+    byte[] changed = new byte[content.length + 10];
+    System.arraycopy(content, 0, changed, 0, 200000);
+    System.arraycopy(content, 200000, changed, 200010, content.length - 200000);
+
+    List<String> before = hashes(chunk(new ByteArrayOutputStream(), content, content.length));
+    List<String> after = hashes(chunk(new ByteArrayOutputStream(), changed, changed.length));
+
+    Set<String> shared = new HashSet<>(before);
+    shared.retainAll(after);
+    assertTrue(shared.size() >= before.size() - 3);
+  }
+
+  @Test
+  public void emptyContentHasNoChunks() throws IOException {
+    assertEquals(0, chunk(new ByteArrayOutputStream(), new byte[0], 1).size());
+  }
+
+  private static List<ChunkManifest.Chunk> chunk(ByteArrayOutputStream out, byte[] content, int writeSize)
+      throws IOException {
+    ContentDefinedChunker chunker = new ContentDefinedChunker(out, AVERAGE_SIZE);
+    for (int offset = 0; offset < content.length; offset += writeSize) {
+      chunker.write(content, offset, Math.min(writeSize, content.length - offset));
+    }
+    chunker.close();
+    return chunker.getChunks();
+  }
+
+  private static List<String> hashes(List<ChunkManifest.Chunk> chunks) {
+    String[] hashes = new String[chunks.size()];
+    for (int i = 0; i < hashes.length; i++) {
+      hashes[i] = chunks.get(i).getHash();
+    }
+    return Arrays.asList(hashes);
+  }
+
+  private static byte[] randomContent(int size, long seed) {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+}
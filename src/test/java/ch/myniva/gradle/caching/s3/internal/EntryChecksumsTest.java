@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CheckedOutputStream;
+import org.junit.Test;
+
+public class EntryChecksumsTest {
+
+  @Test
+  public void verifiesContentWrittenWithChecksum() throws IOException {
+    byte[] content = "cache entry".getBytes("UTF-8");
+    ObjectMetadata meta = new ObjectMetadata();
+
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    CheckedOutputStream os = EntryChecksums.checksum(stored);
+    os.write(content, 0, 5);
+    os.write(content[5]);
+    os.write(content, 6, content.length - 6);
+    EntryChecksums.addToMetadata(os, meta);
+
+    assertEquals("c95524ed", meta.getUserMetaDataOf(EntryChecksums.METADATA_KEY));
+    assertArrayEquals(content, readFully(EntryChecksums.verify(new ByteArrayInputStream(stored.toByteArray()), meta)));
+  }
+
+  @Test(expected = EntryChecksums.ChecksumMismatchException.class)
+  public void detectsCorruptContentAtTheEnd() throws IOException {
+    ObjectMetadata meta = metadataFor("cache entry");
+
+    readFully(EntryChecksums.verify(new ByteArrayInputStream("cache entrz".getBytes("UTF-8")), meta));
+  }
+
+  @Test(expected = EntryChecksums.ChecksumMismatchException.class)
+  public void detectsTruncatedContent() throws IOException {
+    ObjectMetadata meta = metadataFor("cache entry");
+
+    readFully(EntryChecksums.verify(new ByteArrayInputStream("cache".getBytes("UTF-8")), meta));
+  }
+
+  @Test(expected = EntryChecksums.ChecksumMismatchException.class)
+  public void detectsCorruptContentWhichIsSkipped() throws IOException {
+    ObjectMetadata meta = metadataFor("cache entry");
+
+    InputStream is = EntryChecksums.verify(new ByteArrayInputStream("cache entrz".getBytes("UTF-8")), meta);
+    is.skip(100);
+    is.read();
+  }
+
+  @Test
+  public void doesNotVerifyObjectsWithoutChecksum() {
+    InputStream content = new ByteArrayInputStream(new byte[0]);
+
+    assertSame(content, EntryChecksums.verify(content, new ObjectMetadata()));
+    assertSame(content, EntryChecksums.verify(content, null));
+  }
+
+  private static ObjectMetadata metadataFor(String content) throws IOException {
+    ObjectMetadata meta = new ObjectMetadata();
+    CheckedOutputStream os = EntryChecksums.checksum(new ByteArrayOutputStream());
+    os.write(content.getBytes("UTF-8"));
+    EntryChecksums.addToMetadata(os, meta);
+    return meta;
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4];
+    int n;
+    while ((n = is.read(buffer)) != -1) {
+      os.write(buffer, 0, n);
+    }
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.junit.Test;
+
+public class EntryCodecsTest {
+
+  @Test
+  public void gzipRoundTrip() throws IOException {
+    EntryCodec codec = EntryCodecs.forName("gzip", 9);
+    byte[] content = new byte[4096];
+
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    try (OutputStream os = codec.encode(encoded)) {
+      os.write(content);
+    }
+
+    assertTrue(encoded.size() < content.length);
+    assertArrayEquals(content, readFully(codec.decode(new ByteArrayInputStream(encoded.toByteArray()))));
+  }
+
+  @Test
+  public void recordsCodecInMetadata() {
+    ObjectMetadata meta = new ObjectMetadata();
+
+    EntryCodecs.addToMetadata(EntryCodecs.forName("gzip", -1), meta);
+
+    assertEquals("gzip", meta.getUserMetaDataOf(EntryCodecs.METADATA_KEY));
+    assertEquals("gzip", EntryCodecs.forMetadata(meta).getName());
+  }
+
+  @Test
+  public void readsObjectsWithoutCodecUnencoded() {
+    assertSame(EntryCodecs.NONE, EntryCodecs.forMetadata(new ObjectMetadata()));
+    assertSame(EntryCodecs.NONE, EntryCodecs.forMetadata(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownCodecs() {
+    EntryCodecs.forName("unknown", -1);
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[512];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        os.write(buffer, 0, read);
+      }
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExpiringKeyCacheTest {
+
+  @Test
+  public void remembersKeysPerBucket() {
+    ExpiringKeyCache cache = new ExpiringKeyCache(10);
+
+    cache.record("bucket", "key", 60000);
+
+    assertTrue(cache.contains("bucket", "key"));
+    assertFalse(cache.contains("other-bucket", "key"));
+  }
+
+  @Test
+  public void remembersKeysPerLocationOfTheBucket() {
+    ExpiringKeyCache cache = new ExpiringKeyCache(10);
+    ExpiringKeyCache primary = cache.forLocation("eu-west-1", null);
+    ExpiringKeyCache replica = cache.forLocation("eu-west-1", "https://s3.example.com");
+
+    primary.record("bucket", "key", 60000);
+
+    assertTrue(primary.contains("bucket", "key"));
+    assertTrue(cache.forLocation("eu-west-1", null).contains("bucket", "key"));
+    assertFalse(replica.contains("bucket", "key"));
+    assertFalse(cache.contains("bucket", "key"));
+    assertEquals(1, replica.size());
+  }
+
+  @Test
+  public void doesNotRememberKeysWithoutTtl() {
+    ExpiringKeyCache cache = new ExpiringKeyCache(10);
+
+    cache.record("bucket", "key", 0);
+
+    assertFalse(cache.contains("bucket", "key"));
+  }
+
+  @Test
+  public void forgetsExpiredKeys() throws Exception {
+    ExpiringKeyCache cache = new ExpiringKeyCache(10);
+
+    cache.record("bucket", "key", 1);
+    Thread.sleep(10);
+
+    assertFalse(cache.contains("bucket", "key"));
+  }
+
+  @Test
+  public void forgetsInvalidatedKeys() {
+    ExpiringKeyCache cache = new ExpiringKeyCache(10);
+
+    cache.record("bucket", "key", 60000);
+    cache.invalidate("bucket", "key");
+
+    assertFalse(cache.contains("bucket", "key"));
+  }
+
+  @Test
+  public void evictsOldestKeysWhenFull() {
+    ExpiringKeyCache cache = new ExpiringKeyCache(2);
+
+    cache.record("bucket", "a", 60000);
+    cache.record("bucket", "b", 60000);
+    cache.record("bucket", "c", 60000);
+
+    assertEquals(2, cache.size());
+    assertFalse(cache.contains("bucket", "a"));
+    assertTrue(cache.contains("bucket", "c"));
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class HedgedRequestsTest {
+
+  private AmazonS3 s3;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void doesNotHedgeBeforeResponseTimesAreKnown() throws Exception {
+    HedgedRequests hedging = new HedgedRequests(executor, 0.95, 1.0);
+    S3Object object = mock(S3Object.class);
+    doReturn(object).when(s3).getObject(any(GetObjectRequest.class));
+
+    S3Object result = hedging.getObject(s3, new GetObjectRequest("bucket", "key"));
+
+    assertSame(object, result);
+    assertEquals(0, hedging.getHedges());
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void usesFasterResponseOfHedgedRequest() throws Exception {
+    HedgedRequests hedging = new HedgedRequests(executor, 0.95, 1.0);
+    recordResponseTimes(hedging, 1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final S3Object slow = object();
+    final S3Object fast = object();
+    final AtomicInteger calls = new AtomicInteger();
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) throws Throwable {
+        if (calls.incrementAndGet() == 1) {
+          release.await();
+          return slow;
+        }
+        return fast;
+      }
+    }).when(s3).getObject(any(GetObjectRequest.class));
+
+    S3Object result = hedging.getObject(s3, new GetObjectRequest("bucket", "key"));
+    release.countDown();
+
+    assertSame(fast, result);
+    assertEquals(1, hedging.getHedges());
+    assertEquals(1, hedging.getHedgeWins());
+    verify(slow.getObjectContent(), timeout(5000)).abort();
+  }
+
+  @Test
+  public void doesNotHedgeMoreThanMaxRatio() throws Exception {
+    HedgedRequests hedging = new HedgedRequests(executor, 0.95, 0.0);
+    recordResponseTimes(hedging, 1);
+    final S3Object object = object();
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(100);
+        return object;
+      }
+    }).when(s3).getObject(any(GetObjectRequest.class));
+
+    S3Object result = hedging.getObject(s3, new GetObjectRequest("bucket", "key"));
+
+    assertSame(object, result);
+    assertEquals(0, hedging.getHedges());
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  private static void recordResponseTimes(HedgedRequests hedging, long millis) {
+    for (int i = 0; i < HedgedRequests.MIN_SAMPLES; i++) {
+      hedging.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+
+  private static S3Object object() {
+    S3Object object = mock(S3Object.class);
+    doReturn(mock(S3ObjectInputStream.class)).when(object).getObjectContent();
+    return object;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpReadClientTest {
+
+  private static final byte[] CONTENT = "cache entry".getBytes();
+
+  private HttpServer server;
+  private HttpReadClient client;
+  private volatile HttpExchange lastExchange;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        lastExchange = exchange;
+        if (!exchange.getRequestURI().getRawPath().equals("/cache/0a1b")) {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+          return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals("\"abc\"")) {
+          exchange.sendResponseHeaders(412, -1);
+          exchange.close();
+          return;
+        }
+        exchange.getResponseHeaders().set("ETag", "\"abc\"");
+        exchange.getResponseHeaders().set("x-amz-meta-crc32", "c95524ed");
+        byte[] body = CONTENT;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+          body = "entry".getBytes();
+          exchange.getResponseHeaders().set("Content-Range", "bytes 6-10/" + CONTENT.length);
+          exchange.sendResponseHeaders(206, body.length);
+        } else {
+          exchange.sendResponseHeaders(200, body.length);
+        }
+        try (OutputStream os = exchange.getResponseBody()) {
+          os.write(body);
+        }
+      }
+    });
+    server.start();
+    client = new HttpReadClient("http://127.0.0.1:" + server.getAddress().getPort(),
+        Collections.singletonMap("x-cdn-token", "secret"), 2);
+  }
+
+  @After
+  public void tearDown() {
+    client.shutdown();
+    server.stop(0);
+  }
+
+  @Test
+  public void readsObjectWithMetadataFromResponseHeaders() throws IOException {
+    S3Object object = client.getObject("bucket", "cache/0a1b");
+
+    assertArrayEquals(CONTENT, readAll(object.getObjectContent()));
+    assertEquals(CONTENT.length, object.getObjectMetadata().getContentLength());
+    assertEquals("abc", object.getObjectMetadata().getETag());
+    assertEquals("c95524ed", object.getObjectMetadata().getUserMetaDataOf(EntryChecksums.METADATA_KEY));
+    assertEquals("secret", lastExchange.getRequestHeaders().getFirst("x-cdn-token"));
+    assertNull(lastExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+  }
+
+  @Test
+  public void readsRanges() throws IOException {
+    S3Object object = client.getObject(new GetObjectRequest("bucket", "cache/0a1b").withRange(6, 10));
+
+    assertArrayEquals("entry".getBytes(), readAll(object.getObjectContent()));
+    assertEquals("bytes=6-10", lastExchange.getRequestHeaders().getFirst("Range"));
+    assertEquals(CONTENT.length, ParallelDownloader.getInstanceLength(object.getObjectMetadata()));
+  }
+
+  @Test
+  public void returnsNullIfETagDoesNotMatchLikeS3() throws IOException {
+    GetObjectRequest request = new GetObjectRequest("bucket", "cache/0a1b");
+
+    S3Object matching = client.getObject(request.withMatchingETagConstraint("\"abc\""));
+    S3Object changed = client.getObject(new GetObjectRequest("bucket", "cache/0a1b")
+        .withMatchingETagConstraint("\"def\""));
+
+    assertNotNull(matching);
+    matching.getObjectContent().close();
+    assertNull(changed);
+  }
+
+  @Test
+  public void reportsMissingObjectLikeS3() {
+    try {
+      client.getObject("bucket", "cache/2c3d");
+      fail();
+    } catch (AmazonS3Exception e) {
+      assertEquals(404, e.getStatusCode());
+    }
+  }
+
+  @Test
+  public void encodesKeysIntoUrl() {
+    HttpReadClient cdn = new HttpReadClient("https://cdn.example.com/", null, 1);
+
+    assertEquals("https://cdn.example.com/cache/a%20b", cdn.getUrl("cache/a b"));
+    cdn.shutdown();
+  }
+
+  private static byte[] readAll(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      os.write(buffer, 0, read);
+    }
+    is.close();
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class KeyIndexTest {
+
+  private static final long MAX_AGE = 24 * 60 * 60 * 1000L;
+
+  private AmazonS3 s3;
+  private KeyIndex index;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    index = new KeyIndex("bucket", "cache/index/keys", "cache/index/deltas/", MAX_AGE);
+    doReturn(listing()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+  }
+
+  @Test
+  public void reportsNothingMissingUntilLoaded() {
+    assertFalse(index.isMissing("cache/0a1b2c3d"));
+  }
+
+  @Test
+  public void reportsKeysMissingWhichAreNotInTheIndex() throws IOException {
+    doReturn(object(indexOf(System.currentTimeMillis(), "cache/0a1b2c3d"))).when(s3)
+        .getObject("bucket", "cache/index/keys");
+
+    index.load(s3);
+
+    assertFalse(index.isMissing("cache/0a1b2c3d"));
+    assertTrue(index.isMissing("cache/0a1b2c3e"));
+  }
+
+  @Test
+  public void keysStoredByThisBuildAreNotMissing() throws IOException {
+    doReturn(object(indexOf(System.currentTimeMillis()))).when(s3).getObject("bucket", "cache/index/keys");
+    index.load(s3);
+
+    index.recordStored("cache/0a1b2c3d");
+
+    assertFalse(index.isMissing("cache/0a1b2c3d"));
+  }
+
+  @Test
+  public void keysOfDeltasAreNotMissing() throws IOException {
+    doReturn(object(indexOf(System.currentTimeMillis()))).when(s3).getObject("bucket", "cache/index/keys");
+    doReturn(listing("cache/index/deltas/001500000000000-a")).when(s3)
+        .listObjectsV2(any(ListObjectsV2Request.class));
+    KeyManifest delta = new KeyManifest();
+    delta.record("cache/0a1b2c3d");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    delta.writeTo(bytes);
+    doReturn(object(bytes.toByteArray())).when(s3).getObject("bucket", "cache/index/deltas/001500000000000-a");
+
+    index.load(s3);
+
+    assertFalse(index.isMissing("cache/0a1b2c3d"));
+    assertTrue(index.isMissing("cache/0a1b2c3e"));
+  }
+
+  @Test
+  public void doesNotUseIndexWhichIsTooOld() throws IOException {
+    doReturn(object(indexOf(System.currentTimeMillis() - MAX_AGE - 60000))).when(s3)
+        .getObject("bucket", "cache/index/keys");
+
+    index.load(s3);
+
+    assertFalse(index.isMissing("cache/0a1b2c3e"));
+  }
+
+  @Test
+  public void doesNotUseIndexWhichDoesNotExist() throws IOException {
+    AmazonS3Exception notFound = new AmazonS3Exception("Not found");
+    notFound.setStatusCode(404);
+    doThrow(notFound).when(s3).getObject("bucket", "cache/index/keys");
+
+    index.load(s3);
+
+    assertFalse(index.isMissing("cache/0a1b2c3e"));
+  }
+
+  @Test
+  public void writesKeysStoredByThisBuildIntoDelta() throws IOException {
+    index.recordStored("cache/0a1b2c3d");
+
+    index.writeDelta(s3);
+
+    ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(request.capture());
+    assertTrue(request.getValue().getKey().startsWith("cache/index/deltas/"));
+    assertEquals(Collections.singletonList("cache/0a1b2c3d"), KeyManifest.read(request.getValue().getInputStream()));
+  }
+
+  @Test
+  public void doesNotWriteEmptyDelta() throws IOException {
+    index.writeDelta(s3);
+
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void rebuildIndexesEntriesButNotExcludedPrefixes() throws IOException {
+    doReturn(listing("cache/0a1b2c3d", "cache/chunks/0a1b2c3e", "cache/index/keys")).when(s3)
+        .listObjectsV2(any(ListObjectsV2Request.class));
+
+    assertEquals(1, index.rebuild(s3, "cache/", Arrays.asList("cache/chunks/", "cache/index/")));
+
+    ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(request.capture());
+    assertEquals("cache/index/keys", request.getValue().getKey());
+    doReturn(object(toBytes(request.getValue().getInputStream()))).when(s3).getObject("bucket", "cache/index/keys");
+    doReturn(listing()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    index.load(s3);
+    assertFalse(index.isMissing("cache/0a1b2c3d"));
+    assertTrue(index.isMissing("cache/chunks/0a1b2c3e"));
+  }
+
+  @Test
+  public void rebuildDeletesOldDeltas() throws IOException {
+    doReturn(listing("cache/index/deltas/001500000000000-a", "cache/index/deltas/999999999999999-b")).when(s3)
+        .listObjectsV2(any(ListObjectsV2Request.class));
+
+    index.rebuild(s3, "cache/index/deltas/", Collections.<String>emptyList());
+
+    ArgumentCaptor<DeleteObjectsRequest> request = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+    verify(s3).deleteObjects(request.capture());
+    assertEquals("bucket", request.getValue().getBucketName());
+    assertEquals(1, request.getValue().getKeys().size());
+    assertEquals("cache/index/deltas/001500000000000-a", request.getValue().getKeys().get(0).getKey());
+  }
+
+  @Test
+  public void rebuildDoesNotDeleteAnythingWithoutDeltas() throws IOException {
+    index.rebuild(s3, "cache/", Collections.<String>emptyList());
+
+    verify(s3, never()).deleteObjects(any(DeleteObjectsRequest.class));
+    verify(s3).putObject(any(PutObjectRequest.class));
+  }
+
+  private static ListObjectsV2Result listing(String... keys) {
+    ListObjectsV2Result result = new ListObjectsV2Result();
+    for (String key : keys) {
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName("bucket");
+      summary.setKey(key);
+      result.getObjectSummaries().add(summary);
+    }
+    return result;
+  }
+
+  private static byte[] indexOf(long builtAt, String... keys) throws IOException {
+    BloomFilter filter = BloomFilter.create(keys.length, KeyIndex.FALSE_POSITIVE_RATE);
+    for (String key : keys) {
+      filter.add(key);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream os = new DataOutputStream(bytes)) {
+      os.writeInt(0x53334b49);
+      os.writeInt(1);
+      os.writeLong(builtAt);
+      filter.writeTo(os);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static S3Object object(byte[] content) {
+    S3Object object = new S3Object();
+    object.setObjectContent(new ByteArrayInputStream(content));
+    return object;
+  }
+
+  private static byte[] toBytes(InputStream is) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = is.read(buffer)) != -1) {
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import java.io.IOException;
+import java.util.Collections;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class KeyLogsTest {
+
+  @Test
+  public void writesLogNamedByTheTimeItWasWrittenAt() throws IOException {
+    AmazonS3 s3 = mock(AmazonS3.class);
+    KeyManifest keys = new KeyManifest();
+    keys.record("cache/0a1b2c3d");
+    long before = System.currentTimeMillis();
+
+    KeyLogs.write(s3, "bucket", "cache/access/", keys);
+
+    ArgumentCaptor<PutObjectRequest> request = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(request.capture());
+    String logKey = request.getValue().getKey();
+    assertTrue(logKey.startsWith("cache/access/"));
+    long writtenAt = KeyLogs.getWrittenAt("cache/access/", logKey);
+    assertTrue(writtenAt >= before && writtenAt <= System.currentTimeMillis());
+    assertEquals(Collections.singletonList("cache/0a1b2c3d"), KeyManifest.read(request.getValue().getInputStream()));
+  }
+
+  @Test
+  public void listsLogsWrittenSinceTheGivenTime() {
+    AmazonS3 s3 = mock(AmazonS3.class);
+    doReturn(new ListObjectsV2Result()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+
+    KeyLogs.listSince(s3, "bucket", "cache/access/", 1500000000000L);
+
+    ArgumentCaptor<ListObjectsV2Request> request = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+    verify(s3).listObjectsV2(request.capture());
+    assertEquals("cache/access/", request.getValue().getPrefix());
+    assertEquals("cache/access/001500000000000", request.getValue().getStartAfter());
+  }
+
+  @Test
+  public void readsDeletedLogAsEmpty() throws IOException {
+    AmazonS3 s3 = mock(AmazonS3.class);
+    AmazonS3Exception notFound = new AmazonS3Exception("Not found");
+    notFound.setStatusCode(404);
+    doThrow(notFound).when(s3).getObject("bucket", "cache/access/001500000000000-a");
+
+    assertTrue(KeyLogs.read(s3, "bucket", "cache/access/001500000000000-a").isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsKeysWhichAreNoLogs() {
+    KeyLogs.getWrittenAt("cache/access/", "cache/access/keys");
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class KeyManifestTest {
+
+  @Test
+  public void roundTripsKeysInOrder() throws IOException {
+    KeyManifest manifest = new KeyManifest();
+    manifest.record("b");
+    manifest.record("a");
+    manifest.record("b");
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    manifest.writeTo(os);
+
+    assertEquals(Arrays.asList("b", "a"), KeyManifest.read(new ByteArrayInputStream(os.toByteArray())));
+  }
+
+  @Test
+  public void isEmptyWithoutRecordedKeys() {
+    assertTrue(new KeyManifest().isEmpty());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class LazyS3ClientTest {
+
+  @Test
+  public void returnsClientOnceCreated() throws Exception {
+    final AmazonS3 s3 = mock(AmazonS3.class);
+
+    LazyS3Client client = LazyS3Client.start(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() {
+        return S3ClientRegistry.Lease.unmanaged(s3);
+      }
+    }, 10000);
+
+    assertSame(s3, client.get());
+  }
+
+  @Test(expected = IOException.class)
+  public void failsIfClientCannotBeCreated() throws Exception {
+    LazyS3Client client = LazyS3Client.start(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() {
+        throw new IllegalStateException("no credentials");
+      }
+    }, 10000);
+
+    client.get();
+  }
+
+  @Test
+  public void failsIfClientIsNotReadyWithinBudget() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    LazyS3Client client = LazyS3Client.start(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() throws Exception {
+        release.await();
+        return S3ClientRegistry.Lease.unmanaged(mock(AmazonS3.class));
+      }
+    }, 10);
+
+    try {
+      client.get();
+      fail("Expected client creation to time out");
+    } catch (IOException expected) {
+      // expected
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void releasesClientCreatedAfterClose() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    S3ClientRegistry registry = new S3ClientRegistry(0);
+    final AmazonS3 s3 = mock(AmazonS3.class);
+    final S3ClientRegistry.Lease lease = registry.acquire("key", new Callable<AmazonS3>() {
+      @Override
+      public AmazonS3 call() {
+        return s3;
+      }
+    });
+    LazyS3Client client = LazyS3Client.start(new Callable<S3ClientRegistry.Lease>() {
+      @Override
+      public S3ClientRegistry.Lease call() throws Exception {
+        release.await();
+        return lease;
+      }
+    }, 10000);
+
+    client.close();
+    release.countDown();
+
+    verify(s3, timeout(5000)).shutdown();
+  }
+}
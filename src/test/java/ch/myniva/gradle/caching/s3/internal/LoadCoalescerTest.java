@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class LoadCoalescerTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final LoadCoalescer coalescer = new LoadCoalescer(new BufferPool(16, 4), 1024);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void returnsUncontendedDownloadAsIs() throws Exception {
+    final S3Object object = object(new byte[] {1, 2, 3});
+
+    S3Object result = coalescer.getObject("key", new Callable<S3Object>() {
+      @Override
+      public S3Object call() {
+        return object;
+      }
+    });
+
+    assertSame(object, result);
+    assertEquals(0, coalescer.inFlight());
+  }
+
+  @Test
+  public void servesConcurrentLoadsFromSingleDownload() throws Exception {
+    final byte[] content = new byte[100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger downloads = new AtomicInteger();
+    final Callable<S3Object> download = new Callable<S3Object>() {
+      @Override
+      public S3Object call() throws Exception {
+        downloads.incrementAndGet();
+        release.await();
+        return object(content);
+      }
+    };
+    Callable<byte[]> load = new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        try (InputStream is = coalescer.getObject("key", download).getObjectContent()) {
+          return readFully(is);
+        }
+      }
+    };
+
+    Future<byte[]> first = executor.submit(load);
+    while (coalescer.inFlight() == 0) {
+      Thread.sleep(1);
+    }
+    Future<byte[]> second = executor.submit(load);
+    Future<byte[]> third = executor.submit(load);
+    Thread.sleep(100);
+    release.countDown();
+
+    assertArrayEquals(content, first.get());
+    assertArrayEquals(content, second.get());
+    assertArrayEquals(content, third.get());
+    assertEquals(1, downloads.get());
+  }
+
+  @Test
+  public void recordsResponseBeforeSpoolingAndGivesItToWaitingLoads() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<S3Object> download = new Callable<S3Object>() {
+      @Override
+      public S3Object call() throws Exception {
+        release.await();
+        S3Object object = object(new byte[10]);
+        // Spooling the content for the waiting load takes longer than the response
+        object.setObjectContent(new ByteArrayInputStream(new byte[10]) {
+          @Override
+          public synchronized int read(byte[] b, int off, int len) {
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return super.read(b, off, len);
+          }
+        });
+        return object;
+      }
+    };
+    final ResponseTimer firstTimer = new ResponseTimer();
+    final ResponseTimer secondTimer = new ResponseTimer();
+
+    Future<S3Object> first = executor.submit(load(download, firstTimer));
+    while (coalescer.inFlight() == 0) {
+      Thread.sleep(1);
+    }
+    Future<S3Object> second = executor.submit(load(download, secondTimer));
+    Thread.sleep(50);
+    release.countDown();
+    first.get().getObjectContent().close();
+    second.get().getObjectContent().close();
+
+    assertTrue(firstTimer.getResponseNanos() < TimeUnit.MILLISECONDS.toNanos(150));
+    assertEquals(firstTimer.getResponseNanos(), secondTimer.getResponseNanos());
+  }
+
+  @Test
+  public void propagatesFailedDownloadToWaitingLoads() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<S3Object> download = new Callable<S3Object>() {
+      @Override
+      public S3Object call() throws Exception {
+        release.await();
+        throw new IOException("connection reset");
+      }
+    };
+    Callable<S3Object> load = new Callable<S3Object>() {
+      @Override
+      public S3Object call() throws Exception {
+        return coalescer.getObject("key", download);
+      }
+    };
+
+    Future<S3Object> first = executor.submit(load);
+    while (coalescer.inFlight() == 0) {
+      Thread.sleep(1);
+    }
+    Future<S3Object> second = executor.submit(load);
+    Thread.sleep(100);
+    release.countDown();
+
+    assertFailsWithIOException(first);
+    assertFailsWithIOException(second);
+  }
+
+  private Callable<S3Object> load(final Callable<S3Object> download, final ResponseTimer timer) {
+    return new Callable<S3Object>() {
+      @Override
+      public S3Object call() throws Exception {
+        return coalescer.getObject("key", download, timer);
+      }
+    };
+  }
+
+  private static void assertFailsWithIOException(Future<?> future) throws InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      return;
+    }
+    throw new AssertionError("Expected the load to fail");
+  }
+
+  private static S3Object object(byte[] content) {
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(content.length);
+    S3Object object = new S3Object();
+    object.setObjectMetadata(meta);
+    object.setObjectContent(new ByteArrayInputStream(content));
+    return object;
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7];
+    int n;
+    while ((n = is.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
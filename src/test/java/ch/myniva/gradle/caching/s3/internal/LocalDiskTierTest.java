@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalDiskTierTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+  private final List<Runnable> scheduled = new ArrayList<>();
+  private final Executor cleanups = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      scheduled.add(command);
+    }
+  };
+
+  @Before
+  public void setUp() {
+    directory = temporaryFolder.getRoot().toPath().resolve("cache");
+  }
+
+  @Test
+  public void returnsNullForUnknownEntries() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+
+    assertNull(tier.open("abc"));
+  }
+
+  @Test
+  public void servesStoredEntries() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+    byte[] content = new byte[]{1, 2, 3};
+
+    assertArrayEquals(content, readFully(tier.put("abc", new ByteArrayInputStream(content))));
+    assertArrayEquals(content, readFully(tier.open("abc")));
+  }
+
+  @Test
+  public void doesNotServeExpiredEntries() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+    readFully(tier.put("abc", new ByteArrayInputStream(new byte[]{1})));
+    age("abc", TimeUnit.DAYS.toMillis(2));
+
+    assertNull(tier.open("abc"));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntriesBeyondMaxSize() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+    readFully(tier.put("old", new ByteArrayInputStream(new byte[600])));
+    readFully(tier.put("new", new ByteArrayInputStream(new byte[600])));
+    age("old", TimeUnit.HOURS.toMillis(1));
+
+    tier.cleanup();
+
+    assertFalse(Files.exists(directory.resolve("old")));
+    assertTrue(Files.exists(directory.resolve("new")));
+  }
+
+  @Test
+  public void evictsExpiredEntries() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+    readFully(tier.put("abc", new ByteArrayInputStream(new byte[1])));
+    age("abc", TimeUnit.DAYS.toMillis(2));
+
+    tier.cleanup();
+
+    assertFalse(Files.exists(directory.resolve("abc")));
+  }
+
+  @Test
+  public void evictsInBackgroundOnceTenthOfMaxSizeWasWritten() throws IOException {
+    LocalDiskTier tier = new LocalDiskTier(directory, 1024, TimeUnit.DAYS.toMillis(1), cleanups);
+    readFully(tier.put("abc", new ByteArrayInputStream(new byte[1])));
+    age("abc", TimeUnit.DAYS.toMillis(2));
+    readFully(tier.put("def", new ByteArrayInputStream(new byte[200])));
+    readFully(tier.put("ghi", new ByteArrayInputStream(new byte[200])));
+
+    assertTrue(Files.exists(directory.resolve("abc")));
+    assertEquals(1, scheduled.size());
+    scheduled.get(0).run();
+
+    assertFalse(Files.exists(directory.resolve("abc")));
+    assertTrue(Files.exists(directory.resolve("ghi")));
+  }
+
+  private void age(String key, long millis) throws IOException {
+    Files.setLastModifiedTime(directory.resolve(key), FileTime.fromMillis(System.currentTimeMillis() - millis));
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[7];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        os.write(buffer, 0, read);
+      }
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
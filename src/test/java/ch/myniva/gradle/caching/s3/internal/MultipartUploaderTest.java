@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class MultipartUploaderTest {
+
+  private static final long PART_SIZE = MultipartUploader.MIN_PART_SIZE;
+
+  private AmazonS3 s3;
+  private ExecutorService executor;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    s3 = mock(AmazonS3.class);
+    executor = Executors.newFixedThreadPool(2);
+    InitiateMultipartUploadResult initResult = new InitiateMultipartUploadResult();
+    initResult.setUploadId("upload-id");
+    doReturn(initResult).when(s3).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+
+    file = File.createTempFile("multipart", ".tmp");
+    try (FileOutputStream os = new FileOutputStream(file)) {
+      os.write(new byte[(int) (2 * PART_SIZE + 1)]);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    file.delete();
+  }
+
+  @Test
+  public void uploadsFileInParts() throws IOException {
+    UploadPartResult partResult = new UploadPartResult();
+    partResult.setETag("etag");
+    doReturn(partResult).when(s3).uploadPart(any(UploadPartRequest.class));
+
+    new MultipartUploader(executor, PART_SIZE).upload(s3, "bucket", "key", new ObjectMetadata(), null, file);
+
+    ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+    verify(s3, times(3)).uploadPart(parts.capture());
+    long uploaded = 0;
+    for (UploadPartRequest part : parts.getAllValues()) {
+      uploaded += part.getPartSize();
+    }
+    assertEquals(file.length(), uploaded);
+
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete =
+        ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(s3).completeMultipartUpload(complete.capture());
+    assertEquals(3, complete.getValue().getPartETags().size());
+    verify(s3, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+  }
+
+  @Test
+  public void abortsUploadIfPartFails() throws IOException {
+    doThrow(new SdkClientException("boom")).when(s3).uploadPart(any(UploadPartRequest.class));
+
+    try {
+      new MultipartUploader(executor, PART_SIZE).upload(s3, "bucket", "key", new ObjectMetadata(), null, file);
+      fail("Expected upload to fail");
+    } catch (SdkClientException expected) {
+      // expected
+    }
+
+    verify(s3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class PackIndexTest {
+
+  private static final String PREFIX = "cache/packs/index/";
+  private static final String SNAPSHOT = "cache/packs/snapshot";
+  private static final String PACK = "001500000000000-a";
+  private static final long NO_MAX_AGE = TimeUnit.DAYS.toMillis(100 * 365);
+
+  private AmazonS3 s3;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    doThrow(notFound()).when(s3).getObject("bucket", SNAPSHOT);
+    doThrow(notFound()).when(s3).getObjectMetadata("bucket", SNAPSHOT);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void readsWhatWasWritten() throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    PackIndex.write(Arrays.asList(new PackIndex.Entry("0a1b", PACK, 0, 10, "none", "c95524ed"),
+        new PackIndex.Entry("2c3d", PACK, 10, 20, "gzip", "-")), os);
+
+    List<PackIndex.Entry> entries = PackIndex.read(PACK, new ByteArrayInputStream(os.toByteArray()));
+
+    assertEquals(2, entries.size());
+    PackIndex.Entry second = entries.get(1);
+    assertEquals("2c3d", second.getHashCode());
+    assertEquals(PACK, second.getPack());
+    assertEquals(10, second.getOffset());
+    assertEquals(20, second.getLength());
+    assertEquals("gzip", second.getCodec());
+    assertEquals("-", second.getChecksum());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsUnknownFormat() throws IOException {
+    PackIndex.read(PACK, new ByteArrayInputStream("pack v2\n".getBytes("UTF-8")));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsMalformedLine() throws IOException {
+    PackIndex.read(PACK, new ByteArrayInputStream("pack v1\n0a1b 0\n".getBytes("UTF-8")));
+  }
+
+  @Test
+  public void forgetsEntriesOfRemovedPack() {
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, NO_MAX_AGE);
+    index.add(PREFIX + PACK, Collections.singletonList(new PackIndex.Entry("0a1b", PACK, 0, 10, "none", "-")));
+    index.add(PREFIX + "001500000000001-b",
+        Collections.singletonList(new PackIndex.Entry("2c3d", "001500000000001-b", 0, 10, "none", "-")));
+
+    index.removePack(PACK);
+
+    assertNull(index.get("0a1b"));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void refreshReadsEveryIndexOnce() throws IOException {
+    doReturn(listing(PREFIX + PACK)).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    doReturn(indexObject(new PackIndex.Entry("0a1b", PACK, 0, 10, "none", "-")))
+        .when(s3).getObject("bucket", PREFIX + PACK);
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, NO_MAX_AGE);
+
+    int first = index.refresh(s3, executor);
+    int second = index.refresh(s3, executor);
+
+    assertEquals(1, first);
+    assertEquals(0, second);
+    assertEquals(PACK, index.get("0a1b").getPack());
+    verify(s3, times(1)).getObject("bucket", PREFIX + PACK);
+  }
+
+  @Test
+  public void refreshSkipsIndexWhichExpiredSinceTheListing() throws IOException {
+    doReturn(listing(PREFIX + PACK)).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    doThrow(notFound()).when(s3).getObject("bucket", PREFIX + PACK);
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, NO_MAX_AGE);
+
+    assertEquals(1, index.refresh(s3, executor));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void refreshStartsFromSnapshotAndListsOnlyIndexesAfterIt() throws IOException {
+    long coveredUntil = 1500000000000L + TimeUnit.DAYS.toMillis(1);
+    doReturn(snapshotObject(coveredUntil, new PackIndex.Entry("0a1b", PACK, 0, 10, "none", "-")))
+        .when(s3).getObject("bucket", SNAPSHOT);
+    doReturn(new ListObjectsV2Result()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, NO_MAX_AGE);
+
+    index.refresh(s3, executor);
+
+    assertEquals(PACK, index.get("0a1b").getPack());
+    ArgumentCaptor<ListObjectsV2Request> request = ArgumentCaptor.forClass(ListObjectsV2Request.class);
+    verify(s3).listObjectsV2(request.capture());
+    assertEquals(PREFIX + String.format("%015d", coveredUntil - TimeUnit.HOURS.toMillis(1)),
+        request.getValue().getStartAfter());
+  }
+
+  @Test
+  public void refreshDropsEntriesOfExpiredPacks() throws IOException {
+    doReturn(new ListObjectsV2Result()).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, TimeUnit.DAYS.toMillis(30));
+    index.add(PREFIX + PACK, Collections.singletonList(new PackIndex.Entry("0a1b", PACK, 0, 10, "none", "-")));
+
+    index.refresh(s3, executor);
+
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void writesSnapshotOnceEnoughIndexesWereRead() throws IOException {
+    ListObjectsV2Result result = new ListObjectsV2Result();
+    for (int i = 0; i < PackIndex.SNAPSHOT_INTERVAL; i++) {
+      String pack = String.format("%015d-%d", 1500000000000L + i, i);
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey(PREFIX + pack);
+      result.getObjectSummaries().add(summary);
+      doReturn(indexObject(new PackIndex.Entry("hash" + i, pack, 0, 10, "none", "-")))
+          .when(s3).getObject("bucket", PREFIX + pack);
+    }
+    doReturn(result).when(s3).listObjectsV2(any(ListObjectsV2Request.class));
+    PackIndex index = new PackIndex("bucket", PREFIX, SNAPSHOT, NO_MAX_AGE);
+    index.refresh(s3, executor);
+    assertTrue(index.isSnapshotDue());
+
+    boolean written = index.writeSnapshot(s3);
+
+    assertTrue(written);
+    assertFalse(index.isSnapshotDue());
+    ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3).putObject(put.capture());
+    assertEquals(SNAPSHOT, put.getValue().getKey());
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(put.getValue().getInputStream()), "UTF-8"));
+    assertEquals("pack snapshot v1 " + (1500000000000L + PackIndex.SNAPSHOT_INTERVAL - 1), reader.readLine());
+    int lines = 0;
+    while (reader.readLine() != null) {
+      lines++;
+    }
+    assertEquals(PackIndex.SNAPSHOT_INTERVAL, lines);
+  }
+
+  private static AmazonS3Exception notFound() {
+    AmazonS3Exception notFound = new AmazonS3Exception("Not found");
+    notFound.setStatusCode(404);
+    return notFound;
+  }
+
+  private static ListObjectsV2Result listing(String key) {
+    ListObjectsV2Result result = new ListObjectsV2Result();
+    S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setKey(key);
+    result.getObjectSummaries().add(summary);
+    return result;
+  }
+
+  private static S3Object indexObject(PackIndex.Entry... entries) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    PackIndex.write(Arrays.asList(entries), os);
+    S3Object object = new S3Object();
+    object.setObjectContent(new ByteArrayInputStream(os.toByteArray()));
+    return object;
+  }
+
+  private static S3Object snapshotObject(long coveredUntil, PackIndex.Entry entry) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(os), "UTF-8")) {
+      writer.write("pack snapshot v1 " + coveredUntil + "\n");
+      writer.write(entry.getPack() + " " + entry.getHashCode() + " " + entry.getOffset() + " " + entry.getLength()
+          + " " + entry.getCodec() + " " + entry.getChecksum() + "\n");
+    }
+    S3Object object = new S3Object();
+    object.setObjectContent(new ByteArrayInputStream(os.toByteArray()));
+    return object;
+  }
+}
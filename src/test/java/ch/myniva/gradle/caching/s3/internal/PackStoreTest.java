@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PackStoreTest {
+
+  private static final byte[] FIRST = "first entry".getBytes();
+  private static final byte[] SECOND = "second entry".getBytes();
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Map<String, byte[]> objects = new HashMap<>();
+  private AmazonS3 s3;
+  private PackIndex index;
+  private PackStore store;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws IOException {
+        PutObjectRequest request = invocation.getArgument(0);
+        objects.put(request.getKey(), readAll(request.getInputStream()));
+        return null;
+      }
+    }).when(s3).putObject(any(PutObjectRequest.class));
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        GetObjectRequest request = invocation.getArgument(0);
+        byte[] content = objects.get(request.getKey());
+        long[] range = request.getRange();
+        return object(Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1));
+      }
+    }).when(s3).getObject(any(GetObjectRequest.class));
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        return object(objects.get(invocation.<String>getArgument(1)));
+      }
+    }).when(s3).getObject(anyString(), anyString());
+    index = new PackIndex("bucket", "cache/packs/index/", "cache/packs/snapshot", TimeUnit.DAYS.toMillis(36500));
+    store = new PackStore("bucket", "cache/packs/data/", "cache/packs/index/", index, 16, 20);
+  }
+
+  @Test
+  public void servesEntriesFromMemoryUntilTheyAreFlushed() throws IOException {
+    store.add("0a1b", spool(FIRST), metadata("c95524ed"));
+
+    S3Object object = store.getObject(s3, "0a1b", null);
+
+    assertTrue(store.contains("0a1b"));
+    assertArrayEquals(FIRST, readAll(object.getObjectContent()));
+    assertEquals("c95524ed", object.getObjectMetadata().getUserMetaDataOf(EntryChecksums.METADATA_KEY));
+    verifyZeroInteractions(s3);
+  }
+
+  @Test
+  public void rejectsEntriesLargerThanThreshold() throws IOException {
+    assertFalse(store.add("0a1b", spool("an entry larger than the threshold".getBytes()), metadata("-")));
+    assertFalse(store.contains("0a1b"));
+  }
+
+  @Test
+  public void flushIsDueOnceEntriesFillAPack() throws IOException {
+    store.add("0a1b", spool(FIRST), metadata("-"));
+    assertFalse(store.isFlushDue());
+
+    store.add("2c3d", spool(SECOND), metadata("-"));
+
+    assertTrue(store.isFlushDue());
+  }
+
+  @Test
+  public void flushWritesPackBeforeItsIndex() throws IOException {
+    store.add("0a1b", spool(FIRST), metadata("-"));
+    store.add("2c3d", spool(SECOND), metadata("-"));
+
+    long uploaded = store.flush(s3, null);
+
+    ArgumentCaptor<PutObjectRequest> puts = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(2)).putObject(puts.capture());
+    String pack = index.get("0a1b").getPack();
+    assertEquals("cache/packs/data/" + pack, puts.getAllValues().get(0).getKey());
+    assertEquals("cache/packs/index/" + pack, puts.getAllValues().get(1).getKey());
+    assertArrayEquals(concat(FIRST, SECOND), objects.get("cache/packs/data/" + pack));
+    List<PackIndex.Entry> entries = PackIndex.read(pack,
+        new ByteArrayInputStream(objects.get("cache/packs/index/" + pack)));
+    assertEquals(2, entries.size());
+    assertEquals(FIRST.length, entries.get(1).getOffset());
+    assertEquals(SECOND.length, entries.get(1).getLength());
+    assertTrue(uploaded > FIRST.length + SECOND.length);
+    assertEquals(1, store.getWrittenPacks());
+    assertEquals(2, store.getPackedEntries());
+  }
+
+  @Test
+  public void readsPackedEntryWithRangedGet() throws IOException {
+    ObjectMetadata gzipped = metadata("c95524ed");
+    gzipped.addUserMetadata(EntryCodecs.METADATA_KEY, "gzip");
+    store.add("0a1b", spool(FIRST), metadata("-"));
+    store.add("2c3d", spool(SECOND), gzipped);
+    store.flush(s3, null);
+
+    S3Object object = store.getObject(s3, "2c3d", null);
+
+    assertArrayEquals(SECOND, readAll(object.getObjectContent()));
+    assertEquals(SECOND.length, object.getObjectMetadata().getContentLength());
+    assertEquals("gzip", object.getObjectMetadata().getUserMetaDataOf(EntryCodecs.METADATA_KEY));
+    assertEquals("c95524ed", object.getObjectMetadata().getUserMetaDataOf(EntryChecksums.METADATA_KEY));
+    assertEquals(1, store.getRangeReads());
+  }
+
+  @Test
+  public void copiesPackIntoLocalTierOnceItIsReadRepeatedly() throws IOException {
+    LocalDiskTier localTier = new LocalDiskTier(temporaryFolder.getRoot().toPath(), 1024 * 1024,
+        TimeUnit.DAYS.toMillis(1));
+    store.add("0a1b", spool(FIRST), metadata("-"));
+    store.add("2c3d", spool(SECOND), metadata("-"));
+    store.flush(s3, null);
+
+    for (int i = 0; i < PackStore.WHOLE_PACK_READS + 2; i++) {
+      assertArrayEquals(SECOND, readAll(store.getObject(s3, "2c3d", localTier).getObjectContent()));
+    }
+    byte[] first = readAll(store.getObject(s3, "0a1b", localTier).getObjectContent());
+
+    assertArrayEquals(FIRST, first);
+    assertEquals(PackStore.WHOLE_PACK_READS - 1, store.getRangeReads());
+    verify(s3, times(1)).getObject(anyString(), anyString());
+  }
+
+  @Test
+  public void forgetsPackWhichExpired() throws IOException {
+    store.add("0a1b", spool(FIRST), metadata("-"));
+    store.flush(s3, null);
+    AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+    notFound.setStatusCode(404);
+    doThrow(notFound).when(s3).getObject(any(GetObjectRequest.class));
+
+    assertNull(store.getObject(s3, "0a1b", null));
+    assertFalse(store.contains("0a1b"));
+  }
+
+  @Test
+  public void flushWithoutEntriesDoesNothing() throws IOException {
+    assertEquals(0, store.flush(s3, null));
+    verify(s3, never()).putObject(any(PutObjectRequest.class));
+  }
+
+  private static ObjectMetadata metadata(String checksum) {
+    ObjectMetadata meta = new ObjectMetadata();
+    if (!checksum.equals("-")) {
+      meta.addUserMetadata(EntryChecksums.METADATA_KEY, checksum);
+    }
+    return meta;
+  }
+
+  private static SpoolingOutputStream spool(byte[] content) throws IOException {
+    SpoolingOutputStream spool = new SpoolingOutputStream(BufferPool.shared(), Long.MAX_VALUE);
+    spool.write(content);
+    spool.close();
+    return spool;
+  }
+
+  private static S3Object object(byte[] content) {
+    S3Object object = new S3Object();
+    object.setObjectContent(new ByteArrayInputStream(content));
+    return object;
+  }
+
+  private static byte[] concat(byte[]... parts) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      os.write(part);
+    }
+    return os.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      os.write(buffer, 0, read);
+    }
+    is.close();
+    return os.toByteArray();
+  }
+}
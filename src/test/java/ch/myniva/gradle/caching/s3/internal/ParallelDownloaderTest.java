@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ParallelDownloaderTest {
+
+  private AmazonS3 s3;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    s3 = mock(AmazonS3.class);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void returnsSmallObjectFromFirstRequest() throws IOException {
+    byte[] content = randomBytes(10);
+    serve(content);
+
+    S3Object object = new ParallelDownloader(executor, 16).getObject(s3, "bucket", "key");
+
+    assertArrayEquals(content, readFully(object.getObjectContent()));
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void downloadsLargeObjectInRanges() throws IOException {
+    byte[] content = randomBytes(100);
+    serve(content);
+
+    S3Object object = new ParallelDownloader(executor, 16).getObject(s3, "bucket", "key");
+
+    assertEquals(100, object.getObjectMetadata().getContentLength());
+    assertArrayEquals(content, readFully(object.getObjectContent()));
+    verify(s3, times(7)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void recordsResponseOfFirstPartBeforeRemainingPartsAreDownloaded() throws Exception {
+    byte[] content = randomBytes(100);
+    final Answer<S3Object> parts = serving(content);
+    final ResponseTimer timer = new ResponseTimer();
+    final AtomicLong seenByParts = new AtomicLong(-1);
+    doAnswer(new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) throws Throwable {
+        GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+        if (request.getRange()[0] > 0) {
+          seenByParts.compareAndSet(-1, timer.getResponseNanos());
+          Thread.sleep(100);
+        }
+        return parts.answer(invocation);
+      }
+    }).when(s3).getObject(any(GetObjectRequest.class));
+
+    S3Object object = new ParallelDownloader(executor, 16).getObject(s3, "bucket", "key", timer);
+
+    assertArrayEquals(content, readFully(object.getObjectContent()));
+    // Slow parts do not count, the time was recorded when the first part responded
+    assertEquals(seenByParts.get(), timer.getResponseNanos());
+    assertTrue(timer.getResponseNanos() < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  public void returnsNullForMissingObject() throws IOException {
+    doReturn(null).when(s3).getObject(any(GetObjectRequest.class));
+
+    assertNull(new ParallelDownloader(executor, 16).getObject(s3, "bucket", "key"));
+  }
+
+  @Test
+  public void readsInstanceLengthFromContentRange() {
+    ObjectMetadata meta = new ObjectMetadata();
+    meta.setContentLength(16);
+    assertEquals(16, ParallelDownloader.getInstanceLength(meta));
+
+    meta.setHeader("Content-Range", "bytes 0-15/1234");
+    assertEquals(1234, ParallelDownloader.getInstanceLength(meta));
+  }
+
+  @Test
+  public void doesNotRequestRangesForObjectOfExactlyOnePart() throws IOException {
+    byte[] content = randomBytes(16);
+    serve(content);
+
+    S3Object object = new ParallelDownloader(executor, 16).getObject(s3, "bucket", "key");
+
+    assertArrayEquals(content, readFully(object.getObjectContent()));
+    verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+  }
+
+  private void serve(byte[] content) {
+    doAnswer(serving(content)).when(s3).getObject(any(GetObjectRequest.class));
+  }
+
+  private static Answer<S3Object> serving(final byte[] content) {
+    return new Answer<S3Object>() {
+      @Override
+      public S3Object answer(InvocationOnMock invocation) {
+        GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+        long[] range = request.getRange();
+        int start = range == null ? 0 : (int) range[0];
+        int end = range == null ? content.length - 1 : (int) Math.min(range[1], content.length - 1);
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(end - start + 1);
+        meta.setHeader("ETag", "etag");
+        if (range != null) {
+          meta.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(meta);
+        object.setObjectContent(new ByteArrayInputStream(content, start, end - start + 1));
+        return object;
+      }
+    };
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    try {
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      byte[] buffer = new byte[7];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        os.write(buffer, 0, read);
+      }
+      return os.toByteArray();
+    } finally {
+      is.close();
+    }
+  }
+}
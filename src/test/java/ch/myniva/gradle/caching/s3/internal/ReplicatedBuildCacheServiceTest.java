@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.gradle.caching.BuildCacheEntryReader;
+import org.gradle.caching.BuildCacheEntryWriter;
+import org.gradle.caching.BuildCacheException;
+import org.gradle.caching.BuildCacheKey;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ReplicatedBuildCacheServiceTest {
+
+  private AwsS3BuildCacheService primary;
+  private AwsS3BuildCacheService replica;
+  private ExecutorService executor;
+  private BuildCacheKey key;
+  private BuildCacheEntryReader reader;
+
+  @Before
+  public void setUp() {
+    primary = mock(AwsS3BuildCacheService.class);
+    replica = mock(AwsS3BuildCacheService.class);
+    doReturn(true).when(primary).isAvailable();
+    doReturn(true).when(replica).isAvailable();
+    doReturn(-1L).when(primary).probe();
+    doReturn(-1L).when(replica).probe();
+    executor = Executors.newCachedThreadPool();
+    key = mock(BuildCacheKey.class);
+    doReturn("abcdef").when(key).getHashCode();
+    reader = mock(BuildCacheEntryReader.class);
+  }
+
+  @Test
+  public void loadsFromTheConfiguredOrderUntilProbesRespond() {
+    ReplicatedBuildCacheService subject = newService(false);
+    doReturn(true).when(primary).load(key, reader);
+
+    assertTrue(subject.load(key, reader));
+    verify(replica, never()).load(key, reader);
+  }
+
+  @Test
+  public void loadsFromTheFastestReplicaFirst() {
+    ReplicatedBuildCacheService subject = newService(false);
+    subject.getReplicas().get(0).recordProbe(80000000L);
+    subject.getReplicas().get(1).recordProbe(5000000L);
+    doReturn(true).when(replica).load(key, reader);
+
+    assertTrue(subject.load(key, reader));
+    verify(primary, never()).load(key, reader);
+  }
+
+  @Test
+  public void fallsBackToTheNextReplicaOnMiss() {
+    ReplicatedBuildCacheService subject = newService(false);
+    doReturn(false).when(primary).load(key, reader);
+    doReturn(true).when(replica).load(key, reader);
+
+    assertTrue(subject.load(key, reader));
+  }
+
+  @Test
+  public void fallsBackToTheNextReplicaOnError() {
+    ReplicatedBuildCacheService subject = newService(false);
+    doThrow(new BuildCacheException("boom")).when(primary).load(key, reader);
+    doReturn(false).when(replica).load(key, reader);
+
+    assertFalse(subject.load(key, reader));
+    assertFalse(subject.getReplicas().get(0).isHealthy());
+    assertSame(subject.getReplicas().get(1), subject.byLatency().get(0));
+  }
+
+  @Test(expected = BuildCacheException.class)
+  public void failsIfNoReplicaAnswers() {
+    ReplicatedBuildCacheService subject = newService(false);
+    doThrow(new BuildCacheException("boom")).when(primary).load(key, reader);
+    doThrow(new BuildCacheException("boom")).when(replica).load(key, reader);
+
+    subject.load(key, reader);
+  }
+
+  @Test
+  public void asksUnavailableReplicasLast() {
+    ReplicatedBuildCacheService subject = newService(false);
+    subject.getReplicas().get(0).recordProbe(80000000L);
+    subject.getReplicas().get(1).recordProbe(5000000L);
+    doReturn(false).when(replica).isAvailable();
+
+    assertSame(subject.getReplicas().get(0), subject.byLatency().get(0));
+  }
+
+  @Test
+  public void successfulProbeMakesReplicaHealthyAgain() {
+    ReplicatedBuildCacheService subject = newService(false);
+    ReplicatedBuildCacheService.Replica first = subject.getReplicas().get(0);
+    first.recordFailure();
+
+    first.recordProbe(1000000L);
+
+    assertTrue(first.isHealthy());
+  }
+
+  @Test
+  public void storesInThePrimaryOnly() {
+    ReplicatedBuildCacheService subject = newService(false);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+
+    subject.store(key, writer);
+
+    verify(primary).store(key, writer);
+    verify(replica, never()).store(any(BuildCacheKey.class), any(BuildCacheEntryWriter.class));
+  }
+
+  @Test
+  public void replicatesStoresCapturingTheEntryOnce() throws Exception {
+    ReplicatedBuildCacheService subject = newService(true);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+    AwsS3BuildCacheService.CapturedEntry entry = capturedEntry(1024);
+    doReturn("abcdef").when(primary).reserveStore(key);
+    doReturn("abcdef").when(replica).reserveStore(key);
+    doReturn(entry).when(primary).capture(writer);
+
+    subject.store(key, writer);
+    subject.close();
+
+    verify(primary).capture(writer);
+    verify(primary).store(key, "abcdef", entry);
+    verify(replica).store(key, "abcdef", entry);
+    verify(replica, never()).store(any(BuildCacheKey.class), any(BuildCacheEntryWriter.class));
+    verify(primary).close();
+    verify(replica).close();
+  }
+
+  @Test
+  public void doesNotCaptureEntriesWhichEveryBucketHas() throws Exception {
+    ReplicatedBuildCacheService subject = newService(true);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+
+    subject.store(key, writer);
+    subject.close();
+
+    verify(primary, never()).capture(writer);
+    verify(primary, never()).store(any(BuildCacheKey.class), any(String.class),
+        any(AwsS3BuildCacheService.CapturedEntry.class));
+    verify(replica, never()).store(any(BuildCacheKey.class), any(String.class),
+        any(AwsS3BuildCacheService.CapturedEntry.class));
+  }
+
+  @Test
+  public void storesInTheReplicasWhichMissTheEntryOnly() throws Exception {
+    ReplicatedBuildCacheService subject = newService(true);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+    AwsS3BuildCacheService.CapturedEntry entry = capturedEntry(1024);
+    doReturn("abcdef").when(replica).reserveStore(key);
+    doReturn(entry).when(primary).capture(writer);
+
+    subject.store(key, writer);
+    subject.close();
+
+    verify(primary, never()).store(any(BuildCacheKey.class), any(String.class),
+        any(AwsS3BuildCacheService.CapturedEntry.class));
+    verify(replica).store(key, "abcdef", entry);
+  }
+
+  @Test
+  public void failedReplicationDoesNotFailStore() throws Exception {
+    ReplicatedBuildCacheService subject = newService(true);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+    AwsS3BuildCacheService.CapturedEntry entry = capturedEntry(1024);
+    doReturn("abcdef").when(primary).reserveStore(key);
+    doReturn("abcdef").when(replica).reserveStore(key);
+    doReturn(entry).when(primary).capture(writer);
+    doThrow(new BuildCacheException("boom")).when(replica)
+        .store(any(BuildCacheKey.class), any(String.class), any(AwsS3BuildCacheService.CapturedEntry.class));
+
+    subject.store(key, writer);
+    subject.close();
+
+    verify(primary).store(key, "abcdef", entry);
+  }
+
+  @Test
+  public void failedCaptureFailsStoreAndReleasesReservations() throws Exception {
+    ReplicatedBuildCacheService subject = newService(true);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+    doReturn("abcdef").when(primary).reserveStore(key);
+    doReturn("abcdef").when(replica).reserveStore(key);
+    doThrow(new IOException("boom")).when(primary).capture(writer);
+
+    try {
+      subject.store(key, writer);
+      fail("Expected store to fail");
+    } catch (BuildCacheException expected) {
+      assertEquals("boom", expected.getCause().getMessage());
+    }
+    subject.close();
+
+    verify(primary).cancelStore("abcdef");
+    verify(replica).cancelStore("abcdef");
+    verify(replica, never()).store(any(BuildCacheKey.class), any(String.class),
+        any(AwsS3BuildCacheService.CapturedEntry.class));
+  }
+
+  @Test
+  public void releasesEntriesOfReplicationsDroppedOnClose() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    ReplicatedBuildCacheService subject = new ReplicatedBuildCacheService(
+        Arrays.asList("eu-west-1/primary", "us-east-1/replica"), Arrays.asList(primary, replica), executor,
+        new WriteBehindQueue("replicas", 1, 4, Long.MAX_VALUE), 100);
+    BuildCacheKey otherKey = mock(BuildCacheKey.class);
+    BuildCacheEntryWriter writer = mock(BuildCacheEntryWriter.class);
+    BuildCacheEntryWriter otherWriter = mock(BuildCacheEntryWriter.class);
+    AwsS3BuildCacheService.CapturedEntry blocked = capturedEntry(1024);
+    AwsS3BuildCacheService.CapturedEntry dropped = capturedEntry(4);
+    doReturn("abcdef").when(replica).reserveStore(key);
+    doReturn("ghijkl").when(replica).reserveStore(otherKey);
+    doReturn(blocked).when(primary).capture(writer);
+    doReturn(dropped).when(primary).capture(otherWriter);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        release.await();
+        return null;
+      }
+    }).when(replica).store(key, "abcdef", blocked);
+
+    try {
+      subject.store(key, writer);
+      subject.store(otherKey, otherWriter);
+      File file = dropped.getContent().getFile();
+      subject.close();
+
+      assertFalse(file.exists());
+      verify(replica, never()).store(otherKey, "ghijkl", dropped);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void closesAllReplicas() throws Exception {
+    ReplicatedBuildCacheService subject = newService(false);
+    doThrow(new IOException("boom")).when(primary).close();
+
+    try {
+      subject.close();
+    } catch (IOException expected) {
+      assertEquals("boom", expected.getMessage());
+    }
+
+    verify(replica).close();
+  }
+
+  private ReplicatedBuildCacheService newService(boolean replicateStores) {
+    List<String> names = Arrays.asList("eu-west-1/primary", "us-east-1/replica");
+    return new ReplicatedBuildCacheService(names, Arrays.asList(primary, replica), executor,
+        replicateStores ? new WriteBehindQueue("replicas", 2, 4, Long.MAX_VALUE) : null, 10000);
+  }
+
+  /**
+   * Captures a small entry, which is spilled to a file if it is larger than the given threshold.
+   */
+  private static AwsS3BuildCacheService.CapturedEntry capturedEntry(long threshold) throws IOException {
+    SpoolingOutputStream content = new SpoolingOutputStream(BufferPool.shared(), threshold);
+    content.write("entry".getBytes("UTF-8"));
+    content.close();
+    return new AwsS3BuildCacheService.CapturedEntry(content, new ObjectMetadata(), null);
+  }
+}
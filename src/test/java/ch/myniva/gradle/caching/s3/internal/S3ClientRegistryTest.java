@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+public class S3ClientRegistryTest {
+
+  @Test
+  public void sharesClientsWithEqualKeys() throws Exception {
+    S3ClientRegistry registry = new S3ClientRegistry(60000);
+
+    S3ClientRegistry.Lease first = registry.acquire("key", new MockClientFactory());
+    S3ClientRegistry.Lease second = registry.acquire("key", new MockClientFactory());
+    S3ClientRegistry.Lease other = registry.acquire("other", new MockClientFactory());
+
+    assertSame(first.getClient(), second.getClient());
+    assertNotSame(first.getClient(), other.getClient());
+    assertEquals(2, registry.size());
+  }
+
+  @Test
+  public void keepsReleasedClientsUntilIdleTimeout() throws Exception {
+    S3ClientRegistry registry = new S3ClientRegistry(60000);
+    S3ClientRegistry.Lease first = registry.acquire("key", new MockClientFactory());
+    first.close();
+
+    S3ClientRegistry.Lease second = registry.acquire("key", new MockClientFactory());
+
+    assertSame(first.getClient(), second.getClient());
+    verify(first.getClient(), never()).shutdown();
+  }
+
+  @Test
+  public void shutsDownIdleClients() throws Exception {
+    S3ClientRegistry registry = new S3ClientRegistry(10);
+    S3ClientRegistry.Lease lease = registry.acquire("key", new MockClientFactory());
+
+    lease.close();
+
+    verify(lease.getClient(), timeout(5000)).shutdown();
+  }
+
+  @Test
+  public void doesNotShutDownClientsStillInUse() throws Exception {
+    S3ClientRegistry registry = new S3ClientRegistry(0);
+    S3ClientRegistry.Lease first = registry.acquire("key", new MockClientFactory());
+    S3ClientRegistry.Lease second = registry.acquire("key", new MockClientFactory());
+
+    first.close();
+    first.close();
+
+    verify(second.getClient(), never()).shutdown();
+    assertEquals(1, registry.size());
+  }
+
+  private static class MockClientFactory implements Callable<AmazonS3> {
+    @Override
+    public AmazonS3 call() {
+      return mock(AmazonS3.class);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.Test;
+
+public class SpoolingOutputStreamTest {
+
+  private final BufferPool pool = new BufferPool(16, 8);
+
+  @Test
+  public void keepsSmallContentInMemory() throws IOException {
+    byte[] data = randomBytes(40);
+    SpoolingOutputStream os = new SpoolingOutputStream(pool, 64);
+
+    os.write(data);
+    os.close();
+
+    assertFalse(os.isSpilled());
+    assertNull(os.getFile());
+    assertEquals(40, os.size());
+    assertArrayEquals(data, readFully(os.openInputStream()));
+    os.discard();
+  }
+
+  @Test
+  public void spillsLargeContentToFile() throws IOException {
+    byte[] data = randomBytes(100);
+    SpoolingOutputStream os = new SpoolingOutputStream(pool, 64);
+
+    os.write(data, 0, 30);
+    os.write(data, 30, 70);
+    os.close();
+
+    assertTrue(os.isSpilled());
+    File file = os.getFile();
+    assertEquals(100, file.length());
+    assertArrayEquals(data, readFully(os.openInputStream()));
+
+    os.discard();
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void returnsBuffersToPoolWhenDiscarded() throws IOException {
+    SpoolingOutputStream os = new SpoolingOutputStream(pool, 64);
+
+    os.write(randomBytes(40));
+    os.close();
+    os.discard();
+
+    assertEquals(3, pool.pooled());
+  }
+
+  @Test
+  public void keepsRetainedContentUntilEveryReferenceIsDiscarded() throws IOException {
+    byte[] data = randomBytes(100);
+    SpoolingOutputStream os = new SpoolingOutputStream(pool, 64);
+    os.write(data);
+    os.close();
+
+    os.retain().discard();
+
+    assertTrue(os.getFile().exists());
+    assertArrayEquals(data, readFully(os.openInputStream()));
+    File file = os.getFile();
+    os.discard();
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void supportsMarkAndResetOfInMemoryContent() throws IOException {
+    byte[] data = randomBytes(40);
+    SpoolingOutputStream os = new SpoolingOutputStream(pool, 64);
+    os.write(data);
+    os.close();
+
+    InputStream is = os.openInputStream();
+    assertTrue(is.markSupported());
+    is.mark(0);
+    readFully(is);
+    is.reset();
+
+    assertArrayEquals(data, readFully(is));
+    os.discard();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      os.write(buffer, 0, read);
+    }
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.myniva.gradle.caching.s3.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+  @Test
+  public void drainWaitsForQueuedUploads() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(2, 4, 1024 * 1024);
+    final AtomicInteger uploads = new AtomicInteger();
+    SpoolingOutputStream content = mock(SpoolingOutputStream.class);
+
+    for (int i = 0; i < 6; i++) {
+      queue.submit("key" + i, content, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          Thread.sleep(10);
+          uploads.incrementAndGet();
+          return null;
+        }
+      });
+    }
+
+    assertTrue(queue.drain(10000));
+    assertEquals(6, uploads.get());
+  }
+
+  @Test
+  public void uploadsOnStoringThreadOnceMemoryBudgetIsUsedUp() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(1, 4, 150);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicReference<Thread> uploader = new AtomicReference<>();
+
+    queue.submit("key1", spool(100), new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release.await();
+        return null;
+      }
+    });
+    queue.submit("key2", spool(100), new Callable<Void>() {
+      @Override
+      public Void call() {
+        uploader.set(Thread.currentThread());
+        return null;
+      }
+    });
+
+    assertEquals(Thread.currentThread(), uploader.get());
+    assertEquals(100, queue.getMemoryBytes());
+    release.countDown();
+    assertTrue(queue.drain(10000));
+    assertEquals(0, queue.getMemoryBytes());
+  }
+
+  @Test
+  public void discardsContentOfFailedUploads() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(1, 1, 1024 * 1024);
+    SpoolingOutputStream content = mock(SpoolingOutputStream.class);
+
+    queue.submit("key", content, new Callable<Void>() {
+      @Override
+      public Void call() {
+        throw new IllegalStateException("boom");
+      }
+    });
+
+    assertTrue(queue.drain(10000));
+    verify(content).discard();
+  }
+
+  @Test
+  public void dropsUploadsWhichDoNotFinishInTime() throws Exception {
+    WriteBehindQueue queue = new WriteBehindQueue(1, 1, 1024 * 1024);
+    final CountDownLatch release = new CountDownLatch(1);
+    SpoolingOutputStream content = mock(SpoolingOutputStream.class);
+
+    queue.submit("key", content, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release.await();
+        return null;
+      }
+    });
+
+    assertFalse(queue.drain(10));
+    release.countDown();
+  }
+
+  private static SpoolingOutputStream spool(int size) throws IOException {
+    SpoolingOutputStream content = new SpoolingOutputStream(BufferPool.shared(), Long.MAX_VALUE);
+    content.write(new byte[size]);
+    content.close();
+    return content;
+  }
+}